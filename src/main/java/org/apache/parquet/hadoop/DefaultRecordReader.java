@@ -20,13 +20,18 @@ package org.apache.parquet.hadoop;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
+import org.apache.parquet.filter2.compat.FilterCompat;
+import org.apache.parquet.filter2.compat.RowGroupFilter;
 import org.apache.parquet.hadoop.InternalParquetRecordReader;
 import org.apache.parquet.hadoop.ParquetFileReader;
 import org.apache.parquet.hadoop.api.ReadSupport;
 import org.apache.parquet.hadoop.api.RecordReader;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
 import org.apache.parquet.hadoop.metadata.ParquetMetadata;
+import org.apache.parquet.schema.MessageType;
 
 import java.io.IOException;
+import java.util.List;
 
 import static org.apache.parquet.format.converter.ParquetMetadataConverter.NO_FILTER;
 import static org.apache.parquet.hadoop.ParquetFileReader.readFooter;
@@ -42,14 +47,22 @@ public class DefaultRecordReader<T> implements RecordReader<T> {
 
     private ParquetMetadata footer;
 
+    private FilterCompat.Filter filter;
+
+    private ParquetReadMetrics metrics;
+
     DefaultRecordReader(ReadSupport<T> readSupport,
                         Path file,
                         Configuration configuration,
-                        ParquetMetadata footer) {
+                        ParquetMetadata footer,
+                        FilterCompat.Filter filter,
+                        ParquetReadMetrics metrics) {
         this.readSupport = readSupport;
         this.file = file;
         this.configuration = configuration;
         this.footer = footer;
+        this.filter = filter;
+        this.metrics = metrics;
     }
 
     @Override
@@ -71,8 +84,16 @@ public class DefaultRecordReader<T> implements RecordReader<T> {
         if(this.footer == null){
             footer = readFooter(configuration, file, NO_FILTER);
         }
-        ParquetFileReader parquetFileReader = ParquetFileReader.open(configuration, file, footer);
-        this.internalReader = new InternalParquetRecordReader<T>(readSupport);
+        // Row groups not matching the filter by statistics or dictionaries are skipped
+        MessageType fileSchema = footer.getFileMetaData().getSchema();
+        List<BlockMetaData> blocks = DictionaryRowGroupFilter.filterRowGroups(
+                configuration, file, filter,
+                RowGroupFilter.filterRowGroups(filter, footer.getBlocks(), fileSchema),
+                fileSchema);
+        metrics.incRowGroupsSkipped(footer.getBlocks().size() - blocks.size());
+        ParquetFileReader parquetFileReader = new PrefetchingParquetFileReader(configuration,
+                file, new ParquetMetadata(footer.getFileMetaData(), blocks), metrics);
+        this.internalReader = new InternalParquetRecordReader<T>(readSupport, filter);
         this.internalReader.initialize(parquetFileReader, configuration);
     }
 
@@ -0,0 +1,294 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.hadoop;
+
+import com.google.common.io.CountingInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.bytes.BytesInput;
+import org.apache.parquet.column.ColumnDescriptor;
+import org.apache.parquet.column.Dictionary;
+import org.apache.parquet.column.Encoding;
+import org.apache.parquet.column.page.DictionaryPage;
+import org.apache.parquet.filter2.compat.FilterCompat;
+import org.apache.parquet.filter2.predicate.FilterPredicate;
+import org.apache.parquet.filter2.predicate.Operators;
+import org.apache.parquet.filter2.predicate.UserDefinedPredicate;
+import org.apache.parquet.format.DictionaryPageHeader;
+import org.apache.parquet.format.PageHeader;
+import org.apache.parquet.format.PageType;
+import org.apache.parquet.format.Util;
+import org.apache.parquet.format.converter.ParquetMetadataConverter;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnPath;
+import org.apache.parquet.schema.MessageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Drop the row groups whose dictionaries have no value matching the equality or user defined
+ * (e.g. IN) predicates of a filter, which statistics can't tell for low cardinality columns with
+ * a wide value range.
+ *
+ * Only the conjuncts of the filter on column chunks with all the data pages dictionary encoded
+ * are checked, parquet 1.8 has no encoding stats, so the chunk encodings are used instead.
+ */
+public class DictionaryRowGroupFilter {
+
+    public static final String DICTIONARY_FILTER_ENABLED =
+            "spark.sql.oap.parquet.dictionaryFilter.enable";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DictionaryRowGroupFilter.class);
+
+    private static final int HEADER_BUFFER_SIZE = 256;
+
+    private static final Set<Encoding> DICTIONARY_ENCODINGS = EnumSet.of(
+            Encoding.PLAIN_DICTIONARY, Encoding.RLE_DICTIONARY);
+
+    // Encodings of definition and repetition levels
+    private static final Set<Encoding> LEVEL_ENCODINGS = EnumSet.of(
+            Encoding.RLE, Encoding.BIT_PACKED);
+
+    private static final ParquetMetadataConverter converter = new ParquetMetadataConverter();
+
+    private DictionaryRowGroupFilter() {
+    }
+
+    public static List<BlockMetaData> filterRowGroups(
+            Configuration configuration,
+            Path file,
+            FilterCompat.Filter filter,
+            List<BlockMetaData> blocks,
+            MessageType schema) throws IOException {
+        if (!configuration.getBoolean(DICTIONARY_FILTER_ENABLED, true)
+                || !(filter instanceof FilterCompat.FilterPredicateCompat)) {
+            return blocks;
+        }
+        List<FilterPredicate> conjuncts = new ArrayList<>();
+        collectConjuncts(
+                ((FilterCompat.FilterPredicateCompat) filter).getFilterPredicate(), conjuncts);
+        if (conjuncts.isEmpty() || blocks.isEmpty()) {
+            return blocks;
+        }
+
+        List<BlockMetaData> matched = new ArrayList<>();
+        DictionaryReader reader = new DictionaryReader(configuration, file);
+        try {
+            for (BlockMetaData block : blocks) {
+                boolean drop = false;
+                for (int i = 0; i < conjuncts.size() && !drop; i++) {
+                    drop = canDrop(block, conjuncts.get(i), schema, reader);
+                }
+                if (!drop) {
+                    matched.add(block);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        LOG.debug("{} of {} row groups left after dictionary filtering",
+                matched.size(), blocks.size());
+        return matched;
+    }
+
+    private static boolean isDictionaryEncoded(ColumnChunkMetaData chunk) {
+        boolean hasDictionary = false;
+        for (Encoding encoding : chunk.getEncodings()) {
+            if (DICTIONARY_ENCODINGS.contains(encoding)) {
+                hasDictionary = true;
+            } else if (!LEVEL_ENCODINGS.contains(encoding)) {
+                // Some pages fall back to other encodings
+                return false;
+            }
+        }
+        return hasDictionary;
+    }
+
+    /**
+     * Collect the conjuncts of `predicate` that can be checked against the dictionaries, the
+     * ones never matching null values.
+     */
+    private static void collectConjuncts(
+            FilterPredicate predicate, List<FilterPredicate> conjuncts) {
+        if (predicate instanceof Operators.And) {
+            collectConjuncts(((Operators.And) predicate).getLeft(), conjuncts);
+            collectConjuncts(((Operators.And) predicate).getRight(), conjuncts);
+        } else if (predicate instanceof Operators.Eq) {
+            if (((Operators.Eq<?>) predicate).getValue() != null) {
+                conjuncts.add(predicate);
+            }
+        } else if (predicate instanceof Operators.UserDefined) {
+            try {
+                if (!keep((Operators.UserDefined<?, ?>) predicate, null)) {
+                    conjuncts.add(predicate);
+                }
+            } catch (RuntimeException e) {
+                LOG.debug("Skip dictionary filtering of " + predicate, e);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean keep(Operators.UserDefined<?, ?> predicate, Comparable<?> value) {
+        UserDefinedPredicate udp = predicate.getUserDefinedPredicate();
+        return udp.keep(value);
+    }
+
+    private static Operators.Column<?> columnOf(FilterPredicate predicate) {
+        if (predicate instanceof Operators.Eq) {
+            return ((Operators.Eq<?>) predicate).getColumn();
+        } else {
+            return ((Operators.UserDefined<?, ?>) predicate).getColumn();
+        }
+    }
+
+    private static boolean matches(FilterPredicate predicate, Comparable<?> value) {
+        if (predicate instanceof Operators.Eq) {
+            return isEqual(((Operators.Eq<?>) predicate).getValue(), value);
+        } else {
+            return keep((Operators.UserDefined<?, ?>) predicate, value);
+        }
+    }
+
+    /**
+     * Compare the values the same way as the record level filter, which compares the primitive
+     * values with ==, e.g. -0.0 equals 0.0 and NaN equals nothing.
+     */
+    private static boolean isEqual(Comparable<?> target, Comparable<?> value) {
+        if (target instanceof Double) {
+            return ((Double) target).doubleValue() == ((Number) value).doubleValue();
+        } else if (target instanceof Float) {
+            return ((Float) target).floatValue() == ((Number) value).floatValue();
+        } else {
+            return target.equals(value);
+        }
+    }
+
+    /**
+     * @return if no value in the dictionary of the column chunk matches `predicate`
+     */
+    private static boolean canDrop(
+            BlockMetaData block,
+            FilterPredicate predicate,
+            MessageType schema,
+            DictionaryReader reader) throws IOException {
+        ColumnPath path = columnOf(predicate).getColumnPath();
+        ColumnChunkMetaData chunk = null;
+        for (ColumnChunkMetaData column : block.getColumns()) {
+            if (column.getPath().equals(path)) {
+                chunk = column;
+            }
+        }
+        if (chunk == null || !isDictionaryEncoded(chunk)) {
+            return false;
+        }
+        ColumnDescriptor column = schema.getColumnDescription(path.toArray());
+        Dictionary dictionary = reader.read(chunk, column);
+        if (dictionary == null) {
+            return false;
+        }
+        for (int id = 0; id <= dictionary.getMaxId(); id++) {
+            Comparable<?> value = decode(dictionary, id, column);
+            if (value == null || matches(predicate, value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Comparable<?> decode(Dictionary dictionary, int id, ColumnDescriptor column) {
+        switch (column.getType()) {
+            case BINARY:
+            case FIXED_LEN_BYTE_ARRAY:
+            case INT96:
+                return dictionary.decodeToBinary(id);
+            case INT32:
+                return dictionary.decodeToInt(id);
+            case INT64:
+                return dictionary.decodeToLong(id);
+            case FLOAT:
+                return dictionary.decodeToFloat(id);
+            case DOUBLE:
+                return dictionary.decodeToDouble(id);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Read the dictionary pages of a file, the file is only opened when needed.
+     */
+    private static class DictionaryReader {
+        private final Configuration configuration;
+        private final Path file;
+        private FSDataInputStream f;
+        private CodecFactory codecFactory;
+
+        DictionaryReader(Configuration configuration, Path file) {
+            this.configuration = configuration;
+            this.file = file;
+        }
+
+        Dictionary read(ColumnChunkMetaData chunk, ColumnDescriptor column) throws IOException {
+            if (!isDictionaryEncoded(chunk)) {
+                return null;
+            }
+            if (f == null) {
+                f = file.getFileSystem(configuration).open(file);
+                codecFactory = new CodecFactory(configuration);
+            }
+            // Dictionary page is the first page of the column chunk
+            long position = chunk.getStartingPos();
+            f.seek(position);
+            CountingInputStream in =
+                    new CountingInputStream(new BufferedInputStream(f, HEADER_BUFFER_SIZE));
+            PageHeader header = Util.readPageHeader(in);
+            if (header.getType() != PageType.DICTIONARY_PAGE) {
+                return null;
+            }
+            DictionaryPageHeader dictionaryHeader = header.getDictionary_page_header();
+            byte[] bytes = new byte[header.getCompressed_page_size()];
+            f.readFully(position + in.getCount(), bytes);
+            BytesInput decompressed = codecFactory.getDecompressor(chunk.getCodec())
+                    .decompress(BytesInput.from(bytes), header.getUncompressed_page_size());
+            DictionaryPage page = new DictionaryPage(
+                    decompressed,
+                    header.getUncompressed_page_size(),
+                    dictionaryHeader.getNum_values(),
+                    converter.getEncoding(dictionaryHeader.getEncoding()));
+            return page.getEncoding().initDictionary(column, page);
+        }
+
+        void close() throws IOException {
+            if (f != null) {
+                f.close();
+            }
+            if (codecFactory != null) {
+                codecFactory.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.hadoop;
+
+import com.google.common.io.CountingInputStream;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.parquet.bytes.BytesInput;
+import org.apache.parquet.column.ColumnDescriptor;
+import org.apache.parquet.column.page.DataPage;
+import org.apache.parquet.column.page.DataPageV1;
+import org.apache.parquet.column.page.DataPageV2;
+import org.apache.parquet.column.page.DictionaryPage;
+import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.column.page.PageReader;
+import org.apache.parquet.column.statistics.Statistics;
+import org.apache.parquet.format.DataPageHeader;
+import org.apache.parquet.format.DataPageHeaderV2;
+import org.apache.parquet.format.DictionaryPageHeader;
+import org.apache.parquet.format.PageHeader;
+import org.apache.parquet.format.Util;
+import org.apache.parquet.format.converter.ParquetMetadataConverter;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnPath;
+import org.apache.parquet.io.ParquetDecodingException;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntList;
+import org.apache.parquet.schema.MessageType;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A row group of which only the pages containing the given row ids are read.
+ *
+ * Parquet 1.8 has no page offset index, so the page headers of each column chunk are read one
+ * by one to locate the pages, and the bodies of the pages without any row id are skipped.
+ * The kept pages are decompressed lazily by {@link ColumnChunkPageReadStore.ColumnChunkPageReader}.
+ *
+ * Rows of a page are only known for columns that are not repeated, where each value is a row,
+ * see {@link #isSupported(MessageType)}.
+ *
+ * Row groups where most rows are hit are read with {@link #readAll}, each column chunk in one
+ * sequential read, as many small reads of nearly all the pages cost more than a full read.
+ */
+public class IndexedPageReadStore implements PageReadStore {
+
+    // Enough for the headers without long statistics, larger ones are read on demand
+    private static final int HEADER_BUFFER_SIZE = 256;
+
+    private static final ParquetMetadataConverter converter = new ParquetMetadataConverter();
+
+    private final long rowCount;
+
+    private final Map<ColumnDescriptor, IndexedColumnChunk> columns = new HashMap<>();
+
+    private IndexedPageReadStore(long rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    public static boolean isSupported(MessageType requestedSchema) {
+        for (ColumnDescriptor column : requestedSchema.getColumns()) {
+            if (column.getMaxRepetitionLevel() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read all the pages of the row group, each column chunk in one read.
+     */
+    public static IndexedPageReadStore readAll(
+            FSDataInputStream f,
+            BlockMetaData block,
+            MessageType requestedSchema,
+            CodecFactory codecFactory) throws IOException {
+        return read(f, block, requestedSchema, null, codecFactory);
+    }
+
+    /**
+     * @param rowIdList sorted row ids in the row group, or null to read all the pages
+     */
+    public static IndexedPageReadStore read(
+            FSDataInputStream f,
+            BlockMetaData block,
+            MessageType requestedSchema,
+            IntList rowIdList,
+            CodecFactory codecFactory) throws IOException {
+        Map<ColumnPath, ColumnChunkMetaData> chunks = new HashMap<>();
+        for (ColumnChunkMetaData chunk : block.getColumns()) {
+            chunks.put(chunk.getPath(), chunk);
+        }
+        IndexedPageReadStore store = new IndexedPageReadStore(block.getRowCount());
+        for (ColumnDescriptor column : requestedSchema.getColumns()) {
+            ColumnChunkMetaData chunk = chunks.get(ColumnPath.get(column.getPath()));
+            if (chunk == null) {
+                throw new ParquetDecodingException("Column chunk not found for " + column);
+            }
+            store.columns.put(column, readColumnChunk(f, chunk, column, rowIdList, codecFactory));
+        }
+        return store;
+    }
+
+    /**
+     * @param rowIdList sorted row ids in the row group, or null to keep all the pages
+     */
+    private static IndexedColumnChunk readColumnChunk(
+            FSDataInputStream f,
+            ColumnChunkMetaData chunk,
+            ColumnDescriptor column,
+            IntList rowIdList,
+            CodecFactory codecFactory) throws IOException {
+        List<DataPage> pages = new ArrayList<>();
+        List<Long> firstRows = new ArrayList<>();
+        DictionaryPage dictionaryPage = null;
+        long position = chunk.getStartingPos();
+        ChunkSource source = rowIdList == null
+                ? new BufferedChunkSource(f, chunk) : new ChunkSource(f);
+        long valuesRead = 0;
+        int index = 0;
+        while (valuesRead < chunk.getValueCount()) {
+            CountingInputStream in = new CountingInputStream(source.headerStream(position));
+            PageHeader header = Util.readPageHeader(in);
+            source.onHeaderRead(in.getCount());
+            long bodyPosition = position + in.getCount();
+            int compressedSize = header.getCompressed_page_size();
+            int uncompressedSize = header.getUncompressed_page_size();
+            switch (header.getType()) {
+                case DICTIONARY_PAGE:
+                    DictionaryPageHeader dictionaryHeader = header.getDictionary_page_header();
+                    dictionaryPage = new DictionaryPage(
+                            source.readBody(bodyPosition, compressedSize),
+                            uncompressedSize,
+                            dictionaryHeader.getNum_values(),
+                            converter.getEncoding(dictionaryHeader.getEncoding()));
+                    break;
+                case DATA_PAGE:
+                    DataPageHeader headerV1 = header.getData_page_header();
+                    int valueCount = headerV1.getNum_values();
+                    index = skipRowIdsBefore(rowIdList, index, valuesRead);
+                    if (containsRowId(rowIdList, index, valuesRead + valueCount)) {
+                        firstRows.add(valuesRead);
+                        pages.add(new DataPageV1(
+                                source.readBody(bodyPosition, compressedSize),
+                                valueCount,
+                                uncompressedSize,
+                                Statistics.getStatsBasedOnType(column.getType()),
+                                converter.getEncoding(headerV1.getRepetition_level_encoding()),
+                                converter.getEncoding(headerV1.getDefinition_level_encoding()),
+                                converter.getEncoding(headerV1.getEncoding())));
+                    }
+                    valuesRead += valueCount;
+                    break;
+                case DATA_PAGE_V2:
+                    DataPageHeaderV2 headerV2 = header.getData_page_header_v2();
+                    index = skipRowIdsBefore(rowIdList, index, valuesRead);
+                    if (containsRowId(rowIdList, index, valuesRead + headerV2.getNum_rows())) {
+                        int rlSize = headerV2.getRepetition_levels_byte_length();
+                        int dlSize = headerV2.getDefinition_levels_byte_length();
+                        firstRows.add(valuesRead);
+                        pages.add(new DataPageV2(
+                                headerV2.getNum_rows(),
+                                headerV2.getNum_nulls(),
+                                headerV2.getNum_values(),
+                                source.readBody(bodyPosition, rlSize),
+                                source.readBody(bodyPosition + rlSize, dlSize),
+                                converter.getEncoding(headerV2.getEncoding()),
+                                source.readBody(bodyPosition + rlSize + dlSize,
+                                        compressedSize - rlSize - dlSize),
+                                uncompressedSize,
+                                Statistics.getStatsBasedOnType(column.getType()),
+                                headerV2.isIs_compressed()));
+                    }
+                    valuesRead += headerV2.getNum_values();
+                    break;
+                default:
+                    // Index pages etc.
+                    break;
+            }
+            position = bodyPosition + compressedSize;
+        }
+        long[] pageFirstRows = new long[firstRows.size()];
+        int[] pageRowCounts = new int[firstRows.size()];
+        for (int i = 0; i < pageFirstRows.length; i++) {
+            pageFirstRows[i] = firstRows.get(i);
+            pageRowCounts[i] = pages.get(i).getValueCount();
+        }
+        PageReader reader = new ColumnChunkPageReadStore.ColumnChunkPageReader(
+                codecFactory.getDecompressor(chunk.getCodec()), pages, dictionaryPage);
+        return new IndexedColumnChunk(reader, pageFirstRows, pageRowCounts, source.bytesRead);
+    }
+
+    private static int skipRowIdsBefore(IntList rowIdList, int index, long row) {
+        while (rowIdList != null && index < rowIdList.size() && rowIdList.getInt(index) < row) {
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean containsRowId(IntList rowIdList, int index, long end) {
+        return rowIdList == null || (index < rowIdList.size() && rowIdList.getInt(index) < end);
+    }
+
+    /**
+     * Reads the page headers and bodies of a column chunk from the file.
+     */
+    private static class ChunkSource {
+        final FSDataInputStream f;
+        long bytesRead = 0;
+
+        ChunkSource(FSDataInputStream f) {
+            this.f = f;
+        }
+
+        void onHeaderRead(long size) {
+            bytesRead += size;
+        }
+
+        InputStream headerStream(long position) throws IOException {
+            f.seek(position);
+            return new BufferedInputStream(f, HEADER_BUFFER_SIZE);
+        }
+
+        BytesInput readBody(long position, int size) throws IOException {
+            byte[] bytes = new byte[size];
+            f.readFully(position, bytes);
+            bytesRead += size;
+            return BytesInput.from(bytes);
+        }
+    }
+
+    /**
+     * Reads the whole column chunk at once, and the pages from the buffer.
+     */
+    private static class BufferedChunkSource extends ChunkSource {
+        private final long start;
+        private final byte[] bytes;
+
+        BufferedChunkSource(FSDataInputStream f, ColumnChunkMetaData chunk) throws IOException {
+            super(f);
+            this.start = chunk.getStartingPos();
+            this.bytes = new byte[(int) chunk.getTotalSize()];
+            f.readFully(start, bytes);
+            this.bytesRead = bytes.length;
+        }
+
+        @Override
+        void onHeaderRead(long size) {
+            // Already counted
+        }
+
+        @Override
+        InputStream headerStream(long position) {
+            int offset = (int) (position - start);
+            return new ByteArrayInputStream(bytes, offset, bytes.length - offset);
+        }
+
+        @Override
+        BytesInput readBody(long position, int size) {
+            return BytesInput.from(bytes, (int) (position - start), size);
+        }
+    }
+
+    @Override
+    public PageReader getPageReader(ColumnDescriptor descriptor) {
+        return chunkOf(descriptor).reader;
+    }
+
+    @Override
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the bytes read from the file for the column chunks, page headers included
+     */
+    public long getBytesRead() {
+        long bytesRead = 0;
+        for (IndexedColumnChunk chunk : columns.values()) {
+            bytesRead += chunk.bytesRead;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * @return the row of the first value of each page returned by the page reader
+     */
+    public long[] getPageFirstRows(ColumnDescriptor descriptor) {
+        return chunkOf(descriptor).pageFirstRows;
+    }
+
+    /**
+     * @return the row count of each page returned by the page reader
+     */
+    public int[] getPageRowCounts(ColumnDescriptor descriptor) {
+        return chunkOf(descriptor).pageRowCounts;
+    }
+
+    private IndexedColumnChunk chunkOf(ColumnDescriptor descriptor) {
+        IndexedColumnChunk chunk = columns.get(descriptor);
+        if (chunk == null) {
+            throw new IllegalArgumentException(descriptor + " is not in the store: "
+                    + columns.keySet() + " rows: " + rowCount);
+        }
+        return chunk;
+    }
+
+    private static class IndexedColumnChunk {
+        final PageReader reader;
+        final long[] pageFirstRows;
+        final int[] pageRowCounts;
+        final long bytesRead;
+
+        IndexedColumnChunk(PageReader reader, long[] pageFirstRows, int[] pageRowCounts,
+                           long bytesRead) {
+            this.reader = reader;
+            this.pageFirstRows = pageFirstRows;
+            this.pageRowCounts = pageRowCounts;
+            this.bytesRead = bytesRead;
+        }
+    }
+}
@@ -17,9 +17,13 @@
 package org.apache.parquet.hadoop;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
 import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.filter2.compat.FilterCompat;
 import org.apache.parquet.hadoop.api.InitContext;
 import org.apache.parquet.hadoop.api.ReadSupport;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
 import org.apache.parquet.hadoop.metadata.FileMetaData;
 import org.apache.parquet.hadoop.metadata.IndexedParquetMetadata;
 import org.apache.parquet.io.*;
@@ -31,6 +35,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import static java.lang.String.format;
 import static org.apache.parquet.Log.DEBUG;
@@ -38,15 +43,23 @@ import static org.apache.parquet.hadoop.ParquetInputFormat.STRICT_TYPE_CHECKING;
 
 public class InternalOapRecordReader<T> {
 
+    public static final String PAGE_SKIPPING_ENABLED = "spark.sql.oap.parquet.pageSkipping.enable";
+
+    public static final String DENSE_ROW_GROUP_THRESHOLD =
+            "spark.sql.oap.parquet.denseRowGroupThreshold";
+
+    private static final double DEFAULT_DENSE_ROW_GROUP_THRESHOLD = 0.3;
+
     private static final Logger LOG = LoggerFactory.getLogger(InternalOapRecordReader.class);
 
     private ColumnIOFactory columnIOFactory;
 
     private MessageType requestedSchema;
     private MessageType fileSchema;
-    private int columnCount;
     private final ReadSupport<T> readSupport;
 
+    private final FilterCompat.Filter filter;
+
     private RecordMaterializer<T> recordConverter;
 
     private T currentValue;
@@ -62,51 +75,113 @@ public class InternalOapRecordReader<T> {
 
     private RecordReader<T> recordReader;
 
-    private Iterator<IntList> rowIdsIter;
+    private List<IntList> rowIdsList;
 
     private String createdBy;
 
-    private ParquetReadMetrics metrics;
+    private final ParquetReadMetrics metrics;
+
+    private boolean pageSkipping;
+
+    // Row groups with a higher ratio of rows hit are read and decoded sequentially
+    private double denseThreshold;
+
+    private List<BlockMetaData> blocks;
+
+    private FSDataInputStream f;
+
+    private CodecFactory codecFactory;
+
+    private RowGroupPrefetcher prefetcher;
+
+    // Times the row groups read with page skipping, the others are timed by the file reader
+    private RowGroupTimer timer;
 
     /**
      * @param readSupport Object which helps reads files of the given type, e.g. Thrift, Avro.
+     * @param filter for filtering individual records
+     * @param metrics updated with the bytes of the pages read
      */
-    InternalOapRecordReader(ReadSupport<T> readSupport) {
+    InternalOapRecordReader(
+            ReadSupport<T> readSupport,
+            FilterCompat.Filter filter,
+            ParquetReadMetrics metrics) {
         this.readSupport = readSupport;
+        this.filter = filter;
+        this.metrics = metrics;
     }
 
     private void checkRead() throws IOException {
         if (current == totalCountLoadedSoFar) {
-            if (current != 0) {
-                metrics.recordMetrics(totalCountLoadedSoFar,columnCount);
+            LOG.debug("at row {}. reading next block", current);
+            IntList rowIdList = rowIdsList.get(currentBlock + 1);
+            boolean dense = isDense(currentBlock + 1);
+            PageReadStore pages;
+            if (pageSkipping) {
+                // Only the pages containing the row ids are read
+                long readStart = timer.beforeRead();
+                pages = prefetcher.next(readIndexedPages(currentBlock + 1));
+                timer.afterRead(readStart, pages != null);
+                metrics.incBytesRead(((IndexedPageReadStore) pages).getBytesRead());
+                if (currentBlock + 2 < blocks.size()) {
+                    prefetcher.prefetch(readIndexedPages(currentBlock + 2));
+                }
+            } else {
+                pages = reader.readNextRowGroup();
             }
-
-            LOG.info("at row " + current + ". reading next block");
-            metrics.startReadOneRowGroup();
-            PageReadStore pages = reader.readNextRowGroup();
             checkIOState(pages);
-            metrics.overReadOneRowGroup(pages);
             if (LOG.isDebugEnabled()) {
                 LOG.debug("initializing Record assembly with requested schema {}", requestedSchema);
             }
             MessageColumnIO columnIO =
                     columnIOFactory.getColumnIO(requestedSchema, fileSchema, strictTypeChecking);
-            IntList rowIdList = rowIdsIter.next();
-            this.recordReader = getRecordReader(columnIO,pages,rowIdList);
-            metrics.startRecordAssemblyTime();
+            this.recordReader = getRecordReader(columnIO, pages, rowIdList, dense);
             totalCountLoadedSoFar += rowIdList.size();
             ++currentBlock;
         }
     }
 
-    private RecordReader<T> getRecordReader(MessageColumnIO columnIO, PageReadStore pages, IntList rowIdList) {
-        return RecordReaderFactory.getRecordReader(columnIO, pages, recordConverter, createdBy, rowIdList);
+    private boolean isDense(int block) {
+        return rowIdsList.get(block).size() >= denseThreshold * blocks.get(block).getRowCount();
+    }
+
+    private Callable<PageReadStore> readIndexedPages(final int block) {
+        return new Callable<PageReadStore>() {
+            @Override
+            public PageReadStore call() throws IOException {
+                if (isDense(block)) {
+                    // Most pages are needed, read the column chunks at once
+                    return IndexedPageReadStore.readAll(
+                            f, blocks.get(block), requestedSchema, codecFactory);
+                }
+                return IndexedPageReadStore.read(f, blocks.get(block), requestedSchema,
+                        rowIdsList.get(block), codecFactory);
+            }
+        };
+    }
+
+    private RecordReader<T> getRecordReader(
+            MessageColumnIO columnIO, PageReadStore pages, IntList rowIdList, boolean dense) {
+        return RecordReaderFactory.getRecordReader(
+                columnIO, pages, recordConverter, createdBy, rowIdList, filter, dense);
     }
 
     public void close() throws IOException {
+        if (timer != null) {
+            timer.close();
+        }
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
         if (reader != null) {
             reader.close();
         }
+        if (f != null) {
+            f.close();
+        }
+        if (codecFactory != null) {
+            codecFactory.release();
+        }
     }
 
     public void initialize(ParquetFileReader parquetFileReader, Configuration configuration)
@@ -120,17 +195,26 @@ public class InternalOapRecordReader<T> {
         this.createdBy = parquetFileMetadata.getCreatedBy();
         this.columnIOFactory = new ColumnIOFactory(createdBy);
         this.requestedSchema = readContext.getRequestedSchema();
-        this.columnCount = requestedSchema.getPaths().size();
         this.recordConverter = readSupport.prepareForRead(
                 configuration, fileMetadata, fileSchema, readContext);
         this.strictTypeChecking = configuration.getBoolean(STRICT_TYPE_CHECKING, true);
-        List<IntList> rowIdsList = ((IndexedParquetMetadata)parquetFileReader.getFooter()).getRowIdsList();
-        this.rowIdsIter = rowIdsList.iterator();
+        this.rowIdsList = ((IndexedParquetMetadata)parquetFileReader.getFooter()).getRowIdsList();
         for (IntList rowIdList : rowIdsList) {
             total += rowIdList.size();
         }
         this.reader.setRequestedSchema(requestedSchema);
-        this.metrics = new ParquetReadMetrics();
+        this.blocks = parquetFileReader.getFooter().getBlocks();
+        this.denseThreshold = configuration.getDouble(
+                DENSE_ROW_GROUP_THRESHOLD, DEFAULT_DENSE_ROW_GROUP_THRESHOLD);
+        this.pageSkipping = configuration.getBoolean(PAGE_SKIPPING_ENABLED, true)
+                && IndexedPageReadStore.isSupported(requestedSchema);
+        if (pageSkipping) {
+            Path path = parquetFileReader.getPath();
+            this.f = path.getFileSystem(configuration).open(path);
+            this.codecFactory = new CodecFactory(configuration);
+            this.prefetcher = new RowGroupPrefetcher(configuration);
+            this.timer = new RowGroupTimer(metrics);
+        }
         LOG.info("RecordReader initialized will read a total of {} records.", total);
     }
 
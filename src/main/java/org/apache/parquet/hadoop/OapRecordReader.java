@@ -22,6 +22,8 @@ import com.google.common.collect.Lists;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.parquet.Preconditions;
+import org.apache.parquet.filter2.compat.FilterCompat;
+import org.apache.parquet.filter2.compat.RowGroupFilter;
 import org.apache.parquet.hadoop.api.ReadSupport;
 import org.apache.parquet.hadoop.api.RecordReader;
 import org.apache.parquet.hadoop.metadata.BlockMetaData;
@@ -29,9 +31,13 @@ import org.apache.parquet.hadoop.metadata.IndexedParquetMetadata;
 import org.apache.parquet.hadoop.metadata.ParquetMetadata;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntList;
+import org.apache.parquet.schema.MessageType;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.apache.parquet.format.converter.ParquetMetadataConverter.NO_FILTER;
 import static org.apache.parquet.hadoop.ParquetFileReader.readFooter;
@@ -42,6 +48,8 @@ public class OapRecordReader<T> implements RecordReader<T> {
     private Path file;
     private int[] globalRowIds;
     private ParquetMetadata footer;
+    private FilterCompat.Filter filter;
+    private ParquetReadMetrics metrics;
 
     private InternalOapRecordReader<T> internalReader;
 
@@ -51,13 +59,17 @@ public class OapRecordReader<T> implements RecordReader<T> {
                         Path file,
                         Configuration configuration,
                         int[] globalRowIds,
-                        ParquetMetadata footer) {
+                        ParquetMetadata footer,
+                        FilterCompat.Filter filter,
+                        ParquetReadMetrics metrics) {
         Preconditions.checkNotNull(globalRowIds,"index collection can not be null!");
         this.readSupport = readSupport;
         this.file = file;
         this.configuration = configuration;
         this.globalRowIds = globalRowIds;
         this.footer = footer;
+        this.filter = filter;
+        this.metrics = metrics;
     }
 
     @Override
@@ -82,6 +94,12 @@ public class OapRecordReader<T> implements RecordReader<T> {
         }
 
         List<BlockMetaData> blocks = footer.getBlocks();
+        // Row groups not matching the filter by statistics or dictionaries are skipped
+        MessageType fileSchema = footer.getFileMetaData().getSchema();
+        Set<BlockMetaData> matchedBlocks = new HashSet<>(DictionaryRowGroupFilter.filterRowGroups(
+                configuration, file, filter,
+                RowGroupFilter.filterRowGroups(filter, blocks, fileSchema),
+                fileSchema));
 
         List<BlockMetaData> inputBlockList = Lists.newArrayList();
 
@@ -94,27 +112,26 @@ public class OapRecordReader<T> implements RecordReader<T> {
         for (BlockMetaData block : blocks) {
             int currentRowGroupStartRowId = nextRowGroupStartRowId;
             nextRowGroupStartRowId += block.getRowCount();
-            IntList rowIdList = new IntArrayList();
-            while (index < totalCount) {
-                int globalRowGroupId = globalRowIds[index];
-                if (globalRowGroupId < nextRowGroupStartRowId) {
-                    rowIdList.add(globalRowGroupId - currentRowGroupStartRowId);
-                    index++;
-                } else {
-                    break;
+            // globalRowIds is sorted, find the end of the row ids in this row group at once
+            int end = Arrays.binarySearch(globalRowIds, index, totalCount, nextRowGroupStartRowId);
+            end = end < 0 ? -end - 1 : end;
+            if (end > index && !matchedBlocks.contains(block)) {
+                metrics.incRowGroupsSkipped(1);
+            } else if (end > index) {
+                int[] rowIds = new int[end - index];
+                for (int i = 0; i < rowIds.length; i++) {
+                    rowIds[i] = globalRowIds[index + i] - currentRowGroupStartRowId;
                 }
-
-            }
-            if (!rowIdList.isEmpty()) {
                 inputBlockList.add(block);
-                rowIdsList.add(rowIdList);
+                rowIdsList.add(IntArrayList.wrap(rowIds));
             }
+            index = end;
         }
         IndexedParquetMetadata indexedFooter =
                 new IndexedParquetMetadata(footer.getFileMetaData(), inputBlockList,rowIdsList);
-        ParquetFileReader parquetFileReader = ParquetFileReader.open(configuration, file,
-                indexedFooter);
-        this.internalReader = new InternalOapRecordReader<>(readSupport);
+        ParquetFileReader parquetFileReader =
+                new PrefetchingParquetFileReader(configuration, file, indexedFooter, metrics);
+        this.internalReader = new InternalOapRecordReader<>(readSupport, filter, metrics);
         this.internalReader.initialize(parquetFileReader, configuration);
 
     }
@@ -1,55 +1,66 @@
 package org.apache.parquet.hadoop;
 
-import org.apache.parquet.column.page.PageReadStore;
-import org.apache.parquet.hadoop.util.counters.BenchmarkCounter;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.schema.MessageType;
 
+/**
+ * Metrics of a parquet record reader, updated by the thread consuming the records. This class
+ * only keeps the totals, the scan passes a subclass reporting them to the metrics of the query.
+ */
 public class ParquetReadMetrics {
 
-    private static final Logger LOG = LoggerFactory.getLogger(ParquetReadMetrics.class);
+    private long rowGroupsSkipped;
+    private long bytesRead;
+    private long decodeTimeNanos;
+    private long readTimeNanos;
 
-    private long totalTimeSpentReadingBytes;
-    private long totalTimeSpentProcessingRecords;
-    private long startedAssemblingCurrentBlockAt;
-    private long readRowGroupStart;
+    public void incRowGroupsSkipped(long count) {
+        rowGroupsSkipped += count;
+    }
 
-    public void startRecordAssemblyTime(){
-        this.startedAssemblingCurrentBlockAt = System.currentTimeMillis();
+    public void incBytesRead(long bytes) {
+        bytesRead += bytes;
     }
 
-    public void startReadOneRowGroup(){
-        this.readRowGroupStart = System.currentTimeMillis();
+    public void incDecodeTime(long nanos) {
+        decodeTimeNanos += nanos;
     }
 
-    public void overReadOneRowGroup(PageReadStore pages){
-        long timeSpentReading = System.currentTimeMillis() - readRowGroupStart;
-        totalTimeSpentReadingBytes += timeSpentReading;
-        BenchmarkCounter.incrementTime(timeSpentReading);
-        if (LOG.isInfoEnabled()) {
-            LOG.info("block read in memory in {} ms. row count = {}",
-                    timeSpentReading, pages.getRowCount());
-        }
+    /**
+     * @param nanos time waiting for the pages of a row group to be read from the file
+     */
+    public void incReadTime(long nanos) {
+        readTimeNanos += nanos;
+    }
+
+    public long getRowGroupsSkipped() {
+        return rowGroupsSkipped;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
     }
 
-    public void recordMetrics(long totalCountLoadedSoFar, int columnCount){
-        totalTimeSpentProcessingRecords
-                += (System.currentTimeMillis() - startedAssemblingCurrentBlockAt);
-        if (LOG.isInfoEnabled()) {
-            LOG.info("Assembled and processed " + totalCountLoadedSoFar + " records from "
-                    + columnCount + " columns in " + totalTimeSpentProcessingRecords + " ms: "
-                    + ((float) totalCountLoadedSoFar / totalTimeSpentProcessingRecords) + " rec/ms, "
-                    + ((float) totalCountLoadedSoFar * columnCount / totalTimeSpentProcessingRecords)
-                    + " cell/ms");
-            final long totalTime = totalTimeSpentProcessingRecords + totalTimeSpentReadingBytes;
-            if (totalTime != 0) {
-                final long percentReading = 100 * totalTimeSpentReadingBytes / totalTime;
-                final long percentProcessing = 100 * totalTimeSpentProcessingRecords / totalTime;
-                LOG.info("time spent so far " + percentReading + "% reading ("
-                        + totalTimeSpentReadingBytes + " ms) and " + percentProcessing
-                        + "% processing (" + totalTimeSpentProcessingRecords + " ms)");
+    public long getDecodeTimeNanos() {
+        return decodeTimeNanos;
+    }
+
+    public long getReadTimeNanos() {
+        return readTimeNanos;
+    }
+
+    /**
+     * @return the size of the column chunks of `requestedSchema` in `block`
+     */
+    public static long chunkBytes(BlockMetaData block, MessageType requestedSchema) {
+        long bytes = 0;
+        for (ColumnChunkMetaData chunk : block.getColumns()) {
+            String[] path = chunk.getPath().toArray();
+            if (requestedSchema == null || requestedSchema.containsPath(path)) {
+                bytes += chunk.getTotalSize();
             }
         }
+        return bytes;
     }
-
 }
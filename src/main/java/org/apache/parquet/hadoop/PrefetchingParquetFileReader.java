@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.hadoop.metadata.ParquetMetadata;
+import org.apache.parquet.schema.MessageType;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * A {@link ParquetFileReader} reading the row group after the one returned in background.
+ *
+ * Row groups are still read one at a time, the next read is only started after the previous
+ * one is done, so the underlying stream is never used concurrently.
+ */
+public class PrefetchingParquetFileReader extends ParquetFileReader {
+
+    private final RowGroupPrefetcher prefetcher;
+
+    private final ParquetReadMetrics metrics;
+
+    private final RowGroupTimer timer;
+
+    private MessageType requestedSchema;
+
+    private int nextRowGroup = 0;
+
+    private final Callable<PageReadStore> readNext = new Callable<PageReadStore>() {
+        @Override
+        public PageReadStore call() throws IOException {
+            return PrefetchingParquetFileReader.super.readNextRowGroup();
+        }
+    };
+
+    public PrefetchingParquetFileReader(Configuration configuration, Path file,
+                                        ParquetMetadata footer) throws IOException {
+        this(configuration, file, footer, new ParquetReadMetrics());
+    }
+
+    public PrefetchingParquetFileReader(Configuration configuration, Path file,
+                                        ParquetMetadata footer,
+                                        ParquetReadMetrics metrics) throws IOException {
+        super(configuration, file, footer);
+        this.prefetcher = new RowGroupPrefetcher(configuration);
+        this.metrics = metrics;
+        this.timer = new RowGroupTimer(metrics);
+    }
+
+    @Override
+    public void setRequestedSchema(MessageType projection) {
+        super.setRequestedSchema(projection);
+        this.requestedSchema = projection;
+    }
+
+    @Override
+    public PageReadStore readNextRowGroup() throws IOException {
+        long readStart = timer.beforeRead();
+        PageReadStore pages = prefetcher.next(readNext);
+        timer.afterRead(readStart, pages != null);
+        if (pages != null) {
+            // Metrics are updated by the caller thread, not the prefetching one
+            metrics.incBytesRead(ParquetReadMetrics.chunkBytes(
+                    getRowGroups().get(nextRowGroup++), requestedSchema));
+            prefetcher.prefetch(readNext);
+        }
+        return pages;
+    }
+
+    @Override
+    public void close() throws IOException {
+        timer.close();
+        prefetcher.close();
+        super.close();
+    }
+}
@@ -2,6 +2,7 @@ package org.apache.parquet.hadoop;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
+import org.apache.parquet.filter2.compat.FilterCompat;
 import org.apache.parquet.hadoop.api.ReadSupport;
 import org.apache.parquet.hadoop.api.RecordReader;
 import org.apache.parquet.hadoop.metadata.ParquetMetadata;
@@ -18,6 +19,8 @@ public class RecordReaderBuilder<T> {
     private Configuration conf;
     private int[] globalRowIds = new int[0];
     private ParquetMetadata footer;
+    private FilterCompat.Filter filter = FilterCompat.NOOP;
+    private ParquetReadMetrics metrics = new ParquetReadMetrics();
 
     private RecordReaderBuilder(ReadSupport<T> readSupport, Path path, Configuration conf) {
         this.readSupport = checkNotNull(readSupport, "readSupport");
@@ -41,13 +44,24 @@ public class RecordReaderBuilder<T> {
         return this;
     }
 
+    public RecordReaderBuilder<T> withFilter(FilterCompat.Filter filter) {
+        this.filter = checkNotNull(filter, "filter");
+        return this;
+    }
+
+    public RecordReaderBuilder<T> withMetrics(ParquetReadMetrics metrics) {
+        this.metrics = checkNotNull(metrics, "metrics");
+        return this;
+    }
+
     public RecordReader<T> buildDefault() throws IOException {
-        return new DefaultRecordReader<>(readSupport, file, conf, footer);
+        return new DefaultRecordReader<>(readSupport, file, conf, footer, filter, metrics);
     }
 
 
     public RecordReader<T> buildIndexed() throws IOException {
-        return new OapRecordReader<>(readSupport, file, conf, globalRowIds, footer);
+        return new OapRecordReader<>(
+                readSupport, file, conf, globalRowIds, footer, filter, metrics);
     }
 
     public static <T> RecordReaderBuilder<T> builder(ReadSupport<T> readSupport, Path path) {
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.hadoop;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.column.page.PageReadStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read the next row group on a shared I/O thread pool while the current one is being assembled,
+ * so that reading bytes and decoding records overlap.
+ *
+ * Each reader has at most one row group read ahead, which bounds the memory to two row groups
+ * per reader. The pool is shared by all the readers of the executor, its size is set by
+ * {@link #PREFETCH_THREADS} of the first reader.
+ */
+class RowGroupPrefetcher {
+
+    public static final String PREFETCH_ENABLED = "spark.sql.oap.parquet.prefetch.enable";
+
+    public static final String PREFETCH_THREADS = "spark.sql.oap.parquet.prefetch.threads";
+
+    private static final Logger LOG = LoggerFactory.getLogger(RowGroupPrefetcher.class);
+
+    private static volatile ThreadPoolExecutor pool;
+
+    private static ThreadPoolExecutor getPool(Configuration configuration) {
+        if (pool == null) {
+            synchronized (RowGroupPrefetcher.class) {
+                if (pool == null) {
+                    int threads = configuration.getInt(PREFETCH_THREADS, 4);
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                            threads, threads, 60L, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactoryBuilder()
+                                    .setDaemon(true)
+                                    .setNameFormat("oap-parquet-prefetch-%d")
+                                    .build());
+                    executor.allowCoreThreadTimeOut(true);
+                    LOG.info("Created row group prefetch pool with {} threads", threads);
+                    pool = executor;
+                }
+            }
+        }
+        return pool;
+    }
+
+    // null if prefetch is disabled
+    private final ThreadPoolExecutor executor;
+
+    private Future<PageReadStore> pending;
+
+    RowGroupPrefetcher(Configuration configuration) {
+        this.executor =
+                configuration.getBoolean(PREFETCH_ENABLED, true) ? getPool(configuration) : null;
+    }
+
+    /**
+     * Start reading a row group in background, the result is got by the next {@link #next}.
+     */
+    void prefetch(Callable<PageReadStore> read) {
+        if (executor != null) {
+            pending = executor.submit(read);
+        }
+    }
+
+    /**
+     * @return the row group prefetched, or read by `read` in the current thread if there is none
+     */
+    PageReadStore next(Callable<PageReadStore> read) throws IOException {
+        Future<PageReadStore> future = pending;
+        pending = null;
+        try {
+            if (future == null) {
+                return read.call();
+            }
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading row group");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to read row group", cause);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to read row group", e);
+        }
+    }
+
+    /**
+     * Wait for the row group being read, so that the file can be closed safely.
+     */
+    void close() {
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LOG.debug("Ignore the failure of the row group not used", e.getCause());
+            }
+            pending = null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.hadoop;
+
+/**
+ * Time the row groups of a record reader: the wait for the pages of a row group is read time,
+ * and the time from its pages being returned until the next row group is requested, when its
+ * records are assembled, is decode time.
+ *
+ * The clock is read twice per row group instead of twice per record, so the decode time also
+ * covers the caller consuming the records, as InternalParquetRecordReader counts the time
+ * spent processing records.
+ */
+final class RowGroupTimer {
+
+    private final ParquetReadMetrics metrics;
+
+    // When the pages of the current row group were returned, -1 if there is none
+    private long decodeStart = -1;
+
+    RowGroupTimer(ParquetReadMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Called before the pages of the next row group are requested.
+     *
+     * @return the start of the read
+     */
+    long beforeRead() {
+        long now = System.nanoTime();
+        finishDecode(now);
+        return now;
+    }
+
+    /**
+     * Called after the pages of the next row group are returned.
+     *
+     * @param hasPages if a row group is returned, false at the end of the file
+     */
+    void afterRead(long readStart, boolean hasPages) {
+        long now = System.nanoTime();
+        metrics.incReadTime(now - readStart);
+        decodeStart = hasPages ? now : -1;
+    }
+
+    void close() {
+        finishDecode(System.nanoTime());
+    }
+
+    private void finishDecode(long now) {
+        if (decodeStart >= 0) {
+            metrics.incDecodeTime(now - decodeStart);
+            decodeStart = -1;
+        }
+    }
+}
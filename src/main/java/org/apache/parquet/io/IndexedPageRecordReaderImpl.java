@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.io;
+
+import org.apache.parquet.Preconditions;
+import org.apache.parquet.column.ColumnDescriptor;
+import org.apache.parquet.column.impl.ColumnReadStoreImpl;
+import org.apache.parquet.hadoop.IndexedPageReadStore;
+import org.apache.parquet.io.api.RecordMaterializer;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntList;
+
+/**
+ * Read the rows of rowIdList from an {@link IndexedPageReadStore}, where each column only has
+ * the pages containing the row ids, and the page boundaries differ from column to column.
+ *
+ * Columns are not repeated, so each column is positioned to the row on its own, jumping over
+ * the pages not read, and the record is assembled from the current values of all columns.
+ */
+public class IndexedPageRecordReaderImpl<T> extends RecordReaderImplementation<T> {
+
+    private final IntList rowIdList;
+
+    private int currentIndex = 0;
+
+    // Row of the current value of each column reader
+    private final long[] currentRows;
+
+    // Index of the current page of each column reader
+    private final int[] currentPages;
+
+    private final long[][] pageFirstRows;
+
+    private final int[][] pageRowCounts;
+
+    public IndexedPageRecordReaderImpl(MessageColumnIO root,
+                                       RecordMaterializer<T> recordMaterializer,
+                                       ColumnReadStoreImpl columnStore,
+                                       IndexedPageReadStore pages,
+                                       IntList rowIdList) {
+        super(root, recordMaterializer, false, columnStore);
+        Preconditions.checkNotNull(rowIdList, "rowIdList can not be null.");
+        Preconditions.checkArgument(!rowIdList.isEmpty(), "rowIdList must has item.");
+        this.rowIdList = rowIdList;
+        int columnCount = getStateCount();
+        this.currentRows = new long[columnCount];
+        this.currentPages = new int[columnCount];
+        this.pageFirstRows = new long[columnCount][];
+        this.pageRowCounts = new int[columnCount][];
+        for (int i = 0; i < columnCount; i++) {
+            ColumnDescriptor descriptor = getState(i).column.getDescriptor();
+            pageFirstRows[i] = pages.getPageFirstRows(descriptor);
+            pageRowCounts[i] = pages.getPageRowCounts(descriptor);
+            currentRows[i] = pageFirstRows[i][0];
+        }
+    }
+
+    public T read() {
+        int rowId = rowIdList.getInt(currentIndex);
+        for (int i = 0; i < currentRows.length; i++) {
+            seek(i, rowId);
+        }
+        ++currentIndex;
+        T record = super.read();
+        // The current value of every column is consumed by the assembly
+        for (int i = 0; i < currentRows.length; i++) {
+            moveToNextRow(i);
+        }
+        return record;
+    }
+
+    private void seek(int column, long position) {
+        Preconditions.checkArgument(position >= currentRows[column],
+                "Not support seek to backward position, current row: %s want to read: %s",
+                currentRows[column], position);
+        State state = getState(column);
+        while (currentRows[column] < position) {
+            int page = currentPages[column];
+            long pageEnd = pageFirstRows[column][page] + pageRowCounts[column][page];
+            Preconditions.checkArgument(
+                    position < pageEnd || page + 1 < pageFirstRows[column].length,
+                    "Row %s is not in the pages read", position);
+            long count = Math.min(position, pageEnd) - currentRows[column];
+            ValuesSkipper.skip(state, count);
+            currentRows[column] += count - 1;
+            moveToNextRow(column);
+        }
+    }
+
+    private void moveToNextRow(int column) {
+        currentRows[column]++;
+        int page = currentPages[column];
+        long pageEnd = pageFirstRows[column][page] + pageRowCounts[column][page];
+        if (currentRows[column] == pageEnd && page + 1 < pageFirstRows[column].length) {
+            // The next value is from the next page read
+            currentPages[column] = page + 1;
+            currentRows[column] = pageFirstRows[column][page + 1];
+        }
+    }
+}
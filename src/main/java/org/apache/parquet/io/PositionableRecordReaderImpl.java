@@ -34,6 +34,8 @@ public class PositionableRecordReaderImpl<T> extends RecordReaderImplementation<
 
     private int currentIndex = 0;
 
+    private final boolean flat;
+
     public PositionableRecordReaderImpl(MessageColumnIO root,
                                         RecordMaterializer<T> recordMaterializer,
                                         ColumnReadStoreImpl columnStore,
@@ -44,6 +46,7 @@ public class PositionableRecordReaderImpl<T> extends RecordReaderImplementation<
         Preconditions.checkArgument(!rowIdList.isEmpty(), "rowIdList must has item.");
         this.recordMaxCount = recordCount;
         this.rowIdList = rowIdList;
+        this.flat = ValuesSkipper.isFlat(this);
     }
 
     public T read() {
@@ -65,6 +68,15 @@ public class PositionableRecordReaderImpl<T> extends RecordReaderImplementation<
                 "Not support seek to backward position, recordsRead: %s want to read: %s", recordsRead, position);
         Preconditions.checkArgument(position < recordMaxCount, "Seek position must less than recordCount");
 
+        if (flat) {
+            // Each column has one value per record, skip them column by column
+            for (int i = 0; i < getStateCount(); i++) {
+                ValuesSkipper.skip(getState(i), position - recordsRead);
+            }
+            recordsRead = position;
+            return;
+        }
+
         while (recordsRead < position) {
             State currentState = getState(0);
             do {
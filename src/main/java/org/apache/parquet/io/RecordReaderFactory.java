@@ -3,6 +3,12 @@ package org.apache.parquet.io;
 
 import org.apache.parquet.column.impl.ColumnReadStoreImpl;
 import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.filter2.compat.FilterCompat;
+import org.apache.parquet.filter2.predicate.FilterPredicate;
+import org.apache.parquet.filter2.recordlevel.FilteringRecordMaterializer;
+import org.apache.parquet.filter2.recordlevel.IncrementallyUpdatedFilterPredicate;
+import org.apache.parquet.filter2.recordlevel.IncrementallyUpdatedFilterPredicateBuilder;
+import org.apache.parquet.hadoop.IndexedPageReadStore;
 import org.apache.parquet.io.api.RecordMaterializer;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntList;
 
@@ -12,10 +18,33 @@ import static org.apache.parquet.Preconditions.checkNotNull;
 
 public class RecordReaderFactory {
 
+    public static <T> RecordReader<T> getRecordReader(MessageColumnIO root, PageReadStore columns,
+                                                      RecordMaterializer<T> recordMaterializer,
+                                                      String createdBy,
+                                                      IntList rowIdList) {
+        return getRecordReader(
+                root, columns, recordMaterializer, createdBy, rowIdList, FilterCompat.NOOP);
+    }
+
     public static <T> RecordReader<T> getRecordReader(MessageColumnIO root, PageReadStore columns,
                                                RecordMaterializer<T> recordMaterializer,
                                                String createdBy,
-                                                      IntList rowIdList) {
+                                                      IntList rowIdList,
+                                                      FilterCompat.Filter filter) {
+        return getRecordReader(
+                root, columns, recordMaterializer, createdBy, rowIdList, filter, false);
+    }
+
+    /**
+     * @param sequential read the row ids in order from a row group with all the pages read,
+     *                   instead of positioning to each row id
+     */
+    public static <T> RecordReader<T> getRecordReader(MessageColumnIO root, PageReadStore columns,
+                                                      RecordMaterializer<T> recordMaterializer,
+                                                      String createdBy,
+                                                      IntList rowIdList,
+                                                      FilterCompat.Filter filter,
+                                                      boolean sequential) {
         checkNotNull(root, "messageColumnIO");
         checkNotNull(columns, "columns");
         checkNotNull(recordMaterializer, "recordMaterializer");
@@ -26,10 +55,43 @@ public class RecordReaderFactory {
             return new EmptyRecordReader<>(recordMaterializer);
         }
 
+        if (filter instanceof FilterCompat.FilterPredicateCompat) {
+            // Records not matching the predicate are returned as null, the same as
+            // MessageColumnIO.getRecordReader does
+            FilterPredicate predicate =
+                    ((FilterCompat.FilterPredicateCompat) filter).getFilterPredicate();
+            IncrementallyUpdatedFilterPredicateBuilder builder =
+                    new IncrementallyUpdatedFilterPredicateBuilder();
+            IncrementallyUpdatedFilterPredicate streamingPredicate = builder.build(predicate);
+            recordMaterializer = new FilteringRecordMaterializer<>(
+                    recordMaterializer, leaves, builder.getValueInspectorsByColumn(), streamingPredicate);
+        }
+
+        // The readers skip the values between the row ids run by run
+        if (sequential) {
+            return new SequentialRecordReaderImpl<>(
+                    root,
+                    recordMaterializer,
+                    new SkippingColumnReadStore(
+                            columns, recordMaterializer.getRootConverter(), root.getType(), createdBy),
+                    rowIdList);
+        }
+
+        if (columns instanceof IndexedPageReadStore) {
+            return new IndexedPageRecordReaderImpl<>(
+                    root,
+                    recordMaterializer,
+                    new SkippingColumnReadStore(
+                            columns, recordMaterializer.getRootConverter(), root.getType(), createdBy),
+                    (IndexedPageReadStore) columns,
+                    rowIdList);
+        }
+
         return new PositionableRecordReaderImpl<>(
                 root,
                 recordMaterializer,
-                new ColumnReadStoreImpl(columns, recordMaterializer.getRootConverter(), root.getType(), createdBy),
+                new SkippingColumnReadStore(
+                        columns, recordMaterializer.getRootConverter(), root.getType(), createdBy),
                 columns.getRowCount(),
                 rowIdList);
     }
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.io;
+
+import org.apache.parquet.bytes.BytesUtils;
+import org.apache.parquet.column.values.bitpacking.BytePacker;
+import org.apache.parquet.column.values.bitpacking.Packer;
+
+/**
+ * Decoder of the RLE / bit-packing hybrid encoding, the same as
+ * {@link org.apache.parquet.column.values.rle.RunLengthBitPackingHybridDecoder}, which also skips
+ * values run by run: a repeated run is skipped at once, and a bit-packed run is only unpacked
+ * if some of its values are read or counted.
+ */
+final class RunLengthDecoder {
+
+    private final int bitWidth;
+
+    private final BytePacker packer;
+
+    private final byte[] bytes;
+
+    private int position;
+
+    private final int end;
+
+    private boolean repeated;
+
+    // Values left in the current run
+    private int currentCount = 0;
+
+    // Value of the current repeated run
+    private int currentValue;
+
+    // Position and value count of the current bit-packed run, and its values if unpacked
+    private int packedPosition;
+
+    private int packedCount;
+
+    private int[] packedValues = new int[0];
+
+    private boolean unpacked;
+
+    RunLengthDecoder(int bitWidth, byte[] bytes, int start, int end) {
+        if (bitWidth < 0 || bitWidth > 32) {
+            throw new ParquetDecodingException("bitWidth must be >= 0 and <= 32: " + bitWidth);
+        }
+        this.bitWidth = bitWidth;
+        this.packer = Packer.LITTLE_ENDIAN.newBytePacker(bitWidth);
+        this.bytes = bytes;
+        this.position = start;
+        this.end = end;
+    }
+
+    int readInt() {
+        if (currentCount == 0) {
+            readNext();
+        }
+        currentCount--;
+        if (repeated) {
+            return currentValue;
+        }
+        unpack();
+        return packedValues[packedCount - 1 - currentCount];
+    }
+
+    /**
+     * Skip `count` values.
+     */
+    void skip(long count) {
+        while (count > 0) {
+            if (currentCount == 0) {
+                readNext();
+            }
+            int skipped = (int) Math.min(count, currentCount);
+            currentCount -= skipped;
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Skip `count` values.
+     *
+     * @return the number of the skipped values equal to `value`
+     */
+    long skipCounting(long count, int value) {
+        long matched = 0;
+        while (count > 0) {
+            if (currentCount == 0) {
+                readNext();
+            }
+            int skipped = (int) Math.min(count, currentCount);
+            if (repeated) {
+                if (currentValue == value) {
+                    matched += skipped;
+                }
+            } else {
+                unpack();
+                int from = packedCount - currentCount;
+                for (int i = from; i < from + skipped; i++) {
+                    if (packedValues[i] == value) {
+                        matched++;
+                    }
+                }
+            }
+            currentCount -= skipped;
+            count -= skipped;
+        }
+        return matched;
+    }
+
+    private void readNext() {
+        if (position >= end) {
+            throw new ParquetDecodingException("Reading past RLE/BitPacking stream.");
+        }
+        int header = readUnsignedVarInt();
+        repeated = (header & 1) == 0;
+        if (repeated) {
+            currentCount = header >>> 1;
+            currentValue = readIntLittleEndianPaddedOnBitWidth();
+        } else {
+            int numGroups = header >>> 1;
+            currentCount = numGroups * 8;
+            packedCount = currentCount;
+            packedPosition = position;
+            unpacked = false;
+            // The last run may be truncated at the end of the stream
+            position = Math.min(end, position + numGroups * bitWidth);
+        }
+    }
+
+    private void unpack() {
+        if (unpacked) {
+            return;
+        }
+        if (packedValues.length < packedCount) {
+            packedValues = new int[packedCount];
+        }
+        int groupBytes = bitWidth;
+        byte[] group = new byte[groupBytes];
+        for (int valueIndex = 0, bytePosition = packedPosition;
+             valueIndex < packedCount;
+             valueIndex += 8, bytePosition += groupBytes) {
+            if (bytePosition + groupBytes <= end) {
+                packer.unpack8Values(bytes, bytePosition, packedValues, valueIndex);
+            } else {
+                // Pad the truncated group with zeros
+                java.util.Arrays.fill(group, (byte) 0);
+                System.arraycopy(bytes, bytePosition, group, 0, Math.max(0, end - bytePosition));
+                packer.unpack8Values(group, 0, packedValues, valueIndex);
+            }
+        }
+        unpacked = true;
+    }
+
+    private int readUnsignedVarInt() {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (position >= end) {
+                throw new ParquetDecodingException("Reading past RLE/BitPacking stream.");
+            }
+            b = bytes[position++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private int readIntLittleEndianPaddedOnBitWidth() {
+        int bytesWidth = BytesUtils.paddedByteCountFromBits(bitWidth);
+        int value = 0;
+        for (int i = 0; i < bytesWidth; i++) {
+            value |= (bytes[position++] & 0xFF) << (8 * i);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.io;
+
+import org.apache.parquet.Preconditions;
+import org.apache.parquet.column.impl.ColumnReadStoreImpl;
+import org.apache.parquet.io.api.RecordMaterializer;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntList;
+
+/**
+ * Read the rows of rowIdList from a row group where most rows are hit and all the pages are
+ * read. Unlike {@link PositionableRecordReaderImpl}, there is no seek bookkeeping per row: the
+ * records between the row ids of a flat schema are skipped column by column with
+ * {@link ValuesSkipper}, others are decoded and dropped.
+ */
+public class SequentialRecordReaderImpl<T> extends RecordReaderImplementation<T> {
+
+    private final IntList rowIdList;
+
+    private final boolean flat;
+
+    private int currentIndex = 0;
+
+    private long recordsRead = 0;
+
+    public SequentialRecordReaderImpl(MessageColumnIO root,
+                                      RecordMaterializer<T> recordMaterializer,
+                                      ColumnReadStoreImpl columnStore,
+                                      IntList rowIdList) {
+        super(root, recordMaterializer, false, columnStore);
+        Preconditions.checkNotNull(rowIdList, "rowIdList can not be null.");
+        Preconditions.checkArgument(!rowIdList.isEmpty(), "rowIdList must has item.");
+        this.rowIdList = rowIdList;
+        this.flat = ValuesSkipper.isFlat(this);
+    }
+
+    public T read() {
+        int rowId = rowIdList.getInt(currentIndex);
+        if (flat && recordsRead < rowId) {
+            // Skip the values between the row ids run by run
+            for (int i = 0; i < getStateCount(); i++) {
+                ValuesSkipper.skip(getState(i), rowId - recordsRead);
+            }
+            recordsRead = rowId;
+        }
+        while (recordsRead < rowId) {
+            // Records between the row ids are decoded and dropped
+            super.read();
+            ++recordsRead;
+        }
+        ++recordsRead;
+        ++currentIndex;
+        return super.read();
+    }
+}
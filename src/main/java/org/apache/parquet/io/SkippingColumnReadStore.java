@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.io;
+
+import org.apache.parquet.VersionParser;
+import org.apache.parquet.VersionParser.ParsedVersion;
+import org.apache.parquet.VersionParser.VersionParseException;
+import org.apache.parquet.column.ColumnDescriptor;
+import org.apache.parquet.column.ColumnReader;
+import org.apache.parquet.column.impl.ColumnReadStoreImpl;
+import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.io.api.Converter;
+import org.apache.parquet.io.api.GroupConverter;
+import org.apache.parquet.io.api.PrimitiveConverter;
+import org.apache.parquet.schema.GroupType;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.Type;
+
+/**
+ * A {@link ColumnReadStoreImpl} returning {@link SkippingColumnReader}s for the columns that are
+ * not repeated, so that {@link ValuesSkipper} skips their values run by run.
+ */
+class SkippingColumnReadStore extends ColumnReadStoreImpl {
+
+    private final PageReadStore pageReadStore;
+
+    private final GroupConverter recordConverter;
+
+    private final MessageType schema;
+
+    private final ParsedVersion writerVersion;
+
+    SkippingColumnReadStore(PageReadStore pageReadStore,
+                            GroupConverter recordConverter,
+                            MessageType schema,
+                            String createdBy) {
+        super(pageReadStore, recordConverter, schema, createdBy);
+        this.pageReadStore = pageReadStore;
+        this.recordConverter = recordConverter;
+        this.schema = schema;
+        ParsedVersion version;
+        try {
+            version = VersionParser.parse(createdBy);
+        } catch (RuntimeException e) {
+            version = null;
+        } catch (VersionParseException e) {
+            version = null;
+        }
+        this.writerVersion = version;
+    }
+
+    @Override
+    public ColumnReader getColumnReader(ColumnDescriptor path) {
+        if (path.getMaxRepetitionLevel() != 0) {
+            return super.getColumnReader(path);
+        }
+        return new SkippingColumnReader(path, pageReadStore.getPageReader(path),
+                getPrimitiveConverter(path), writerVersion);
+    }
+
+    // Same as the private one of ColumnReadStoreImpl
+    private PrimitiveConverter getPrimitiveConverter(ColumnDescriptor path) {
+        Type currentType = schema;
+        Converter currentConverter = recordConverter;
+        for (String fieldName : path.getPath()) {
+            GroupType groupType = currentType.asGroupType();
+            int fieldIndex = groupType.getFieldIndex(fieldName);
+            currentType = groupType.getType(fieldName);
+            currentConverter = currentConverter.asGroupConverter().getConverter(fieldIndex);
+        }
+        return currentConverter.asPrimitiveConverter();
+    }
+}
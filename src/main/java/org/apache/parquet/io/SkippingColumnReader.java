@@ -0,0 +1,712 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.io;
+
+import org.apache.parquet.CorruptDeltaByteArrays;
+import org.apache.parquet.VersionParser.ParsedVersion;
+import org.apache.parquet.bytes.BytesUtils;
+import org.apache.parquet.column.ColumnDescriptor;
+import org.apache.parquet.column.ColumnReader;
+import org.apache.parquet.column.Dictionary;
+import org.apache.parquet.column.Encoding;
+import org.apache.parquet.column.page.DataPage;
+import org.apache.parquet.column.page.DataPageV1;
+import org.apache.parquet.column.page.DataPageV2;
+import org.apache.parquet.column.page.DictionaryPage;
+import org.apache.parquet.column.page.PageReader;
+import org.apache.parquet.column.values.RequiresPreviousReader;
+import org.apache.parquet.column.values.ValuesReader;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.PrimitiveConverter;
+
+import java.io.IOException;
+
+import static org.apache.parquet.Preconditions.checkNotNull;
+import static org.apache.parquet.column.ValuesType.DEFINITION_LEVEL;
+import static org.apache.parquet.column.ValuesType.REPETITION_LEVEL;
+import static org.apache.parquet.column.ValuesType.VALUES;
+
+/**
+ * A column reader of a column that is not repeated, the same as
+ * {@link org.apache.parquet.column.impl.ColumnReaderImpl} except {@link #skipValues}: the
+ * definition levels are skipped run by run and the non-null values are counted from the runs,
+ * then the dictionary ids of the non-null values are skipped run by run as well. Values of the
+ * pages not dictionary encoded are still skipped one by one.
+ */
+final class SkippingColumnReader implements ColumnReader {
+
+    /**
+     * Reads the values of the current page and writes them to the converter.
+     */
+    private abstract static class Binding {
+        abstract void read();
+
+        abstract void skip();
+
+        abstract void writeValue();
+
+        int getDictionaryId() {
+            throw new UnsupportedOperationException();
+        }
+
+        int getInteger() {
+            throw new UnsupportedOperationException();
+        }
+
+        boolean getBoolean() {
+            throw new UnsupportedOperationException();
+        }
+
+        long getLong() {
+            throw new UnsupportedOperationException();
+        }
+
+        Binary getBinary() {
+            throw new UnsupportedOperationException();
+        }
+
+        float getFloat() {
+            throw new UnsupportedOperationException();
+        }
+
+        double getDouble() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Definition levels of the current page.
+     */
+    private abstract static class Levels {
+        abstract int nextInt();
+
+        /**
+         * Skip `count` levels.
+         *
+         * @return the number of the skipped levels equal to `level`
+         */
+        abstract long skipCounting(long count, int level);
+    }
+
+    private static final Levels NO_LEVELS = new Levels() {
+        @Override
+        int nextInt() {
+            return 0;
+        }
+
+        @Override
+        long skipCounting(long count, int level) {
+            return level == 0 ? count : 0;
+        }
+    };
+
+    private static final class RunLengthLevels extends Levels {
+        private final RunLengthDecoder decoder;
+
+        RunLengthLevels(RunLengthDecoder decoder) {
+            this.decoder = decoder;
+        }
+
+        @Override
+        int nextInt() {
+            return decoder.readInt();
+        }
+
+        @Override
+        long skipCounting(long count, int level) {
+            return decoder.skipCounting(count, level);
+        }
+    }
+
+    // Levels not RLE encoded, e.g. the deprecated BIT_PACKED, are read one by one
+    private static final class ValuesReaderLevels extends Levels {
+        private final ValuesReader reader;
+
+        ValuesReaderLevels(ValuesReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        int nextInt() {
+            return reader.readInteger();
+        }
+
+        @Override
+        long skipCounting(long count, int level) {
+            long matched = 0;
+            for (long i = 0; i < count; i++) {
+                if (reader.readInteger() == level) {
+                    matched++;
+                }
+            }
+            return matched;
+        }
+    }
+
+    private final ParsedVersion writerVersion;
+
+    private final ColumnDescriptor path;
+
+    private final int maxDefinitionLevel;
+
+    private final long totalValueCount;
+
+    private final PageReader pageReader;
+
+    private final Dictionary dictionary;
+
+    private final PrimitiveConverter converter;
+
+    private Levels definitionLevels;
+
+    // Dictionary ids of a dictionary encoded page
+    private RunLengthDecoder dictionaryIds;
+
+    // Values of a page not dictionary encoded
+    private ValuesReader dataColumn;
+
+    private Encoding currentEncoding;
+
+    private Binding binding;
+
+    private int definitionLevel;
+
+    private int dictionaryId;
+
+    private long endOfPageValueCount;
+
+    private long readValues = 0;
+
+    private int pageValueCount = 0;
+
+    // The current value may be read twice when filtering
+    private boolean valueRead;
+
+    SkippingColumnReader(ColumnDescriptor path,
+                         PageReader pageReader,
+                         PrimitiveConverter converter,
+                         ParsedVersion writerVersion) {
+        this.path = checkNotNull(path, "path");
+        this.pageReader = checkNotNull(pageReader, "pageReader");
+        this.converter = checkNotNull(converter, "converter");
+        this.writerVersion = writerVersion;
+        this.maxDefinitionLevel = path.getMaxDefinitionLevel();
+        DictionaryPage dictionaryPage = pageReader.readDictionaryPage();
+        if (dictionaryPage != null) {
+            try {
+                this.dictionary = dictionaryPage.getEncoding().initDictionary(path, dictionaryPage);
+                if (converter.hasDictionarySupport()) {
+                    converter.setDictionary(dictionary);
+                }
+            } catch (IOException e) {
+                throw new ParquetDecodingException(
+                        "could not decode the dictionary for " + path, e);
+            }
+        } else {
+            this.dictionary = null;
+        }
+        this.totalValueCount = pageReader.getTotalValueCount();
+        if (totalValueCount <= 0) {
+            throw new ParquetDecodingException("totalValueCount '" + totalValueCount + "' <= 0");
+        }
+        consume();
+    }
+
+    /**
+     * Skip `count` values from the current one, the same as calling {@link #skip()} and
+     * {@link #consume()} for each of them.
+     */
+    void skipValues(long count) {
+        while (count > 0) {
+            // The values after the current one in the page are skipped at once
+            long following = Math.min(count - 1, endOfPageValueCount - readValues);
+            long nonNulls = !valueRead && definitionLevel == maxDefinitionLevel ? 1 : 0;
+            if (following > 0) {
+                nonNulls += definitionLevels.skipCounting(following, maxDefinitionLevel);
+                readValues += following;
+            }
+            if (dictionaryIds != null) {
+                dictionaryIds.skip(nonNulls);
+            } else {
+                for (long i = 0; i < nonNulls; i++) {
+                    dataColumn.skip();
+                }
+            }
+            valueRead = true;
+            // Move to the value after the last one skipped
+            consume();
+            count -= following + 1;
+        }
+    }
+
+    @Override
+    public long getTotalValueCount() {
+        return totalValueCount;
+    }
+
+    @Override
+    public void consume() {
+        checkRead();
+        valueRead = false;
+    }
+
+    @Override
+    public int getCurrentRepetitionLevel() {
+        return 0;
+    }
+
+    @Override
+    public int getCurrentDefinitionLevel() {
+        return definitionLevel;
+    }
+
+    @Override
+    public void writeCurrentValueToConverter() {
+        readValue();
+        binding.writeValue();
+    }
+
+    @Override
+    public void skip() {
+        if (!valueRead) {
+            binding.skip();
+            valueRead = true;
+        }
+    }
+
+    @Override
+    public int getCurrentValueDictionaryID() {
+        readValue();
+        return binding.getDictionaryId();
+    }
+
+    @Override
+    public int getInteger() {
+        readValue();
+        return binding.getInteger();
+    }
+
+    @Override
+    public boolean getBoolean() {
+        readValue();
+        return binding.getBoolean();
+    }
+
+    @Override
+    public long getLong() {
+        readValue();
+        return binding.getLong();
+    }
+
+    @Override
+    public Binary getBinary() {
+        readValue();
+        return binding.getBinary();
+    }
+
+    @Override
+    public float getFloat() {
+        readValue();
+        return binding.getFloat();
+    }
+
+    @Override
+    public double getDouble() {
+        readValue();
+        return binding.getDouble();
+    }
+
+    @Override
+    public ColumnDescriptor getDescriptor() {
+        return path;
+    }
+
+    private void readValue() {
+        try {
+            if (!valueRead) {
+                binding.read();
+                valueRead = true;
+            }
+        } catch (RuntimeException e) {
+            if (CorruptDeltaByteArrays.requiresSequentialReads(writerVersion, currentEncoding) &&
+                    e instanceof ArrayIndexOutOfBoundsException) {
+                // this is probably PARQUET-246, which may happen if reading data with
+                // MR because this can't be detected without reading all footers
+                throw new ParquetDecodingException("Read failure possibly due to " +
+                        "PARQUET-246: try setting parquet.split.files to false",
+                        new ParquetDecodingException(String.format(
+                                "Can't read value in column %s at value %d out of %d in " +
+                                        "current page, definition level: %d",
+                                path, readValues - (endOfPageValueCount - pageValueCount),
+                                pageValueCount, definitionLevel), e));
+            }
+            throw new ParquetDecodingException(String.format(
+                    "Can't read value in column %s at value %d out of %d, %d out of %d in " +
+                            "current page, definition level: %d",
+                    path, readValues, totalValueCount,
+                    readValues - (endOfPageValueCount - pageValueCount), pageValueCount,
+                    definitionLevel), e);
+        }
+    }
+
+    private void checkRead() {
+        if (readValues >= endOfPageValueCount) {
+            if (readValues >= totalValueCount) {
+                // Fully consumed
+                return;
+            }
+            readPage();
+        }
+        definitionLevel = definitionLevels.nextInt();
+        ++readValues;
+    }
+
+    private void readPage() {
+        DataPage page = pageReader.readPage();
+        page.accept(new DataPage.Visitor<Void>() {
+            @Override
+            public Void visit(DataPageV1 dataPageV1) {
+                readPageV1(dataPageV1);
+                return null;
+            }
+
+            @Override
+            public Void visit(DataPageV2 dataPageV2) {
+                readPageV2(dataPageV2);
+                return null;
+            }
+        });
+    }
+
+    private void readPageV1(DataPageV1 page) {
+        try {
+            byte[] bytes = page.getBytes().toByteArray();
+            // The repetition levels of a column not repeated take no bytes
+            ValuesReader rlReader = page.getRlEncoding().getValuesReader(path, REPETITION_LEVEL);
+            rlReader.initFromPage(page.getValueCount(), bytes, 0);
+            int next = rlReader.getNextOffset();
+            if (maxDefinitionLevel == 0) {
+                definitionLevels = NO_LEVELS;
+            } else if (page.getDlEncoding() == Encoding.RLE) {
+                // The levels are prefixed by their length
+                int length = BytesUtils.readIntLittleEndian(bytes, next);
+                next += 4;
+                definitionLevels = new RunLengthLevels(new RunLengthDecoder(
+                        definitionLevelBitWidth(), bytes, next, next + length));
+                next += length;
+            } else {
+                ValuesReader dlReader =
+                        page.getDlEncoding().getValuesReader(path, DEFINITION_LEVEL);
+                dlReader.initFromPage(page.getValueCount(), bytes, next);
+                definitionLevels = new ValuesReaderLevels(dlReader);
+                next = dlReader.getNextOffset();
+            }
+            initDataReader(page.getValueEncoding(), bytes, next, page.getValueCount());
+        } catch (IOException e) {
+            throw new ParquetDecodingException(
+                    "could not read page " + page + " in col " + path, e);
+        }
+    }
+
+    private void readPageV2(DataPageV2 page) {
+        try {
+            if (maxDefinitionLevel == 0) {
+                definitionLevels = NO_LEVELS;
+            } else {
+                byte[] levels = page.getDefinitionLevels().toByteArray();
+                definitionLevels = new RunLengthLevels(new RunLengthDecoder(
+                        definitionLevelBitWidth(), levels, 0, levels.length));
+            }
+            initDataReader(page.getDataEncoding(), page.getData().toByteArray(), 0,
+                    page.getValueCount());
+        } catch (IOException e) {
+            throw new ParquetDecodingException(
+                    "could not read page " + page + " in col " + path, e);
+        }
+    }
+
+    private int definitionLevelBitWidth() {
+        return BytesUtils.getWidthFromMaxInt(maxDefinitionLevel);
+    }
+
+    private void initDataReader(Encoding dataEncoding, byte[] bytes, int offset, int valueCount)
+            throws IOException {
+        ValuesReader previousReader = this.dataColumn;
+        this.currentEncoding = dataEncoding;
+        this.pageValueCount = valueCount;
+        this.endOfPageValueCount = readValues + pageValueCount;
+        if (dataEncoding.usesDictionary()) {
+            if (dictionary == null) {
+                throw new ParquetDecodingException("could not read page in col " + path +
+                        " as the dictionary was missing for encoding " + dataEncoding);
+            }
+            // The ids are prefixed by their bit width, and take the rest of the page
+            this.dictionaryIds = new RunLengthDecoder(bytes[offset] & 0xFF, bytes, offset + 1,
+                    bytes.length);
+            this.dataColumn = null;
+            bindToDictionary();
+        } else {
+            this.dictionaryIds = null;
+            this.dataColumn = dataEncoding.getValuesReader(path, VALUES);
+            dataColumn.initFromPage(pageValueCount, bytes, offset);
+            if (CorruptDeltaByteArrays.requiresSequentialReads(writerVersion, dataEncoding) &&
+                    previousReader instanceof RequiresPreviousReader) {
+                // previous reader can only be set if reading sequentially
+                ((RequiresPreviousReader) dataColumn).setPreviousReader(previousReader);
+            }
+            bind();
+        }
+    }
+
+    private void bindToDictionary() {
+        final boolean dictionarySupport = converter.hasDictionarySupport();
+        binding = new Binding() {
+            @Override
+            void read() {
+                dictionaryId = dictionaryIds.readInt();
+            }
+
+            @Override
+            void skip() {
+                dictionaryIds.skip(1);
+            }
+
+            @Override
+            void writeValue() {
+                if (dictionarySupport) {
+                    converter.addValueFromDictionary(dictionaryId);
+                    return;
+                }
+                switch (path.getType()) {
+                    case INT32:
+                        converter.addInt(getInteger());
+                        break;
+                    case INT64:
+                        converter.addLong(getLong());
+                        break;
+                    case FLOAT:
+                        converter.addFloat(getFloat());
+                        break;
+                    case DOUBLE:
+                        converter.addDouble(getDouble());
+                        break;
+                    case BOOLEAN:
+                        converter.addBoolean(getBoolean());
+                        break;
+                    default:
+                        converter.addBinary(getBinary());
+                }
+            }
+
+            @Override
+            int getDictionaryId() {
+                return dictionaryId;
+            }
+
+            @Override
+            int getInteger() {
+                return dictionary.decodeToInt(dictionaryId);
+            }
+
+            @Override
+            boolean getBoolean() {
+                return dictionary.decodeToBoolean(dictionaryId);
+            }
+
+            @Override
+            long getLong() {
+                return dictionary.decodeToLong(dictionaryId);
+            }
+
+            @Override
+            Binary getBinary() {
+                return dictionary.decodeToBinary(dictionaryId);
+            }
+
+            @Override
+            float getFloat() {
+                return dictionary.decodeToFloat(dictionaryId);
+            }
+
+            @Override
+            double getDouble() {
+                return dictionary.decodeToDouble(dictionaryId);
+            }
+        };
+    }
+
+    private void bind() {
+        switch (path.getType()) {
+            case INT32:
+                binding = new Binding() {
+                    int current;
+
+                    @Override
+                    void read() {
+                        current = dataColumn.readInteger();
+                    }
+
+                    @Override
+                    void skip() {
+                        current = 0;
+                        dataColumn.skip();
+                    }
+
+                    @Override
+                    void writeValue() {
+                        converter.addInt(current);
+                    }
+
+                    @Override
+                    int getInteger() {
+                        return current;
+                    }
+                };
+                break;
+            case INT64:
+                binding = new Binding() {
+                    long current;
+
+                    @Override
+                    void read() {
+                        current = dataColumn.readLong();
+                    }
+
+                    @Override
+                    void skip() {
+                        current = 0;
+                        dataColumn.skip();
+                    }
+
+                    @Override
+                    void writeValue() {
+                        converter.addLong(current);
+                    }
+
+                    @Override
+                    long getLong() {
+                        return current;
+                    }
+                };
+                break;
+            case FLOAT:
+                binding = new Binding() {
+                    float current;
+
+                    @Override
+                    void read() {
+                        current = dataColumn.readFloat();
+                    }
+
+                    @Override
+                    void skip() {
+                        current = 0;
+                        dataColumn.skip();
+                    }
+
+                    @Override
+                    void writeValue() {
+                        converter.addFloat(current);
+                    }
+
+                    @Override
+                    float getFloat() {
+                        return current;
+                    }
+                };
+                break;
+            case DOUBLE:
+                binding = new Binding() {
+                    double current;
+
+                    @Override
+                    void read() {
+                        current = dataColumn.readDouble();
+                    }
+
+                    @Override
+                    void skip() {
+                        current = 0;
+                        dataColumn.skip();
+                    }
+
+                    @Override
+                    void writeValue() {
+                        converter.addDouble(current);
+                    }
+
+                    @Override
+                    double getDouble() {
+                        return current;
+                    }
+                };
+                break;
+            case BOOLEAN:
+                binding = new Binding() {
+                    boolean current;
+
+                    @Override
+                    void read() {
+                        current = dataColumn.readBoolean();
+                    }
+
+                    @Override
+                    void skip() {
+                        current = false;
+                        dataColumn.skip();
+                    }
+
+                    @Override
+                    void writeValue() {
+                        converter.addBoolean(current);
+                    }
+
+                    @Override
+                    boolean getBoolean() {
+                        return current;
+                    }
+                };
+                break;
+            default:
+                // BINARY, FIXED_LEN_BYTE_ARRAY and INT96
+                binding = new Binding() {
+                    Binary current;
+
+                    @Override
+                    void read() {
+                        current = dataColumn.readBytes();
+                    }
+
+                    @Override
+                    void skip() {
+                        current = null;
+                        dataColumn.skip();
+                    }
+
+                    @Override
+                    void writeValue() {
+                        converter.addBinary(current);
+                    }
+
+                    @Override
+                    Binary getBinary() {
+                        return current;
+                    }
+                };
+        }
+    }
+}
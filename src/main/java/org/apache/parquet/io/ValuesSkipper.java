@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.parquet.io;
+
+import org.apache.parquet.column.ColumnReader;
+
+/**
+ * Skip the values of a column that is not repeated, where each value is one record.
+ *
+ * The columns are skipped one after another instead of stepping the record state machine for
+ * every record. The columns read by a {@link SkippingColumnReader} skip run by run, the others
+ * skip value by value, where required columns skip without looking at the definition levels.
+ */
+final class ValuesSkipper {
+
+    private ValuesSkipper() {
+    }
+
+    static boolean isFlat(RecordReaderImplementation<?> recordReader) {
+        for (int i = 0; i < recordReader.getStateCount(); i++) {
+            if (recordReader.getState(i).maxRepetitionLevel != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void skip(RecordReaderImplementation.State state, long count) {
+        ColumnReader columnReader = state.column;
+        if (columnReader instanceof SkippingColumnReader) {
+            // Skip the levels and the dictionary ids run by run
+            ((SkippingColumnReader) columnReader).skipValues(count);
+        } else if (state.maxDefinitionLevel == 0) {
+            // All the values are present
+            for (long i = 0; i < count; i++) {
+                columnReader.skip();
+                columnReader.consume();
+            }
+        } else {
+            int maxDefinitionLevel = state.maxDefinitionLevel;
+            for (long i = 0; i < count; i++) {
+                // has value, skip it
+                if (columnReader.getCurrentDefinitionLevel() >= maxDefinitionLevel) {
+                    columnReader.skip();
+                }
+                columnReader.consume();
+            }
+        }
+    }
+}
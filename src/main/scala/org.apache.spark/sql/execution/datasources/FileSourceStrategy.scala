@@ -147,6 +147,10 @@ object FileSourceStrategy extends Strategy with Logging {
 
       val pushedDownFilters = dataFilters.flatMap(DataSourceStrategy.translateFilter)
       logInfo(s"Pushed Filters: ${pushedDownFilters.mkString(",")}")
+      fsRelation.fileFormat match {
+        case oap: OapFileFormat => oap.pushedFilters = pushedDownFilters
+        case _ =>
+      }
 
       val outputAttributes = readDataColumns ++ partitionColumns
 
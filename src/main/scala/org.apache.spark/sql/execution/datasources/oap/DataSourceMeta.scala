@@ -165,6 +165,13 @@ private[oap] class FileMeta {
 }
 
 private[oap] object FileMeta {
+  /**
+   * The signature of a version of the file, i.e. length plus modification time. Data files are
+   * never modified in place, an overwritten file always gets a different signature.
+   */
+  def fingerprint(status: FileStatus): String =
+    s"${status.getLen}_${status.getModificationTime}"
+
   def apply(): FileMeta = new FileMeta()
   def apply(fingerprint: String, recordCount: Long, dataFileName: String): FileMeta = {
     val fileMeta = new FileMeta()
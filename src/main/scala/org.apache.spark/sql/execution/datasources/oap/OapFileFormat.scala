@@ -22,21 +22,24 @@ import java.net.URI
 import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.fs.{FileStatus, Path}
 import org.apache.hadoop.mapreduce.{Job, TaskAttemptContext}
+import org.apache.parquet.filter2.predicate.FilterApi
+import org.apache.parquet.hadoop.ParquetInputFormat
 import org.apache.parquet.hadoop.util.SerializationUtil
 
+import org.apache.spark.TaskContext
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.{Row, SparkSession}
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions.{Expression, JoinedRow}
 import org.apache.spark.sql.catalyst.expressions.codegen.{GenerateOrdering, GenerateUnsafeProjection}
 import org.apache.spark.sql.execution.datasources._
-import org.apache.spark.sql.execution.datasources.oap.filecache.DataFileHandleCacheManager
+import org.apache.spark.sql.execution.datasources.oap.filecache.{DataFileHandleCacheManager, MemoryManager}
 import org.apache.spark.sql.execution.datasources.oap.index.{IndexContext, ScannerBuilder}
 import org.apache.spark.sql.execution.datasources.oap.io._
-import org.apache.spark.sql.execution.datasources.parquet.ParquetFileFormat
+import org.apache.spark.sql.execution.datasources.parquet.{ParquetFileFormat, ParquetFilters}
 import org.apache.spark.sql.internal.SQLConf
 import org.apache.spark.sql.sources._
-import org.apache.spark.sql.types.{StructField, StructType}
+import org.apache.spark.sql.types.{AtomicType, StructField, StructType}
 import org.apache.spark.util.SerializableConfiguration
 
 private[sql] class OapFileFormat extends FileFormat
@@ -69,12 +72,19 @@ private[sql] class OapFileFormat extends FileFormat
     // OapFileFormat.serializeDataSourceMeta(hadoopConf, meta)
     inferSchema = meta.map(_.schema)
 
+    // Key the file path as `PartitionedFile.filePath`
+    fingerprints = files.map(f => f.getPath.toUri.toString -> FileMeta.fingerprint(f)).toMap
+
     this
   }
 
   // TODO inferSchema could be lazy computed
   var inferSchema: Option[StructType] = _
   var meta: Option[DataSourceMeta] = _
+  // Data file path -> the fingerprint of the version being read, fibers are keyed by them
+  private var fingerprints: Map[String, String] = Map.empty
+  // Filters pushed down to the scan being planned, set by `FileSourceStrategy`
+  private[sql] var pushedFilters: Seq[Filter] = Nil
   // map of columns->IndexType
   private var hitIndexColumns: Map[String, IndexType] = _
 
@@ -99,15 +109,31 @@ private[sql] class OapFileFormat extends FileFormat
 
   /**
    * Returns whether the reader will return the rows as batch or not.
+   *
+   * Only the scans without filters are read as batches, the row readers skip the row groups,
+   * pages and records by the index and the filters, which the batch reader doesn't.
    */
   override def supportBatch(sparkSession: SparkSession, schema: StructType): Boolean = {
-    false
+    // Data cache assembles rows from fibers, which is not columnar yet
+    val conf = sparkSession.sessionState.conf
+    pushedFilters.isEmpty &&
+      conf.parquetVectorizedReaderEnabled && conf.wholeStageEnabled &&
+      !conf.getConf(SQLConf.OAP_PARQUET_DATA_CACHE_ENABLED) &&
+      meta != null &&
+      meta.exists(_.dataReaderClassName == OapFileFormat.PARQUET_DATA_FILE_CLASSNAME) &&
+      schema.length <= conf.wholeStageMaxNumFields &&
+      schema.forall(_.dataType.isInstanceOf[AtomicType])
   }
 
+  /**
+   * Parquet files are split at row group boundaries, each split reads the row groups whose
+   * midpoints are inside it.
+   */
   override def isSplitable(
       sparkSession: SparkSession,
       options: Map[String, String],
-      path: Path): Boolean = false
+      path: Path): Boolean =
+    meta.exists(_.dataReaderClassName == OapFileFormat.PARQUET_DATA_FILE_CLASSNAME)
 
   override def buildReaderWithPartitionValues(
       sparkSession: SparkSession,
@@ -176,6 +202,17 @@ private[sql] class OapFileFormat extends FileFormat
           }
         }
 
+        // Push all the filters down to parquet, for row group pruning by statistics and record
+        // level filtering, the same as ParquetFileFormat. The ones handled by index are kept as
+        // well, the index may be unavailable for some files.
+        if (m.dataReaderClassName == OapFileFormat.PARQUET_DATA_FILE_CLASSNAME &&
+            sparkSession.sessionState.conf.parquetFilterPushDown) {
+          filters
+            .flatMap(ParquetFilters.createFilter(requiredSchema, _))
+            .reduceOption(FilterApi.and)
+            .foreach(ParquetInputFormat.setFilterPredicate(hadoopConf, _))
+        }
+
         val filterScanners = ic.getScanners
         hitIndexColumns = filterScanners match {
           case Some(s) =>
@@ -191,25 +228,62 @@ private[sql] class OapFileFormat extends FileFormat
           sparkSession.conf.get(SQLConf.OAP_FULL_SCAN_THRESHOLD))
         hadoopConf.setBoolean(SQLConf.OAP_ENABLE_OINDEX.key,
           sparkSession.conf.get(SQLConf.OAP_ENABLE_OINDEX))
+        hadoopConf.setBoolean(SQLConf.OAP_PARQUET_DATA_CACHE_ENABLED.key,
+          sparkSession.conf.get(SQLConf.OAP_PARQUET_DATA_CACHE_ENABLED))
+        hadoopConf.setBoolean(SQLConf.OAP_PARQUET_PAGE_SKIPPING_ENABLED.key,
+          sparkSession.conf.get(SQLConf.OAP_PARQUET_PAGE_SKIPPING_ENABLED))
+        hadoopConf.setBoolean(SQLConf.OAP_PARQUET_PREFETCH_ENABLED.key,
+          sparkSession.conf.get(SQLConf.OAP_PARQUET_PREFETCH_ENABLED))
+        hadoopConf.setInt(SQLConf.OAP_PARQUET_PREFETCH_THREADS.key,
+          sparkSession.conf.get(SQLConf.OAP_PARQUET_PREFETCH_THREADS))
+        hadoopConf.setBoolean(SQLConf.OAP_PARQUET_LATE_MATERIALIZATION_ENABLED.key,
+          sparkSession.conf.get(SQLConf.OAP_PARQUET_LATE_MATERIALIZATION_ENABLED))
+        hadoopConf.setBoolean(SQLConf.OAP_PARQUET_DICTIONARY_FILTER_ENABLED.key,
+          sparkSession.conf.get(SQLConf.OAP_PARQUET_DICTIONARY_FILTER_ENABLED))
+        hadoopConf.setDouble(SQLConf.OAP_PARQUET_DENSE_ROW_GROUP_THRESHOLD.key,
+          sparkSession.conf.get(SQLConf.OAP_PARQUET_DENSE_ROW_GROUP_THRESHOLD))
+        hadoopConf.setBoolean(SQLConf.OAP_MMAP_ENABLED.key,
+          sparkSession.conf.get(SQLConf.OAP_MMAP_ENABLED))
+        // Needed by the parquet row readers, given in the options only if replacing a parquet scan
+        hadoopConf.setIfUnset(SQLConf.PARQUET_BINARY_AS_STRING.key,
+          sparkSession.sessionState.conf.isParquetBinaryAsString.toString)
+        hadoopConf.setIfUnset(SQLConf.PARQUET_INT96_AS_TIMESTAMP.key,
+          sparkSession.sessionState.conf.isParquetINT96AsTimestamp.toString)
         val broadcastedHadoopConf =
           sparkSession.sparkContext.broadcast(new SerializableConfiguration(hadoopConf))
+        val fileFingerprints = fingerprints
+        val readMetrics = new OapReadMetrics().register(sparkSession.sparkContext)
+        // Whole stage codegen (PhysicalRDD) is able to deal with batches directly
+        val returningBatch =
+          supportBatch(sparkSession, StructType(requiredSchema.fields ++ partitionSchema.fields))
 
         (file: PartitionedFile) => {
           assert(file.partitionValues.numFields == partitionSchema.size)
           val conf = broadcastedHadoopConf.value.value
-          val dataFile = DataFile(file.filePath, m.schema, m.dataReaderClassName, conf)
+          MemoryManager.registerSpillHook(TaskContext.get())
+          val fingerprint = fileFingerprints.getOrElse(file.filePath, "")
+
+          OapReadMetrics.setForCurrentTask(readMetrics)
+          val reader = new OapDataReader(
+            new Path(new URI(file.filePath)), m, filterScanners, requiredIds, fingerprint,
+            returningBatch, partitionSchema, file.partitionValues, file.start, file.length,
+            readMetrics)
+          // Shared by the index and the data scans of the split
+          val dataFile = reader.dataFile(conf)
           val dataFileHandle: DataFileHandle = DataFileHandleCacheManager(dataFile)
+          val iter = reader.initialize(conf, options, dataFile,
+            reader.resolveIndex(conf, options, dataFile))
 
-            OapIndexInfo.partitionOapIndex.put(file.filePath, false)
-            val iter = new OapDataReader(
-              new Path(new URI(file.filePath)), m, filterScanners, requiredIds)
-              .initialize(conf, options)
-
+          if (returningBatch) {
+            // The partition columns are appended into the batches by the reader
+            iter
+          } else {
             val fullSchema = requiredSchema.toAttributes ++ partitionSchema.toAttributes
             val joinedRow = new JoinedRow()
             val appendPartitionColumns = GenerateUnsafeProjection.generate(fullSchema, fullSchema)
 
             iter.map(d => appendPartitionColumns(joinedRow(d, file.partitionValues)))
+          }
 
         }
       case None => (_: PartitionedFile) => {
@@ -17,8 +17,9 @@
 
 package org.apache.spark.sql.execution.datasources.oap.filecache
 
-import java.util.concurrent.{Callable, TimeUnit}
+import java.util.concurrent.{Callable, ConcurrentHashMap, TimeUnit}
 import java.util.concurrent.atomic.AtomicLong
+import java.util.function.{Function => JFunction}
 
 import scala.collection.JavaConverters._
 
@@ -28,130 +29,250 @@ import org.apache.hadoop.conf.Configuration
 import org.apache.spark.SparkEnv
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.execution.datasources.oap.io._
-import org.apache.spark.util.collection.BitSet
+import org.apache.spark.sql.internal.SQLConf
 
 
 /**
  * Fiber Cache Manager
  *
+ * Index fibers and data fibers are kept in separate pools, each has its own quota, eviction
+ * queues and stats, so a wide scan of data fibers won't flush the hot index fibers. If borrowing
+ * is enabled, a pool can grow into the idle quota of the other one, and is shrunk back as soon
+ * as the other pool needs its quota.
+ *
  * TODO: change object to class for better initialization
  */
 object FiberCacheManager extends Logging {
 
   def removeIndexCache(indexName: String): Unit = {
     logDebug(s"going to remove cache of $indexName, executor: ${SparkEnv.get.executorId}")
-    logDebug("cache size before remove: " + cache.size())
-    val fiberToBeRemoved = cache.asMap().keySet().asScala.filter {
-      case BTreeFiber(_, file, _, _) => file.contains(indexName)
-      case BitmapFiber(_, file, _, _) => file.contains(indexName)
-      case _ => false
-    }.asJava
-    cache.invalidateAll(fiberToBeRemoved)
-    logDebug("cache size after remove: " + cache.size())
-  }
-
-  private val removalListener = new RemovalListener[Fiber, FiberCache] {
-    override def onRemoval(notification: RemovalNotification[Fiber, FiberCache]): Unit = {
-      // TODO: Change the log more readable
-      logDebug(s"Removing Cache ${notification.getKey}")
-      // TODO: Investigate lock mechanism to secure in-used FiberCache
-      notification.getValue.dispose()
-      _cacheSize.addAndGet(-notification.getValue.size())
+    logDebug("cache size before remove: " + indexCache.size)
+    FileRegistry.filesOfIndex(indexName).foreach { fileId =>
+      removeFileCache(indexCache, fileId)
+      FileRegistry.retire(fileId)
+    }
+    logDebug("cache size after remove: " + indexCache.size)
+  }
+
+  /**
+   * Remove all the cached fibers of all versions of file `path`, either an index file or a data
+   * file
+   */
+  def removeFileCache(path: String): Unit = {
+    FileRegistry.versionsOf(path).foreach { fileId =>
+      removeFileCache(indexCache, fileId)
+      removeFileCache(dataCache, fileId)
+      FileRegistry.retire(fileId)
+    }
+  }
+
+  private def removeFileCache(cache: OapCache, fileId: Int): Unit = {
+    val fibers = fibersOfFile.get(fileId)
+    if (fibers != null) {
+      cache.invalidateAll(fibers.keySet().asScala.toList)
     }
   }
-  private val weigher = new Weigher[Fiber, FiberCache] {
-    override def weigh(key: Fiber, value: FiberCache): Int =
-      math.ceil(value.size() / MB).toInt
+
+  // File id -> cached fibers of the file with their FiberCaches in cache, to remove the fibers
+  // of a file without scanning cache. Files without any fiber cached are dropped.
+  private val fibersOfFile = new ConcurrentHashMap[Int, ConcurrentHashMap[Fiber, FiberCache]]()
+
+  private val newFiberMap = new JFunction[Int, ConcurrentHashMap[Fiber, FiberCache]] {
+    override def apply(fileId: Int): ConcurrentHashMap[Fiber, FiberCache] =
+      new ConcurrentHashMap[Fiber, FiberCache]()
+  }
+
+  // The fibers of a file are always in the same cache, so `onInsert` and `onRemoval` of a file
+  // are serialized by the lock of that cache
+  private def onInsert(fiber: Fiber, fiberCache: FiberCache): Unit = {
+    if (fiber.fileId != FileRegistry.NO_FILE) {
+      fibersOfFile.computeIfAbsent(fiber.fileId, newFiberMap).put(fiber, fiberCache)
+    }
   }
 
-  private val MB: Double = 1024 * 1024
-  private val MAX_WEIGHT = (MemoryManager.maxMemory / MB).toInt
+  private def onRemoval(fiber: Fiber, fiberCache: FiberCache): Unit = {
+    logDebug(s"Removing Cache $fiber")
+    val fibers = fibersOfFile.get(fiber.fileId)
+    if (fibers != null) {
+      // A FiberCache of the fiber loaded later may be tracked already, keep it
+      fibers.remove(fiber, fiberCache)
+      if (fibers.isEmpty) fibersOfFile.remove(fiber.fileId)
+    }
+    // The memory is only freed when no reader is holding it, see FiberCache.release
+    fiberCache.evict()
+    _cacheSize.addAndGet(-fiberCache.size())
+  }
 
   // Total cached size for debug purpose
   private val _cacheSize: AtomicLong = new AtomicLong(0)
 
+  private val (indexQuota, dataQuota) = {
+    val conf = SparkEnv.get.conf
+    val indexQuota = (MemoryManager.maxMemory *
+      conf.get(SQLConf.OAP_INDEX_FIBER_CACHE_FRACTION)).toLong
+    (indexQuota, MemoryManager.maxMemory - indexQuota)
+  }
+
+  private val borrowEnabled = SparkEnv.get.conf.get(SQLConf.OAP_FIBER_CACHE_BORROW_ENABLED)
+
+  // The caches reference each other for borrowing, they may be null during initialization
+  private val indexCache: OapCache =
+    new OapCache(indexQuota, onRemoval, () => borrowable(dataCache), onInsert)
+  private val dataCache: OapCache =
+    new OapCache(dataQuota, onRemoval, () => borrowable(indexCache), onInsert)
+
+  /** The idle quota of `lender` can be borrowed by the other cache */
+  private def borrowable(lender: OapCache): Long = {
+    if (borrowEnabled && lender != null) math.max(lender.maxWeight - lender.weight, 0L) else 0L
+  }
+
+  private def cacheOf(fiber: Fiber): OapCache = fiber match {
+    case _: DataFiber => dataCache
+    case _ => indexCache
+  }
+
   /**
    * To avoid storing configuration in each Cache, use a loader.
    * After all, configuration is not a part of Fiber.
+   *
+   * The FiberCache is occupied before put into cache, so that it can't be freed even if it is
+   * evicted right after loading.
    */
-  private def cacheLoader(fiber: Fiber, configuration: Configuration) =
-    new Callable[FiberCache] {
-      override def call(): FiberCache = {
-        logDebug(s"Loading Cache $fiber")
-        val fiberCache = fiber.fiber2Data(configuration)
-        _cacheSize.addAndGet(fiberCache.size())
-        fiberCache
-      }
-    }
-
-  private val cache = CacheBuilder.newBuilder()
-      .recordStats()
-      .concurrencyLevel(4)
-      .removalListener(removalListener)
-      .maximumWeight(MAX_WEIGHT)
-      .weigher(weigher)
-      .build[Fiber, FiberCache]()
+  private def cacheLoader(fiber: Fiber, configuration: Configuration) = () => {
+    logDebug(s"Loading Cache $fiber")
+    val fiberCache = fiber.fiber2Data(configuration)
+    fiberCache.occupy()
+    _cacheSize.addAndGet(fiberCache.size())
+    fiberCache
+  }
 
+  /**
+   * Get the FiberCache of `fiber`, load it if it's not in cache. The returned FiberCache is
+   * occupied, caller must call `FiberCache.release()` after using it, otherwise the memory
+   * won't be freed after eviction.
+   */
   def get(fiber: Fiber, conf: Configuration): FiberCache = {
-    // Used a flag called disposed in FiberCache to indicate if this FiberCache is removed
-    cache.get(fiber, cacheLoader(fiber, conf))
+    var loaded = false
+    val loader = cacheLoader(fiber, conf)
+    val fiberCache = cacheOf(fiber).get(fiber, () => { loaded = true; loader() })
+    OapReadMetrics.current.foreach { metrics =>
+      if (loaded) metrics.cacheMisses += 1 else metrics.cacheHits += 1
+    }
+    fiberCache
   }
 
+  /**
+   * Called by MemoryManager when the memory budget is exhausted. The pool exceeding its quota
+   * most, i.e. the borrower, is evicted first.
+   * @return the size of FiberCaches evicted, 0 means nothing can be evicted
+   */
+  private[filecache] def evictToFree(numOfBytes: Long): Long = {
+    logDebug(s"Memory is exhausted, evicting $numOfBytes bytes from cache")
+    val (first, second) =
+      if (dataCache.weight - dataQuota >= indexCache.weight - indexQuota) {
+        (dataCache, indexCache)
+      } else {
+        (indexCache, dataCache)
+      }
+    val evicted = first.evictWeight(numOfBytes)
+    if (evicted < numOfBytes) evicted + second.evictWeight(numOfBytes - evicted) else evicted
+  }
 
   def cacheSize : Long = _cacheSize.get()
+
+  def indexCacheSize: Long = indexCache.weight
+
+  def dataCacheSize: Long = dataCache.weight
+
+  def indexCacheStats: CacheStats = indexCache.stats
+
+  def dataCacheStats: CacheStats = dataCache.stats
+
+  def cacheStats: CacheStats = {
+    val (index, data) = (indexCache.stats, dataCache.stats)
+    CacheStats(
+      index.hitCount + data.hitCount,
+      index.missCount + data.missCount,
+      index.evictionCount + data.evictionCount,
+      index.rejectionCount + data.rejectionCount)
+  }
 }
 
+/**
+ * Cache of [[DataFileHandle]]s, keyed by the id of the file version in [[FileRegistry]], and
+ * bounded by the total size of the handles.
+ */
 private[oap] object DataFileHandleCacheManager extends Logging {
-  type ENTRY = DataFile
+  type ENTRY = java.lang.Integer
 
   private val _cacheSize: AtomicLong = new AtomicLong(0)
 
   def cacheSize: Long = _cacheSize.get()
 
+  private val maxWeight = SparkEnv.get.conf.get(SQLConf.OAP_DATA_FILE_HANDLE_CACHE_SIZE)
+
   private val cache =
     CacheBuilder
       .newBuilder()
       .concurrencyLevel(4) // DEFAULT_CONCURRENCY_LEVEL TODO verify that if it works
       .expireAfterAccess(1000, TimeUnit.SECONDS) // auto expire after 1000 seconds.
+      .maximumWeight(maxWeight)
+      .weigher(new Weigher[ENTRY, DataFileHandle]() {
+        override def weigh(key: ENTRY, value: DataFileHandle): Int =
+          math.min(value.len, Int.MaxValue).toInt
+      })
       .removalListener(new RemovalListener[ENTRY, DataFileHandle]() {
         override def onRemoval(n: RemovalNotification[ENTRY, DataFileHandle])
         : Unit = {
-          logDebug(s"Evicting Data File Handle ${n.getKey.path}")
+          logDebug(s"Evicting Data File Handle of file ${n.getKey}")
           _cacheSize.addAndGet(-n.getValue.len)
           n.getValue.close
         }
       })
-      .build[ENTRY, DataFileHandle](new CacheLoader[ENTRY, DataFileHandle]() {
-        override def load(entry: ENTRY)
-        : DataFileHandle = {
-          logDebug(s"Loading Data File Handle ${entry.path}")
-          val handle = entry.createDataFileHandle()
-          _cacheSize.addAndGet(handle.len)
-          handle
-        }
-      })
-
-  def apply[T <: DataFileHandle](fiberCache: DataFile): T = {
-    cache.get(fiberCache).asInstanceOf[T]
+      .build[ENTRY, DataFileHandle]()
+
+  def apply[T <: DataFileHandle](dataFile: DataFile): T = {
+    cache.get(dataFile.fileId, new Callable[DataFileHandle] {
+      override def call(): DataFileHandle = {
+        logDebug(s"Loading Data File Handle ${dataFile.path}")
+        val handle = dataFile.createDataFileHandle()
+        _cacheSize.addAndGet(handle.len)
+        handle
+      }
+    }).asInstanceOf[T]
   }
 }
 
+/**
+ * A loading unit of fiber cache. Fibers of files are keyed by primitive values, i.e. the id of
+ * the file version in [[FileRegistry]] and the position within the file, to avoid building
+ * strings on every lookup.
+ */
 private[oap] trait Fiber {
   def fiber2Data(conf: Configuration): FiberCache
+
+  /** Id of the file containing this fiber, or `FileRegistry.NO_FILE` */
+  def fileId: Int
+}
+
+private[oap] object Fiber {
+  def hash(fileId: Int, section: Int, idx: Int): Int = 31 * (31 * fileId + section) + idx
 }
 
 private[oap]
 case class DataFiber(file: DataFile, columnIndex: Int, rowGroupId: Int) extends Fiber {
+  override def fileId: Int = file.fileId
+
   override def fiber2Data(conf: Configuration): FiberCache =
     file.getFiberData(rowGroupId, columnIndex, conf)
 
-  override def hashCode(): Int = (file.path + columnIndex + rowGroupId).hashCode
+  override def hashCode(): Int = Fiber.hash(fileId, columnIndex, rowGroupId)
 
   override def equals(obj: Any): Boolean = obj match {
     case another: DataFiber =>
       another.columnIndex == columnIndex &&
         another.rowGroupId == rowGroupId &&
-        another.file.path.equals(file.path)
+        another.fileId == fileId
     case _ => false
   }
 }
@@ -159,18 +280,18 @@ case class DataFiber(file: DataFile, columnIndex: Int, rowGroupId: Int) extends
 private[oap]
 case class BTreeFiber(
     getFiberData: () => FiberCache,
-    file: String,
+    fileId: Int,
     section: Int,
     idx: Int) extends Fiber {
   override def fiber2Data(conf: Configuration): FiberCache = getFiberData()
 
-  override def hashCode(): Int = (file + section + idx).hashCode
+  override def hashCode(): Int = Fiber.hash(fileId, section, idx)
 
   override def equals(obj: Any): Boolean = obj match {
     case another: BTreeFiber =>
       another.section == section &&
         another.idx == idx &&
-        another.file.equals(file)
+        another.fileId == fileId
     case _ => false
   }
 }
@@ -178,25 +299,27 @@ case class BTreeFiber(
 private[oap]
 case class BitmapFiber(
     getFiberData: () => FiberCache,
-    file: String,
+    fileId: Int,
     // "0" means no split sections within file.
     sectionIdxOfFile: Int,
     // "0" means no smaller loading units.
     loadUnitIdxOfSection: Int) extends Fiber {
   override def fiber2Data(conf: Configuration): FiberCache = getFiberData()
 
-  override def hashCode(): Int = (file + sectionIdxOfFile + loadUnitIdxOfSection).hashCode
+  override def hashCode(): Int = Fiber.hash(fileId, sectionIdxOfFile, loadUnitIdxOfSection)
 
   override def equals(obj: Any): Boolean = obj match {
     case another: BitmapFiber =>
       another.sectionIdxOfFile == sectionIdxOfFile &&
         another.loadUnitIdxOfSection == loadUnitIdxOfSection &&
-        another.file.equals(file)
+        another.fileId == fileId
     case _ => false
   }
 }
 
 private[oap] case class TestFiber(getData: () => FiberCache, name: String) extends Fiber {
+  override def fileId: Int = FileRegistry.NO_FILE
+
   override def fiber2Data(conf: Configuration): FiberCache = getData()
 
   override def hashCode(): Int = name.hashCode()
@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import org.apache.spark.memory.{MemoryConsumer, MemoryMode, TaskMemoryManager}
+
+/**
+ * Spill hook of the fiber cache, registered to the [[TaskMemoryManager]] of each task reading
+ * OAP files. When the task is short of off-heap execution memory, [[TaskMemoryManager]] spills
+ * this consumer, which evicts fibers and releases the memory back to the storage pool, where the
+ * execution pool can borrow it.
+ *
+ * The consumer never holds execution memory itself, the reported usage is the fiber cache
+ * memory so that [[TaskMemoryManager]] will consider it as a spill candidate.
+ */
+private[oap] class FiberCacheMemoryConsumer(taskMemoryManager: TaskMemoryManager)
+  extends MemoryConsumer(
+    taskMemoryManager, taskMemoryManager.pageSizeBytes(), MemoryMode.OFF_HEAP) {
+
+  /**
+   * Register to [[TaskMemoryManager]], which only tracks the consumers acquiring memory and
+   * refuses requests of 0 bytes. The byte acquired is given back at once, the consumer stays
+   * registered until the task ends.
+   */
+  def register(): Unit = freeMemory(acquireMemory(1))
+
+  override def getUsed: Long = MemoryManager.memoryReserved
+
+  override def spill(size: Long, trigger: MemoryConsumer): Long = {
+    if (trigger == this) 0L else MemoryManager.spill(size)
+  }
+}
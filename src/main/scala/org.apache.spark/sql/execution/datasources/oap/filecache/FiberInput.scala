@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.io.{Closeable, EOFException, RandomAccessFile}
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{FSDataInputStream, LocalFileSystem, Path}
+import sun.nio.ch.DirectBuffer
+
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.sql.internal.SQLConf
+import org.apache.spark.storage.StorageUtils
+import org.apache.spark.unsafe.Platform
+import org.apache.spark.unsafe.memory.MemoryBlock
+
+/**
+ * A file read as [[FiberCache]]s of its byte ranges, e.g. the sections of an index file or the
+ * footer of a data file.
+ */
+private[oap] trait FiberInput extends Closeable {
+  def length: Long
+
+  def readFully(position: Long, bytes: Array[Byte]): Unit
+
+  /** Read `length` bytes from `position` as a fiber, caller owns the returned fiber */
+  def readFiber(position: Long, length: Int): FiberCache
+}
+
+private[oap] object FiberInput extends Logging {
+
+  /**
+   * Open `file` to read fibers from. A local file is memory mapped if enabled, its fibers are
+   * views over the mapped region, otherwise the fibers are read into off-heap memory.
+   */
+  def open(file: Path, conf: Configuration): FiberInput = {
+    val fs = file.getFileSystem(conf)
+    val enabled = conf.getBoolean(
+      SQLConf.OAP_MMAP_ENABLED.key, SQLConf.OAP_MMAP_ENABLED.defaultValue.get)
+    fs match {
+      case local: LocalFileSystem if enabled =>
+        val localFile = local.pathToFile(file)
+        if (localFile.length() <= Int.MaxValue) {
+          val channel = new RandomAccessFile(localFile, "r").getChannel
+          try {
+            new MappedFiberInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+          } finally {
+            channel.close()
+          }
+        } else {
+          // A mapped buffer is indexed by Int
+          logDebug(s"$file is too large to be mapped, read it through the file system")
+          new StreamFiberInput(fs.open(file), localFile.length())
+        }
+      case _ =>
+        new StreamFiberInput(fs.open(file), fs.getFileStatus(file).getLen)
+    }
+  }
+}
+
+private[oap] class StreamFiberInput(
+    in: FSDataInputStream,
+    val length: Long) extends FiberInput {
+
+  override def readFully(position: Long, bytes: Array[Byte]): Unit =
+    in.readFully(position, bytes)
+
+  override def readFiber(position: Long, length: Int): FiberCache =
+    MemoryManager.putToIndexFiberCache(in, position, length)
+
+  override def close(): Unit = in.close()
+}
+
+/**
+ * Fibers of a memory mapped file share the mapping without any copy, they are weighed by their
+ * sizes in the fiber cache the same as the fibers in off-heap memory. The file is unmapped once
+ * it's closed and all the fibers read from it are disposed.
+ */
+private[oap] class MappedFiberInput(buffer: MappedByteBuffer) extends FiberInput {
+
+  private val address = buffer.asInstanceOf[DirectBuffer].address()
+
+  // This input until closed, and each fiber read from it until disposed, guarded by `this`
+  private var refCount = 1
+  private var closed = false
+
+  override def length: Long = buffer.capacity()
+
+  private def checkRange(position: Long, length: Int): Unit = {
+    if (position < 0 || position + length > this.length) {
+      throw new EOFException(s"Read $length bytes at $position, file length: ${this.length}")
+    }
+  }
+
+  override def readFully(position: Long, bytes: Array[Byte]): Unit = synchronized {
+    if (closed) throw new OapException("Try to read a closed file")
+    checkRange(position, bytes.length)
+    Platform.copyMemory(
+      null, address + position, bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length)
+  }
+
+  override def readFiber(position: Long, length: Int): FiberCache = synchronized {
+    if (closed) throw new OapException("Try to read a closed file")
+    checkRange(position, length)
+    refCount += 1
+    MappedFiberCache(new MemoryBlock(null, address + position, length), this)
+  }
+
+  // For test purpose
+  private[filecache] def isUnmapped: Boolean = synchronized { refCount == 0 }
+
+  private[filecache] def release(): Unit = synchronized {
+    refCount -= 1
+    if (refCount == 0) StorageUtils.dispose(buffer)
+  }
+
+  override def close(): Unit = synchronized {
+    if (!closed) {
+      closed = true
+      release()
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.util.{Collections, Set => JSet}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.{BiFunction, Function => JFunction}
+
+import scala.collection.JavaConverters._
+
+import org.apache.spark.sql.execution.datasources.oap.OapFileFormat
+
+/**
+ * Map versions of files to compact integer ids, so that fibers can be keyed by primitive values
+ * instead of strings. A version is a file path with its fingerprint, see `FileMeta.fingerprint`.
+ * Once a file is overwritten, the new version gets a new id, so the fibers of the old version
+ * can't be reached any more and will be evicted eventually.
+ *
+ * Index files are also grouped by index name, parsed from the file name built by
+ * `IndexUtils.indexFileFromDataFile`, i.e. `.<data file>.<time>.<index name>.index`.
+ *
+ * Ids are never reused during the lifetime of the executor. An id is retired once the fibers of
+ * its file are removed from cache, the version gets a new id if it's read again.
+ */
+private[oap] object FileRegistry {
+
+  val NO_FILE: Int = -1
+
+  private val nextId = new AtomicInteger(0)
+
+  private val fileIds = new ConcurrentHashMap[(String, String), Integer]()
+
+  // Id -> version (path, fingerprint)
+  private val versions = new ConcurrentHashMap[Integer, (String, String)]()
+
+  // Path -> ids of all the versions of the file
+  private val versionIds = new ConcurrentHashMap[String, JSet[Integer]]()
+
+  // Index name -> ids of the index files
+  private val indexFiles = new ConcurrentHashMap[String, JSet[Integer]]()
+
+  private val newId = new JFunction[(String, String), Integer] {
+    override def apply(version: (String, String)): Integer = {
+      val (path, _) = version
+      val id = Integer.valueOf(nextId.getAndIncrement())
+      versions.put(id, version)
+      addId(versionIds, path, id)
+      indexNameOf(path).foreach(addId(indexFiles, _, id))
+      id
+    }
+  }
+
+  // The sets are changed inside `compute`, so that an empty set is never dropped while an id is
+  // being added into it
+  private def addId(ids: ConcurrentHashMap[String, JSet[Integer]], key: String, id: Integer) =
+    ids.compute(key, new BiFunction[String, JSet[Integer], JSet[Integer]] {
+      override def apply(key: String, set: JSet[Integer]): JSet[Integer] = {
+        val idSet = if (set != null) {
+          set
+        } else {
+          Collections.newSetFromMap(new ConcurrentHashMap[Integer, java.lang.Boolean]())
+        }
+        idSet.add(id)
+        idSet
+      }
+    })
+
+  private def removeId(ids: ConcurrentHashMap[String, JSet[Integer]], key: String, id: Integer) =
+    ids.computeIfPresent(key, new BiFunction[String, JSet[Integer], JSet[Integer]] {
+      override def apply(key: String, set: JSet[Integer]): JSet[Integer] = {
+        set.remove(id)
+        if (set.isEmpty) null else set
+      }
+    })
+
+  /**
+   * Get the id of `path` with `fingerprint`, register it if it's a new version. Empty
+   * fingerprint means the version is unknown, the file is assumed to be never changed.
+   */
+  def idOf(path: String, fingerprint: String): Int = {
+    val version = (path, fingerprint)
+    val id = fileIds.get(version)
+    if (id != null) id else fileIds.computeIfAbsent(version, newId)
+  }
+
+  /**
+   * Forget the version of `id`, e.g. after the fibers of the file are removed from cache, so that
+   * the registry doesn't grow with the files no longer read.
+   */
+  def retire(id: Int): Unit = {
+    val version = versions.remove(id)
+    if (version != null) {
+      val (path, _) = version
+      fileIds.remove(version, id)
+      removeId(versionIds, path, id)
+      indexNameOf(path).foreach(removeId(indexFiles, _, id))
+    }
+  }
+
+  /** Ids of all the registered versions of `path` */
+  def versionsOf(path: String): Seq[Int] = toSeq(versionIds.get(path))
+
+  /** Ids of all the registered files of index `indexName` */
+  def filesOfIndex(indexName: String): Seq[Int] = toSeq(indexFiles.get(indexName))
+
+  private def toSeq(ids: JSet[Integer]): Seq[Int] =
+    if (ids == null) Nil else ids.asScala.map(_.intValue()).toList
+
+  private def indexNameOf(path: String): Option[String] = {
+    if (path.endsWith(OapFileFormat.OAP_INDEX_EXTENSION)) {
+      val withoutExtension = path.stripSuffix(OapFileFormat.OAP_INDEX_EXTENSION)
+      Some(withoutExtension.substring(withoutExtension.lastIndexOf('.') + 1))
+    } else {
+      None
+    }
+  }
+}
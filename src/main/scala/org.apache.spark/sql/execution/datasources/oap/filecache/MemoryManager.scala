@@ -17,32 +17,85 @@
 
 package org.apache.spark.sql.execution.datasources.oap.filecache
 
+import java.io.EOFException
+import java.lang.reflect.Constructor
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicLong
 
-import org.apache.hadoop.fs.FSDataInputStream
+import scala.util.Try
 
-import org.apache.spark.SparkEnv
+import org.apache.hadoop.fs.{ByteBufferReadable, FSDataInputStream}
+
+import org.apache.spark.{SparkEnv, TaskContext}
 import org.apache.spark.internal.Logging
 import org.apache.spark.memory.MemoryMode
 import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.sql.internal.SQLConf
 import org.apache.spark.storage.{BlockManager, TestBlockId}
 import org.apache.spark.unsafe.Platform
 import org.apache.spark.unsafe.memory.{MemoryAllocator, MemoryBlock}
 import org.apache.spark.unsafe.types.UTF8String
+import org.apache.spark.util.Utils
 
 // TODO: make it an alias of MemoryBlock
 trait FiberCache {
   // In our design, fiberData should be a internal member.
   protected def fiberData: MemoryBlock
 
-  // TODO: need a flag to avoid accessing disposed FiberCache
+  // Number of readers currently using this FiberCache. All the states below are guarded by `this`.
+  private var refCount = 0
+  // Set once the FiberCache is removed from FiberCacheManager, the memory is freed when the last
+  // reader releases it.
+  private var evicted = false
   private var disposed = false
-  def isDisposed: Boolean = disposed
-  def dispose(): Unit = {
-    if (!disposed) MemoryManager.free(fiberData)
+
+  def isDisposed: Boolean = synchronized { disposed }
+  def isEvicted: Boolean = synchronized { evicted }
+  def referenceCount: Int = synchronized { refCount }
+
+  /**
+   * Pin this FiberCache so that it won't be freed even it's evicted from cache.
+   * Caller must call [[release]] after finishing using it.
+   */
+  private[filecache] def occupy(): Unit = synchronized {
+    if (disposed) throw new OapException("Try to occupy a freed memory")
+    refCount += 1
+  }
+
+  /**
+   * Pin this FiberCache only if it's still held by FiberCacheManager.
+   * @return false if it's already evicted, caller should get a new one from FiberCacheManager
+   */
+  private[oap] def tryOccupy(): Boolean = synchronized {
+    if (evicted || disposed) {
+      false
+    } else {
+      refCount += 1
+      true
+    }
+  }
+
+  /** Unpin this FiberCache, free the memory if it's the last user of an evicted FiberCache */
+  def release(): Unit = synchronized {
+    if (refCount <= 0) throw new OapException("Try to release a FiberCache which is not occupied")
+    refCount -= 1
+    if (refCount == 0 && evicted) dispose()
+  }
+
+  /** Called by FiberCacheManager when removing it from cache, free is deferred if still in use */
+  private[oap] def evict(): Unit = synchronized {
+    evicted = true
+    if (refCount == 0) dispose()
+  }
+
+  def dispose(): Unit = synchronized {
+    if (!disposed) freeFiberData()
     disposed = true
   }
 
+  protected def freeFiberData(): Unit = MemoryManager.free(fiberData)
+
   /** For debug purpose */
   def toArray: Array[Byte] = {
     // TODO: Handle overflow
@@ -111,10 +164,19 @@ case class DataFiberCache(fiberData: MemoryBlock) extends FiberCache
 // Index fiber caching, only used internally by Oap
 private[oap] case class IndexFiberCache(fiberData: MemoryBlock) extends FiberCache
 
+// Fiber over a memory mapped file, the mapping is shared by the fibers of the file
+private[oap] case class MappedFiberCache(fiberData: MemoryBlock, input: MappedFiberInput)
+  extends FiberCache {
+
+  override protected def freeFiberData(): Unit = input.release()
+}
+
 /**
  * Memory Manager
  *
- * Acquire fixed amount of memory from spark during initialization.
+ * Acquire memory from spark incrementally when the allocator needs a new slab or a large block,
+ * and release it back once freed, up to a fraction of the off-heap storage memory. Under
+ * execution memory pressure, [[FiberCacheMemoryConsumer]] evicts fibers to give memory back.
  *
  * TODO: Should change object to class for better initialization.
  * For example, we can't test two MemoryManger in one test suite.
@@ -130,19 +192,12 @@ private[oap] object MemoryManager extends Logging {
    */
   private val DUMMY_BLOCK_ID = TestBlockId("oap_memory_request_block")
 
-  // TODO: a config to control max memory size
   private val _maxMemory = {
     if (SparkEnv.get == null) {
       throw new OapException("No SparkContext is found")
     } else {
-      val memoryManager = SparkEnv.get.memoryManager
-      // TODO: make 0.7 configurable
-      val oapMaxMemory = (memoryManager.maxOffHeapStorageMemory * 0.7).toLong
-      if (memoryManager.acquireStorageMemory(DUMMY_BLOCK_ID, oapMaxMemory, MemoryMode.OFF_HEAP)) {
-        oapMaxMemory
-      } else {
-        throw new OapException("Can't acquire memory from spark Memory Manager")
-      }
+      val fraction = SparkEnv.get.conf.get(SQLConf.OAP_FIBER_CACHE_MEMORY_FRACTION)
+      (SparkEnv.get.memoryManager.maxOffHeapStorageMemory * fraction).toLong
     }
   }
 
@@ -151,34 +206,160 @@ private[oap] object MemoryManager extends Logging {
   def memoryUsed: Long = _memoryUsed.get()
   def maxMemory: Long = _maxMemory
 
+  private def acquireFromSpark(numOfBytes: Long): Boolean = {
+    val acquired = SparkEnv.get.memoryManager
+      .acquireStorageMemory(DUMMY_BLOCK_ID, numOfBytes, MemoryMode.OFF_HEAP)
+    if (!acquired) logDebug(s"Can't acquire $numOfBytes bytes from spark memory manager")
+    acquired
+  }
+
+  private def releaseToSpark(numOfBytes: Long): Unit =
+    SparkEnv.get.memoryManager.releaseStorageMemory(numOfBytes, MemoryMode.OFF_HEAP)
+
+  // All the off-heap memory is carved from what we acquired from Spark
+  private val allocator = new SlabAllocator(_maxMemory, acquireFromSpark, releaseToSpark)
+
+  /** Memory reserved by the allocator, including fragmentation, i.e. acquired from Spark */
+  def memoryReserved: Long = allocator.reserved
+
+  /**
+   * Evict fibers to give `numOfBytes` memory back to Spark. The memory of a fiber still used by
+   * a reader is only released after the reader releases it.
+   * @return the size of memory released to Spark
+   */
+  def spill(numOfBytes: Long): Long = {
+    val reservedBefore = memoryReserved
+    FiberCacheManager.evictToFree(numOfBytes)
+    val released = math.max(reservedBefore - memoryReserved, 0L)
+    logInfo(s"Spill fiber cache for $numOfBytes bytes, released $released bytes to spark")
+    released
+  }
+
+  private val spillHooks = new ConcurrentHashMap[Long, FiberCacheMemoryConsumer]()
+
+  /**
+   * Register a [[FiberCacheMemoryConsumer]] to the task, so that the task can spill fiber cache
+   * when it's short of execution memory. Only register once for each task.
+   */
+  def registerSpillHook(context: TaskContext): Unit = {
+    if (context != null && !spillHooks.containsKey(context.taskAttemptId())) {
+      val consumer = new FiberCacheMemoryConsumer(context.taskMemoryManager())
+      if (spillHooks.putIfAbsent(context.taskAttemptId(), consumer) == null) {
+        consumer.register()
+        context.addTaskCompletionListener(_ => spillHooks.remove(context.taskAttemptId()))
+      }
+    }
+  }
+
+  /**
+   * Allocate from the budget. If the budget is exhausted, evict fibers from FiberCacheManager
+   * synchronously until the allocation succeeds. Fail fast if there is nothing to evict.
+   */
   private[filecache] def allocate(numOfBytes: Int): MemoryBlock = {
+    var memoryBlock = allocator.allocate(numOfBytes)
+    // Evict what the allocator misses, e.g. a whole slab for a small block. Evicting the size of
+    // the block over and over may flush most of the cache before a slab is freed.
+    while (memoryBlock == null &&
+        FiberCacheManager.evictToFree(allocator.bytesToFree(numOfBytes)) > 0) {
+      memoryBlock = allocator.allocate(numOfBytes)
+    }
+    if (memoryBlock == null) {
+      throw new OapException(s"Can't allocate $numOfBytes bytes, used: $memoryUsed, " +
+        s"reserved: $memoryReserved, max: $maxMemory")
+    }
     _memoryUsed.getAndAdd(numOfBytes)
     logDebug(s"allocate $numOfBytes memory, used: $memoryUsed")
-    MemoryAllocator.UNSAFE.allocate(numOfBytes)
+    memoryBlock
   }
 
   private[filecache] def free(memoryBlock: MemoryBlock): Unit = {
-    MemoryAllocator.UNSAFE.free(memoryBlock)
-    _memoryUsed.getAndAdd(-memoryBlock.size())
+    // On-heap block is only created for test purpose, see FiberCache.apply
+    if (memoryBlock.getBaseObject == null) {
+      allocator.free(memoryBlock)
+      _memoryUsed.getAndAdd(-memoryBlock.size())
+    }
     logDebug(s"freed ${memoryBlock.size()} memory, used: $memoryUsed")
   }
 
   // Used by IndexFile
   // TODO: putToFiberCache(in: Stream, position: Long, length: Int, type: FiberType)
   def putToIndexFiberCache(in: FSDataInputStream, position: Long, length: Int): IndexFiberCache = {
-    val bytes = new Array[Byte](length)
-    in.readFully(position, bytes)
-
-    val memoryBlock = allocate(bytes.length)
-    Platform.copyMemory(
-      bytes,
-      Platform.BYTE_ARRAY_OFFSET,
-      memoryBlock.getBaseObject,
-      memoryBlock.getBaseOffset,
-      bytes.length)
+    val memoryBlock = allocate(length)
+    try {
+      readFully(in, position, memoryBlock)
+    } catch {
+      case e: Throwable =>
+        free(memoryBlock)
+        throw e
+    }
     IndexFiberCache(memoryBlock)
   }
 
+  /**
+   * Read `memoryBlock.size()` bytes from `position` of `in` directly into `memoryBlock`, without
+   * any temporary on-heap byte array of the whole size. If the stream supports reading into
+   * [[ByteBuffer]], read into a direct buffer wrapping the off-heap memory. Otherwise, read
+   * through a small thread local bounce buffer.
+   */
+  private def readFully(in: FSDataInputStream, position: Long, memoryBlock: MemoryBlock): Unit = {
+    val directBuffer =
+      if (in.getWrappedStream.isInstanceOf[ByteBufferReadable]) wrapMemoryBlock(memoryBlock)
+      else None
+    directBuffer match {
+      case Some(buffer) =>
+        // `read(ByteBuffer)` is not a positional read, keep the stream position unchanged
+        in.synchronized {
+          val oldPos = in.getPos
+          in.seek(position)
+          try {
+            while (buffer.hasRemaining) {
+              if (in.read(buffer) < 0) {
+                throw new EOFException(s"Reach the end of stream when reading at $position")
+              }
+            }
+          } finally {
+            in.seek(oldPos)
+          }
+        }
+      case None =>
+        val bounceBuffer = bounceBuffers.get()
+        var offset = 0L
+        while (offset < memoryBlock.size()) {
+          val length = math.min(bounceBuffer.length, memoryBlock.size() - offset).toInt
+          in.readFully(position + offset, bounceBuffer, 0, length)
+          Platform.copyMemory(bounceBuffer, Platform.BYTE_ARRAY_OFFSET,
+            memoryBlock.getBaseObject, memoryBlock.getBaseOffset + offset, length)
+          offset += length
+        }
+    }
+  }
+
+  private val BOUNCE_BUFFER_SIZE = 64 * 1024
+
+  private val bounceBuffers = new ThreadLocal[Array[Byte]] {
+    override def initialValue(): Array[Byte] = new Array[Byte](BOUNCE_BUFFER_SIZE)
+  }
+
+  // DirectByteBuffer(long address, int capacity), to wrap the off-heap memory as a ByteBuffer
+  private lazy val directBufferConstructor: Option[Constructor[_]] = Try {
+    val constructor = Utils.classForName("java.nio.DirectByteBuffer")
+      .getDeclaredConstructor(classOf[Long], classOf[Int])
+    constructor.setAccessible(true)
+    constructor
+  }.toOption
+
+  private def wrapMemoryBlock(memoryBlock: MemoryBlock): Option[ByteBuffer] = {
+    if (memoryBlock.getBaseObject != null) {
+      None
+    } else {
+      directBufferConstructor.flatMap { constructor =>
+        Try(constructor.newInstance(
+          java.lang.Long.valueOf(memoryBlock.getBaseOffset),
+          Integer.valueOf(memoryBlock.size().toInt)).asInstanceOf[ByteBuffer]).toOption
+      }
+    }
+  }
+
   // Used by OapDataFile since we need to parse the raw data in on-heap memory before put it into
   // off-heap memory
   def putToDataFiberCache(bytes: Array[Byte]): DataFiberCache = {
@@ -0,0 +1,441 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.util.{LinkedHashMap => JLinkedHashMap}
+import java.util.concurrent.{ArrayBlockingQueue, ConcurrentHashMap, CountDownLatch}
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+
+import scala.collection.JavaConverters._
+
+import org.apache.spark.internal.Logging
+
+private[oap] case class CacheStats(
+    hitCount: Long,
+    missCount: Long,
+    evictionCount: Long,
+    rejectionCount: Long) {
+  def requestCount: Long = hitCount + missCount
+  def hitRate: Double = if (requestCount == 0) 1.0 else hitCount.toDouble / requestCount
+}
+
+/**
+ * A concurrent, weight bounded cache for [[FiberCache]].
+ *
+ * Lookups go to a [[ConcurrentHashMap]] without any global lock. A fiber is loaded by one reader
+ * only, the other readers of it wait for the loading, while the readers of other fibers are not
+ * blocked. Accesses are recorded into striped lossy buffers
+ * and replayed to the eviction policy in batch, just like what Caffeine does.
+ *
+ * The eviction policy is W-TinyLFU: new entries go to a small LRU admission window, entries
+ * overflowing the window are only admitted to the main space (a segmented LRU) if they are
+ * accessed more frequently than the victim they would replace. The frequency is estimated by
+ * a [[FrequencySketch]]. So a large full scan can't flush the frequently used index fibers.
+ *
+ * Weight of each entry is the exact byte size of the FiberCache.
+ *
+ * @param maxWeight the total bytes can be cached, i.e. the quota of this cache
+ * @param onRemoval called after an entry is removed from cache, either evicted or invalidated
+ * @param borrowable the idle bytes can be borrowed from other caches beyond `maxWeight`
+ * @param onInsert called after an entry is put into cache, `onInsert` and `onRemoval` are
+ *                 called under the same lock, in the order of the changes
+ */
+private[filecache] class OapCache(
+    val maxWeight: Long,
+    onRemoval: (Fiber, FiberCache) => Unit,
+    borrowable: () => Long = () => 0L,
+    onInsert: (Fiber, FiberCache) => Unit = (_, _) => ()) extends Logging {
+
+  import OapCache._
+
+  private val numStripes = {
+    val parallelism = Runtime.getRuntime.availableProcessors() * 4
+    Integer.highestOneBit(math.max(parallelism - 1, 1)) << 1
+  }
+  private val stripeMask = numStripes - 1
+
+  private val data = new ConcurrentHashMap[Fiber, FiberCache]()
+  // Fibers being loaded, the latch is opened once the loading is done
+  private val loadings = new ConcurrentHashMap[Fiber, CountDownLatch]()
+  private val readBuffers = Array.fill(numStripes)(new ArrayBlockingQueue[Fiber](READ_BUFFER_SIZE))
+
+  // All the states below are guarded by evictionLock
+  private val evictionLock = new ReentrantLock()
+  private val sketch = new FrequencySketch(
+    math.min(math.max(maxWeight / ESTIMATED_FIBER_SIZE, MIN_SKETCH_SIZE), MAX_SKETCH_SIZE).toInt)
+  // Access ordered queues, the head is the least recently used one.
+  private val window = new JLinkedHashMap[Fiber, FiberCache]()
+  private val probation = new JLinkedHashMap[Fiber, FiberCache]()
+  private val protect = new JLinkedHashMap[Fiber, FiberCache]()
+
+  // The capacity may change with the borrowable bytes
+  private def capacity: Long = maxWeight + borrowable()
+  private def maxWindowWeight: Long = math.max((capacity * WINDOW_RATIO).toLong, 1L)
+  private def maxMainWeight: Long = capacity - maxWindowWeight
+  private def maxProtectedWeight: Long = (maxMainWeight * PROTECTED_RATIO).toLong
+
+  private var windowWeight = 0L
+  private var probationWeight = 0L
+  private var protectedWeight = 0L
+  // Published total weight, can be read by other caches without evictionLock
+  @volatile private var currentWeight = 0L
+
+  private val hitCount = new AtomicLong(0)
+  private val missCount = new AtomicLong(0)
+  private val evictionCount = new AtomicLong(0)
+  private val rejectionCount = new AtomicLong(0)
+
+  private def stripeOf(fiber: Fiber): Int = FrequencySketch.spread(fiber.hashCode()) & stripeMask
+
+  /**
+   * Get the occupied FiberCache of `fiber`, call `loader` to load it if absent.
+   * `loader` must return an occupied FiberCache.
+   */
+  def get(fiber: Fiber, loader: () => FiberCache): FiberCache = {
+    var result: FiberCache = null
+    while (result == null) {
+      val cached = data.get(fiber)
+      if (cached != null && cached.tryOccupy()) {
+        afterRead(fiber)
+        result = cached
+      } else {
+        val loading = new CountDownLatch(1)
+        val other = loadings.putIfAbsent(fiber, loading)
+        if (other != null) {
+          // Look up again once loaded, the fiber may be rejected, or failed to load
+          other.await()
+        } else {
+          try {
+            // It may be loaded after the lookup above
+            val loaded = data.get(fiber)
+            if (loaded != null && loaded.tryOccupy()) {
+              afterRead(fiber)
+              result = loaded
+            } else {
+              missCount.incrementAndGet()
+              result = loader()
+              afterWrite(fiber, result)
+            }
+          } finally {
+            loadings.remove(fiber, loading)
+            loading.countDown()
+          }
+        }
+      }
+    }
+    result
+  }
+
+  def getIfPresent(fiber: Fiber): Option[FiberCache] = Option(data.get(fiber))
+
+  def invalidate(fiber: Fiber): Unit = {
+    evictionLock.lock()
+    try {
+      drainReadBuffers()
+      val fiberCache = data.remove(fiber)
+      if (fiberCache != null) {
+        removeFromQueues(fiber, fiberCache.size())
+        onRemoval(fiber, fiberCache)
+      }
+    } finally {
+      updateWeight()
+      evictionLock.unlock()
+    }
+  }
+
+  def invalidateAll(fibers: Iterable[Fiber]): Unit = fibers.foreach(invalidate)
+
+  def keys: Iterable[Fiber] = data.keySet().asScala
+
+  def size: Long = data.size()
+
+  def weight: Long = currentWeight
+
+  def stats: CacheStats =
+    CacheStats(hitCount.get(), missCount.get(), evictionCount.get(), rejectionCount.get())
+
+  /**
+   * Evict entries in LRU order regardless of the admission policy, until `numOfBytes` weight is
+   * evicted or the cache is empty. Note the memory of occupied FiberCaches is not freed at once.
+   *
+   * @return the weight evicted
+   */
+  def evictWeight(numOfBytes: Long): Long = {
+    evictionLock.lock()
+    try {
+      drainReadBuffers()
+      var evicted = 0L
+      while (evicted < numOfBytes && !(window.isEmpty && probation.isEmpty && protect.isEmpty)) {
+        evicted += evictFirst(
+          if (!probation.isEmpty) probation else if (!window.isEmpty) window else protect)
+      }
+      evicted
+    } finally {
+      updateWeight()
+      evictionLock.unlock()
+    }
+  }
+
+  private def updateWeight(): Unit =
+    currentWeight = windowWeight + probationWeight + protectedWeight
+
+  private def afterRead(fiber: Fiber): Unit = {
+    hitCount.incrementAndGet()
+    val buffer = readBuffers(stripeOf(fiber))
+    // The buffer is lossy, dropping some accesses only makes the policy less accurate
+    buffer.offer(fiber)
+    if (buffer.size() >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+      try drainReadBuffers() finally evictionLock.unlock()
+    }
+  }
+
+  private def afterWrite(fiber: Fiber, fiberCache: FiberCache): Unit = {
+    evictionLock.lock()
+    try {
+      drainReadBuffers()
+      sketch.increment(fiber)
+      val entryWeight = fiberCache.size()
+      if (entryWeight > capacity) {
+        // Too large to cache, the memory will be freed once the caller releases it.
+        logDebug(s"$fiber is larger than the cache capacity, won't be cached")
+        rejectionCount.incrementAndGet()
+        onRemoval(fiber, fiberCache)
+      } else {
+        data.put(fiber, fiberCache)
+        window.put(fiber, fiberCache)
+        windowWeight += entryWeight
+        onInsert(fiber, fiberCache)
+        evictEntries()
+      }
+    } finally {
+      updateWeight()
+      evictionLock.unlock()
+    }
+  }
+
+  private def drainReadBuffers(): Unit = {
+    readBuffers.foreach { buffer =>
+      var fiber = buffer.poll()
+      while (fiber != null) {
+        sketch.increment(fiber)
+        onAccess(fiber)
+        fiber = buffer.poll()
+      }
+    }
+  }
+
+  private def onAccess(fiber: Fiber): Unit = {
+    if (window.containsKey(fiber)) {
+      window.put(fiber, window.remove(fiber))
+    } else if (protect.containsKey(fiber)) {
+      protect.put(fiber, protect.remove(fiber))
+    } else if (probation.containsKey(fiber)) {
+      // Promote to protected segment, and demote the protected overflow back to probation
+      val fiberCache = probation.remove(fiber)
+      probationWeight -= fiberCache.size()
+      protect.put(fiber, fiberCache)
+      protectedWeight += fiberCache.size()
+      while (protectedWeight > maxProtectedWeight && protect.size() > 1) {
+        val (demoted, demotedCache) = pollFirst(protect)
+        protectedWeight -= demotedCache.size()
+        probation.put(demoted, demotedCache)
+        probationWeight += demotedCache.size()
+      }
+    }
+    // Otherwise, the fiber is already evicted
+  }
+
+  private def evictEntries(): Unit = {
+    // Entries overflowing the admission window compete with the victims of main space
+    while (windowWeight > maxWindowWeight) {
+      val (candidate, candidateCache) = pollFirst(window)
+      windowWeight -= candidateCache.size()
+      admit(candidate, candidateCache)
+    }
+    // The capacity may shrink when the lent bytes are taken back
+    while (probationWeight + protectedWeight > maxMainWeight) {
+      evictFirst(if (!probation.isEmpty) probation else protect)
+    }
+  }
+
+  private def admit(candidate: Fiber, candidateCache: FiberCache): Unit = {
+    val candidateWeight = candidateCache.size()
+    def isFull = probationWeight + protectedWeight + candidateWeight > maxMainWeight
+    def mainVictims = if (!probation.isEmpty) probation else protect
+    // The candidate is compared with the first victim only, before anything is evicted, so the
+    // freed weight is never wasted on a rejected candidate
+    val admitted = candidateWeight <= maxMainWeight && (!isFull || mainVictims.isEmpty ||
+      sketch.frequency(candidate) > sketch.frequency(firstEntry(mainVictims)._1))
+    if (admitted) {
+      while (isFull) evictFirst(mainVictims)
+      probation.put(candidate, candidateCache)
+      probationWeight += candidateWeight
+    } else {
+      rejectionCount.incrementAndGet()
+      evict(candidate, candidateCache)
+    }
+  }
+
+  private def evict(fiber: Fiber, fiberCache: FiberCache): Unit = {
+    logDebug(s"Evicting Cache $fiber")
+    data.remove(fiber, fiberCache)
+    evictionCount.incrementAndGet()
+    onRemoval(fiber, fiberCache)
+  }
+
+  /** Evict the least recently used entry of `queue`, return its weight */
+  private def evictFirst(queue: JLinkedHashMap[Fiber, FiberCache]): Long = {
+    val (victim, victimCache) = pollFirst(queue)
+    val victimWeight = victimCache.size()
+    if (queue eq probation) {
+      probationWeight -= victimWeight
+    } else if (queue eq window) {
+      windowWeight -= victimWeight
+    } else {
+      protectedWeight -= victimWeight
+    }
+    evict(victim, victimCache)
+    victimWeight
+  }
+
+  private def removeFromQueues(fiber: Fiber, entryWeight: Long): Unit = {
+    if (window.remove(fiber) != null) {
+      windowWeight -= entryWeight
+    } else if (probation.remove(fiber) != null) {
+      probationWeight -= entryWeight
+    } else if (protect.remove(fiber) != null) {
+      protectedWeight -= entryWeight
+    }
+  }
+
+  private def firstEntry(queue: JLinkedHashMap[Fiber, FiberCache]): (Fiber, FiberCache) = {
+    val entry = queue.entrySet().iterator().next()
+    (entry.getKey, entry.getValue)
+  }
+
+  private def pollFirst(queue: JLinkedHashMap[Fiber, FiberCache]): (Fiber, FiberCache) = {
+    val iterator = queue.entrySet().iterator()
+    val entry = iterator.next()
+    iterator.remove()
+    (entry.getKey, entry.getValue)
+  }
+}
+
+private[filecache] object OapCache {
+  // Ratio of the admission window to the whole cache
+  val WINDOW_RATIO = 0.01
+  // Ratio of the protected segment to the main space
+  val PROTECTED_RATIO = 0.8
+
+  val READ_BUFFER_SIZE = 128
+  val READ_BUFFER_DRAIN_THRESHOLD = 64
+
+  // Used to estimate how many entries the cache can hold, to size the frequency sketch
+  val ESTIMATED_FIBER_SIZE: Long = 64 * 1024
+  val MIN_SKETCH_SIZE: Long = 1024
+  val MAX_SKETCH_SIZE: Long = 1 << 24
+}
+
+/**
+ * A probabilistic multi-set for estimating the access frequency of fibers, a Count-Min sketch
+ * with 4-bit counters (so the max frequency is 15). To keep the frequencies fresh, all the
+ * counters are halved once the number of increments reaches the sample size.
+ *
+ * Not thread safe, must be guarded by the caller.
+ */
+private[filecache] class FrequencySketch(expectedSize: Int) {
+
+  import FrequencySketch._
+
+  // Each long holds 16 counters
+  private val table = new Array[Long](Integer.highestOneBit(math.max(expectedSize - 1, 1)) << 1)
+  private val tableMask = table.length - 1
+  private val sampleSize = 10 * table.length
+  private var size = 0
+
+  def frequency(fiber: Fiber): Int = {
+    val hash = spread(fiber.hashCode())
+    val start = (hash & 3) << 2
+    var frequency = Int.MaxValue
+    var i = 0
+    while (i < 4) {
+      val index = indexOf(hash, i)
+      val count = ((table(index) >>> ((start + i) << 2)) & 0xfL).toInt
+      frequency = math.min(frequency, count)
+      i += 1
+    }
+    frequency
+  }
+
+  def increment(fiber: Fiber): Unit = {
+    val hash = spread(fiber.hashCode())
+    val start = (hash & 3) << 2
+    var added = false
+    var i = 0
+    while (i < 4) {
+      added |= incrementAt(indexOf(hash, i), start + i)
+      i += 1
+    }
+    if (added) {
+      size += 1
+      if (size == sampleSize) reset()
+    }
+  }
+
+  private def incrementAt(index: Int, counter: Int): Boolean = {
+    val offset = counter << 2
+    val mask = 0xfL << offset
+    if ((table(index) & mask) != mask) {
+      table(index) += 1L << offset
+      true
+    } else {
+      false
+    }
+  }
+
+  private def reset(): Unit = {
+    var count = 0
+    var i = 0
+    while (i < table.length) {
+      count += java.lang.Long.bitCount(table(i) & ONE_MASK)
+      table(i) = (table(i) >>> 1) & RESET_MASK
+      i += 1
+    }
+    size = (size >>> 1) - (count >>> 2)
+  }
+
+  private def indexOf(hash: Int, i: Int): Int = {
+    var h = (hash + SEEDS(i)) * SEEDS(i)
+    h += h >>> 32
+    h.toInt & tableMask
+  }
+}
+
+private[filecache] object FrequencySketch {
+  private val SEEDS = Array(
+    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L)
+  private val RESET_MASK = 0x7777777777777777L
+  private val ONE_MASK = 0x1111111111111111L
+
+  def spread(hashCode: Int): Int = {
+    var x = ((hashCode >>> 16) ^ hashCode) * 0x45d9f3b
+    x = ((x >>> 16) ^ x) * 0x45d9f3b
+    (x >>> 16) ^ x
+  }
+}
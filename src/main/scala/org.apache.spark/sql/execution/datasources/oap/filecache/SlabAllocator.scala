@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.util.{TreeMap => JTreeMap}
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.unsafe.memory.{MemoryAllocator, MemoryBlock}
+
+/**
+ * Off-heap allocator with a hard memory budget.
+ *
+ * Small blocks (footers, B+ tree nodes, etc.) are carved from fixed size slabs, each size class
+ * is a power of 2 and keeps its own free slots, so the many small fibers don't fragment the
+ * native heap. Large blocks (row id lists, data fibers) are allocated directly.
+ *
+ * Both slabs and large blocks are reserved against `capacity`, allocation returns null instead
+ * of overcommitting when the budget is exhausted. Each reservation is also backed by `acquire`,
+ * and handed back by `release` once the memory is freed, so that the memory is only held from
+ * the outside world while it's really used.
+ */
+private[filecache] class SlabAllocator(
+    capacity: Long,
+    acquire: Long => Boolean = _ => true,
+    release: Long => Unit = _ => ()) extends Logging {
+
+  import SlabAllocator._
+
+  private val _reserved = new AtomicLong(0)
+
+  private val sizeClasses =
+    Array.tabulate(NUM_SIZE_CLASSES)(i => new SizeClass(MIN_SLOT_SIZE << i))
+
+  /** Bytes reserved from the budget, including the unused slots of slabs */
+  def reserved: Long = _reserved.get()
+
+  def maxMemory: Long = capacity
+
+  private def tryReserve(numOfBytes: Long): Boolean = {
+    var current = _reserved.get()
+    while (current + numOfBytes <= capacity) {
+      if (_reserved.compareAndSet(current, current + numOfBytes)) {
+        if (acquire(numOfBytes)) return true
+        _reserved.addAndGet(-numOfBytes)
+        return false
+      }
+      current = _reserved.get()
+    }
+    false
+  }
+
+  private def unreserve(numOfBytes: Long): Unit = {
+    _reserved.addAndGet(-numOfBytes)
+    release(numOfBytes)
+  }
+
+  private def sizeClassOf(numOfBytes: Long): SizeClass = {
+    val slotSize = math.max(numOfBytes, MIN_SLOT_SIZE)
+    val index = 64 - java.lang.Long.numberOfLeadingZeros(slotSize - 1) - MIN_SLOT_SIZE_SHIFT
+    sizeClasses(index)
+  }
+
+  /**
+   * Bytes to free before `allocate(numOfBytes)` is able to succeed once it returned null. A small
+   * block needs a whole new slab, since its size class has no free slot. If the budget is not
+   * exhausted, the memory was refused by `acquire`, all the required bytes are to be freed.
+   */
+  def bytesToFree(numOfBytes: Long): Long = {
+    val required = if (numOfBytes <= MAX_SLOT_SIZE) SLAB_SIZE else numOfBytes
+    val missing = required - (capacity - reserved)
+    if (missing > 0) missing else required
+  }
+
+  /**
+   * @return the allocated block, or null if the budget is exhausted
+   */
+  def allocate(numOfBytes: Long): MemoryBlock = {
+    if (numOfBytes <= MAX_SLOT_SIZE) {
+      sizeClassOf(numOfBytes).allocate(numOfBytes)
+    } else if (tryReserve(numOfBytes)) {
+      MemoryAllocator.UNSAFE.allocate(numOfBytes)
+    } else {
+      null
+    }
+  }
+
+  def free(memoryBlock: MemoryBlock): Unit = {
+    if (memoryBlock.size() <= MAX_SLOT_SIZE) {
+      sizeClassOf(memoryBlock.size()).free(memoryBlock)
+    } else {
+      MemoryAllocator.UNSAFE.free(memoryBlock)
+      unreserve(memoryBlock.size())
+    }
+  }
+
+  private class Slab(val memory: MemoryBlock, slotSize: Long) {
+    val numSlots: Int = (SLAB_SIZE / slotSize).toInt
+    // Indices of the free slots
+    private val freeSlots = Array.tabulate(numSlots)(i => numSlots - 1 - i)
+    private var numFree = numSlots
+
+    def isFull: Boolean = numFree == 0
+    def isEmpty: Boolean = numFree == numSlots
+
+    def allocate(numOfBytes: Long): MemoryBlock = {
+      numFree -= 1
+      val slot = freeSlots(numFree)
+      new MemoryBlock(null, memory.getBaseOffset + slot * slotSize, numOfBytes)
+    }
+
+    def free(memoryBlock: MemoryBlock): Unit = {
+      freeSlots(numFree) = ((memoryBlock.getBaseOffset - memory.getBaseOffset) / slotSize).toInt
+      numFree += 1
+    }
+  }
+
+  // All the states are guarded by `this`
+  private class SizeClass(slotSize: Long) {
+    // Slabs keyed by base address, to find the slab of a freed block
+    private val slabs = new JTreeMap[java.lang.Long, Slab]()
+    private val available = new java.util.ArrayDeque[Slab]()
+
+    def allocate(numOfBytes: Long): MemoryBlock = synchronized {
+      if (available.isEmpty && tryReserve(SLAB_SIZE)) {
+        val slab = new Slab(MemoryAllocator.UNSAFE.allocate(SLAB_SIZE), slotSize)
+        logDebug(s"allocate a new slab for $slotSize bytes slots")
+        slabs.put(slab.memory.getBaseOffset, slab)
+        available.push(slab)
+      }
+      if (available.isEmpty) {
+        null
+      } else {
+        val slab = available.peek()
+        val memoryBlock = slab.allocate(numOfBytes)
+        if (slab.isFull) available.pop()
+        memoryBlock
+      }
+    }
+
+    def free(memoryBlock: MemoryBlock): Unit = synchronized {
+      val entry = slabs.floorEntry(memoryBlock.getBaseOffset)
+      if (entry == null) {
+        throw new OapException("Try to free a memory not allocated by slab allocator")
+      }
+      val slab = entry.getValue
+      if (slab.isFull) available.push(slab)
+      slab.free(memoryBlock)
+      // Keep one slab for each size class to avoid thrashing
+      if (slab.isEmpty && slabs.size() > 1) {
+        slabs.remove(entry.getKey)
+        available.remove(slab)
+        MemoryAllocator.UNSAFE.free(slab.memory)
+        unreserve(SLAB_SIZE)
+      }
+    }
+  }
+}
+
+private[filecache] object SlabAllocator {
+  val SLAB_SIZE: Long = 1024 * 1024
+  val MIN_SLOT_SIZE_SHIFT = 6
+  val MIN_SLOT_SIZE: Long = 1L << MIN_SLOT_SIZE_SHIFT
+  // Size classes are 64B, 128B, ..., 64KB
+  val NUM_SIZE_CLASSES = 11
+  val MAX_SLOT_SIZE: Long = MIN_SLOT_SIZE << (NUM_SIZE_CLASSES - 1)
+}
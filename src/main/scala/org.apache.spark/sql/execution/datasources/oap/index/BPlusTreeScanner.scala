@@ -29,6 +29,7 @@ import org.apache.spark.sql.execution.datasources.oap.statistics.StatisticsManag
 // this will scan the B+ Tree (index) leaf node.
 private[oap] class BPlusTreeScanner(idxMeta: IndexMeta) extends IndexScanner(idxMeta) {
   override def canBeOptimizedByStatistics: Boolean = true
+  override def canScanBackward: Boolean = true
   override def toString(): String = "BPlusTreeScanner"
   @transient protected var currentKeyArray: Array[CurrentKey] = _
 
@@ -43,7 +44,7 @@ private[oap] class BPlusTreeScanner(idxMeta: IndexMeta) extends IndexScanner(idx
     logDebug("\tFile Size: " + path.getFileSystem(conf).getFileStatus(path).getLen)
 
     recordReader = BTreeIndexRecordReader(conf, keySchema)
-    recordReader.initialize(path, intervalArray)
+    recordReader.initialize(path, intervalArray, backward)
     this
   }
 
@@ -52,15 +53,19 @@ private[oap] class BPlusTreeScanner(idxMeta: IndexMeta) extends IndexScanner(idx
     // This is called before the scanner call `initialize`
     val reader = BTreeIndexFileReader(conf, indexPath)
     val footerFiber = BTreeFiber(
-      () => reader.readFooter(), reader.file.toString, reader.footerSectionId, 0)
+      () => reader.readFooter(), reader.fileId, reader.footerSectionId, 0)
     val footerCache = FiberCacheManager.get(footerFiber, conf)
     val footer = BTreeFooter(footerCache, keySchema)
     val offset = footer.getStatsOffset
 
     val stats = StatisticsManager.read(footerCache, offset, keySchema)
+    footerCache.release()
+    reader.close()
     StatisticsManager.analyse(stats, intervalArray, conf)
   }
 
+  override def close(): Unit = if (recordReader != null) recordReader.close()
+
   override def hasNext: Boolean = recordReader.hasNext
 
   override def next(): Int = recordReader.next()
@@ -21,7 +21,8 @@ import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.fs.Path
 
 import org.apache.spark.sql.execution.datasources.OapException
-import org.apache.spark.sql.execution.datasources.oap.filecache.{FiberCache, MemoryManager}
+import org.apache.spark.sql.execution.datasources.oap.FileMeta
+import org.apache.spark.sql.execution.datasources.oap.filecache.{FiberCache, FiberInput, FileRegistry}
 import org.apache.spark.sql.execution.datasources.oap.io.IndexFile
 import org.apache.spark.sql.internal.SQLConf
 import org.apache.spark.unsafe.Platform
@@ -42,11 +43,15 @@ private[oap] case class BTreeIndexFileReader(
   val rowIdListSizePerSection: Int =
     configuration.getInt(SQLConf.OAP_BTREE_ROW_LIST_PART_SIZE.key, 1024 * 1024)
 
-  private val (reader, fileLength) = {
+  private val (reader, fileLength, fileFingerprint) = {
     val fs = file.getFileSystem(configuration)
-    (fs.open(file), fs.getFileStatus(file).getLen)
+    val status = fs.getFileStatus(file)
+    (FiberInput.open(file, configuration), status.getLen, FileMeta.fingerprint(status))
   }
 
+  // Fibers of this index file are keyed by the id of this version
+  val fileId: Int = FileRegistry.idOf(file.toString, fileFingerprint)
+
   private val (footerLength, rowIdListLength) = {
     val sectionLengthIndex = fileLength - FOOTER_LENGTH_SIZE - ROW_ID_LIST_LENGTH_SIZE
     val sectionLengthBuffer = new Array[Byte](FOOTER_LENGTH_SIZE + ROW_ID_LIST_LENGTH_SIZE)
@@ -71,7 +76,7 @@ private[oap] case class BTreeIndexFileReader(
   }
 
   def readFooter(): FiberCache =
-    MemoryManager.putToIndexFiberCache(reader, footerIndex, footerLength)
+    reader.readFiber(footerIndex, footerLength)
 
   def readRowIdList(partIdx: Int): FiberCache = {
     val partSize = rowIdListSizePerSection * IndexUtils.INT_SIZE
@@ -80,15 +85,15 @@ private[oap] case class BTreeIndexFileReader(
     } else {
       partSize
     }
-    MemoryManager.putToIndexFiberCache(reader, rowIdListIndex + partIdx * partSize, readLength)
+    reader.readFiber(rowIdListIndex + partIdx * partSize, readLength)
   }
 
   @deprecated("no need to read the whole row id list", "v0.3")
   def readRowIdList(): FiberCache =
-    MemoryManager.putToIndexFiberCache(reader, rowIdListIndex, rowIdListLength)
+    reader.readFiber(rowIdListIndex, rowIdListLength)
 
   def readNode(offset: Int, size: Int): FiberCache =
-    MemoryManager.putToIndexFiberCache(reader, nodesIndex + offset, size)
+    reader.readFiber(nodesIndex + offset, size)
 
   def close(): Unit = reader.close()
 }
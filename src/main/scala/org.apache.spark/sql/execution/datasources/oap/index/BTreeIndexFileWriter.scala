@@ -52,9 +52,12 @@ private case class BTreeIndexFileWriter(
     writer.write(buf)
   }
 
-  def writeRowIdList(buf: Array[Byte]): Unit = {
-    writer.write(buf)
-    rowIdListSize += buf.length
+  def writeRowIdList(buf: Array[Byte]): Unit = writeRowIdList(buf, 0, buf.length)
+
+  // Row id list can be written in parts
+  def writeRowIdList(buf: Array[Byte], offset: Int, length: Int): Unit = {
+    writer.write(buf, offset, length)
+    rowIdListSize += length
   }
 
   def writeFooter(footer: Array[Byte]): Unit = {
@@ -22,6 +22,7 @@ import scala.collection.mutable.ArrayBuffer
 import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.fs.Path
 
+import org.apache.spark.internal.Logging
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions.codegen.GenerateOrdering
 import org.apache.spark.sql.execution.datasources.oap.filecache.{BTreeFiber, FiberCache, FiberCacheManager}
@@ -32,7 +33,7 @@ import org.apache.spark.util.CompletionIterator
 
 private[index] case class BTreeIndexRecordReader(
     configuration: Configuration,
-    schema: StructType) extends Iterator[Int] {
+    schema: StructType) extends Iterator[Int] with Logging {
 
   private var internalIterator: Iterator[Int] = _
 
@@ -40,6 +41,9 @@ private[index] case class BTreeIndexRecordReader(
   private var footer: BTreeFooter = _
   private var footerFiber: BTreeFiber = _
   private var footerCache: FiberCache = _
+  // The row id list FiberCache being iterated, need to be released if iteration is not finished
+  private var rowIdListCache: FiberCache = _
+  private var closed = false
 
   private var reader: BTreeIndexFileReader = _
 
@@ -48,35 +52,57 @@ private[index] case class BTreeIndexRecordReader(
 
   def getFooterFiber: FiberCache = footerCache
 
-  def initialize(path: Path, intervalArray: ArrayBuffer[RangeInterval]): Unit = {
+  /**
+   * @param backward if true, row ids are returned from the largest key to the smallest, the
+   *                 row id list sections are walked backwards and loaded only when reached
+   */
+  def initialize(
+      path: Path,
+      intervalArray: ArrayBuffer[RangeInterval],
+      backward: Boolean = false): Unit = {
     reader = BTreeIndexFileReader(configuration, path)
 
     footerFiber = BTreeFiber(
-      () => reader.readFooter(), reader.file.toString, reader.footerSectionId, 0)
+      () => reader.readFooter(), reader.fileId, reader.footerSectionId, 0)
     footerCache = FiberCacheManager.get(footerFiber, configuration)
     footer = BTreeFooter(footerCache, schema)
 
     reader.checkVersionNum(footer.getVersionNum)
 
-    internalIterator = intervalArray.toIterator.flatMap { interval =>
+    val intervals = if (backward) intervalArray.reverseIterator else intervalArray.toIterator
+    internalIterator = intervals.flatMap { interval =>
       val (start, end) = findRowIdRange(interval)
-      val groupedPos = (start until end).groupBy(i => i / reader.rowIdListSizePerSection)
-      groupedPos.toIterator.flatMap {
-        case (partIdx, subPosList) =>
-          val rowIdListFiber = BTreeFiber(
-            () => reader.readRowIdList(partIdx),
-            reader.file.toString,
-            reader.rowIdListSectionId, partIdx)
-
-          val rowIdListCache = FiberCacheManager.get(rowIdListFiber, configuration)
-          val rowIdList = BTreeRowIdList(rowIdListCache)
-          val iterator =
-            subPosList.toIterator.map(i => rowIdList.getRowId(i % reader.rowIdListSizePerSection))
-          CompletionIterator[Int, Iterator[Int]](iterator,
-            releaseCache(rowIdListCache, rowIdListFiber))
-      }
+      rowIdIterator(start, end, backward)
     } // get the row ids
   }
+
+  // Row ids at [start, end) of the row id list, each section is loaded only when reached
+  private def rowIdIterator(start: Int, end: Int, backward: Boolean): Iterator[Int] = {
+    val sectionSize = reader.rowIdListSizePerSection
+    val partIds =
+      if (start >= end) Iterator.empty
+      else if (backward) ((end - 1) / sectionSize to start / sectionSize by -1).toIterator
+      else (start / sectionSize to (end - 1) / sectionSize).toIterator
+    partIds.flatMap { partIdx =>
+      val rowIdListFiber = BTreeFiber(
+        () => reader.readRowIdList(partIdx),
+        reader.fileId,
+        reader.rowIdListSectionId, partIdx)
+
+      val cache = FiberCacheManager.get(rowIdListFiber, configuration)
+      rowIdListCache = cache
+      val rowIdList = BTreeRowIdList(cache)
+      val sectionStart = partIdx * sectionSize
+      val from = math.max(start, sectionStart)
+      val until = math.min(end, sectionStart + sectionSize)
+      val positions = if (backward) (until - 1 to from by -1) else (from until until)
+      val iterator = positions.toIterator.map(i => rowIdList.getRowId(i - sectionStart))
+      CompletionIterator[Int, Iterator[Int]](iterator, {
+        releaseCache(cache, rowIdListFiber)
+        rowIdListCache = null
+      })
+    }
+  }
   // find the row id list start pos, end pos of the range interval
   private[index] def findRowIdRange(interval: RangeInterval): (Int, Int) = {
     val recordCount = footer.getNonNullKeyRecordCount
@@ -113,7 +139,7 @@ private[index] case class BTreeIndexRecordReader(
 
     val nodeFiber = BTreeFiber(
       () => reader.readNode(footer.getNodeOffset(nodeIdx), footer.getNodeSize(nodeIdx)),
-      reader.file.toString,
+      reader.fileId,
       reader.nodeSectionId,
       nodeIdx
     )
@@ -136,7 +162,7 @@ private[index] case class BTreeIndexRecordReader(
           val size = footer.getNodeSize(nodeIdx + 1)
           val nextNodeFiber = BTreeFiber(
             () => reader.readNode(offset, size),
-            reader.file.toString,
+            reader.fileId,
             reader.nodeSectionId,
             nodeIdx + 1)
           val nextNodeCache = FiberCacheManager.get(nextNodeFiber, configuration)
@@ -188,19 +214,26 @@ private[index] case class BTreeIndexRecordReader(
   }
 
   private def releaseCache(cache: FiberCache, fiber: BTreeFiber): Unit = {
-    // TODO: Release FiberCache's usage number
+    logDebug(s"Releasing Cache $fiber")
+    cache.release()
   }
 
+  /**
+   * Release all the FiberCaches held by this reader. If hasNext doesn't reach false, for example,
+   * someone called `recordReader.take(10)`, caller should call this explicitly.
+   */
   def close(): Unit = {
-    releaseCache(footerCache, footerFiber)
-    reader.close()
+    if (!closed) {
+      closed = true
+      if (rowIdListCache != null) {
+        rowIdListCache.release()
+        rowIdListCache = null
+      }
+      if (footerCache != null) releaseCache(footerCache, footerFiber)
+      if (reader != null) reader.close()
+    }
   }
 
-  /**
-   * TODO: if this hasNext doesn't reach false, the resource can't be released
-   * For example:
-   *   Assume recordReader.size = 100, Someone called `recordReader.take(10)`.
-   */
   override def hasNext: Boolean = {
     if (internalIterator.hasNext) true
     else {
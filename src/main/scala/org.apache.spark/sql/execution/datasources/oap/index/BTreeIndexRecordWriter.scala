@@ -17,15 +17,12 @@
 
 package org.apache.spark.sql.execution.datasources.oap.index
 
-import java.io.ByteArrayOutputStream
-import java.util.Comparator
+import java.io._
 
-import scala.collection.JavaConverters._
-
-import com.google.common.collect.ArrayListMultimap
 import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.mapreduce.{RecordWriter, TaskAttemptContext}
 
+import org.apache.spark.{SparkEnv, TaskContext}
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions._
 import org.apache.spark.sql.catalyst.expressions.codegen.GenerateOrdering
@@ -33,27 +30,113 @@ import org.apache.spark.sql.execution.datasources.OapException
 import org.apache.spark.sql.execution.datasources.oap.io.IndexFile
 import org.apache.spark.sql.execution.datasources.oap.statistics.StatisticsWriteManager
 import org.apache.spark.sql.execution.datasources.oap.utils.{BTreeNode, BTreeUtils, NonNullKeyWriter}
+import org.apache.spark.sql.internal.SQLConf
 import org.apache.spark.sql.types._
+import org.apache.spark.util.collection.unsafe.sort.{PrefixComparators, RecordComparator, UnsafeExternalSorter}
 
-
+/**
+ * Build the btree index of a data file in bounded memory. The (key, row id) records are
+ * appended into the off-heap sort buffers of an [[UnsafeExternalSorter]]. Sorted runs are
+ * spilled to local disk once the buffers exceed `spark.sql.oap.btree.sortBuffer.size`, and the
+ * runs are merged when writing the index.
+ *
+ * The tree shape depends on the number of unique keys, so the merged records go to local
+ * temporary files first, the unique keys with their row counts and the row ids, which are then
+ * streamed into the nodes and the row id list.
+ *
+ * Statistics are built from the merged records as well, nothing is kept per row: MinMax and
+ * BloomFilter take each unique key once while merging, SampleBase and PartByValue take the
+ * serialized unique keys with their row counts while the nodes are written.
+ */
 private[index] case class BTreeIndexRecordWriter(
     configuration: Configuration,
     fileWriter: BTreeIndexFileWriter,
     keySchema: StructType) extends RecordWriter[Void, InternalRow] {
 
-  @transient private lazy val genericProjector = FromUnsafeProjection(keySchema)
+  import BTreeIndexRecordWriter._
+
   private lazy val nnkw = new NonNullKeyWriter(keySchema)
 
-  private val multiHashMap = ArrayListMultimap.create[InternalRow, Int]()
   private var recordCount: Int = 0
   private lazy val statisticsManager = new StatisticsWriteManager {
     this.initialize(BTreeIndexType, keySchema, configuration)
   }
 
+  // Record to sort: the key columns followed by the row id
+  private val numKeyFields = keySchema.length
+  private val recordSchema = keySchema.add("rowId", IntegerType, nullable = false)
+
+  @transient private lazy val recordProjection = UnsafeProjection.create(
+    keySchema.zipWithIndex.map { case (field, index) =>
+      BoundReference(index, field.dataType, nullable = true)
+    } :+ Literal(0))
+
+  private def keyOrder: Seq[SortOrder] = keySchema.zipWithIndex.map {
+    case (field, index) => SortOrder(
+      BoundReference(index, field.dataType, nullable = true),
+      if (!field.metadata.contains("isAscending") || field.metadata.getBoolean("isAscending")) {
+        Ascending
+      } else {
+        Descending
+      }
+    )
+  }
+
+  @transient private lazy val keyOrdering: Ordering[InternalRow] =
+    GenerateOrdering.generate(keyOrder, recordSchema.toAttributes)
+
+  // Row ids of the same key are in ascending order
+  @transient private lazy val recordOrdering: Ordering[InternalRow] = GenerateOrdering.generate(
+    keyOrder :+ SortOrder(BoundReference(numKeyFields, IntegerType, nullable = false), Ascending),
+    recordSchema.toAttributes)
+
+  private val sortBufferSize = configuration.getLong(
+    SQLConf.OAP_BTREE_SORT_BUFFER_SIZE.key, SQLConf.OAP_BTREE_SORT_BUFFER_SIZE.defaultValue.get)
+
+  // Bytes of the records and their pointers buffered since the last spill
+  private var bufferedSize = 0L
+
+  @transient private lazy val sorter: UnsafeExternalSorter = {
+    val taskContext = TaskContext.get()
+    val sparkEnv = SparkEnv.get
+    UnsafeExternalSorter.create(
+      taskContext.taskMemoryManager(),
+      sparkEnv.blockManager,
+      sparkEnv.serializerManager,
+      taskContext,
+      new RecordComparator {
+        private val left = new UnsafeRow(recordSchema.length)
+        private val right = new UnsafeRow(recordSchema.length)
+
+        override def compare(
+            leftBaseObject: AnyRef,
+            leftBaseOffset: Long,
+            rightBaseObject: AnyRef,
+            rightBaseOffset: Long): Int = {
+          left.pointTo(leftBaseObject, leftBaseOffset, -1)
+          right.pointTo(rightBaseObject, rightBaseOffset, -1)
+          recordOrdering.compare(left, right)
+        }
+      },
+      // Prefixes are all the same, records are compared by the ordering only
+      PrefixComparators.LONG,
+      INITIAL_SORT_BUFFER_SIZE,
+      taskContext.taskMemoryManager().pageSizeBytes(),
+      // Spilled by the size of the buffered records instead
+      Long.MaxValue,
+      false)
+  }
+
   override def write(key: Void, value: InternalRow): Unit = {
-    val v = genericProjector(value).copy()
-    multiHashMap.put(v, recordCount)
-    statisticsManager.addOapKey(v)
+    val record = recordProjection(value)
+    record.setInt(numKeyFields, recordCount)
+    sorter.insertRecord(
+      record.getBaseObject, record.getBaseOffset, record.getSizeInBytes, 0L, false)
+    bufferedSize += record.getSizeInBytes + POINTER_SIZE
+    if (bufferedSize > sortBufferSize) {
+      sorter.spill(Long.MaxValue, sorter)
+      bufferedSize = 0L
+    }
     if (recordCount == Int.MaxValue) {
       throw new OapException("Cannot support indexing more than 2G rows!")
     }
@@ -65,94 +148,122 @@ private[index] case class BTreeIndexRecordWriter(
     fileWriter.close()
   }
 
-  private[index] def sortUniqueKeys(): (Seq[InternalRow], Seq[InternalRow]) = {
-    def buildOrdering(keySchema: StructType): Ordering[InternalRow] = {
-      // here i change to use param id to index_id to get data type in keySchema
-      val order = keySchema.zipWithIndex.map {
-        case (field, index) => SortOrder(
-          BoundReference(index, field.dataType, nullable = true),
-          if (!field.metadata.contains("isAscending") || field.metadata.getBoolean("isAscending")) {
-            Ascending
-          } else {
-            Descending
-          }
-        )
-      }
-      GenerateOrdering.generate(order, keySchema.toAttributes)
-    }
+  /**
+   * Working Flow:
+   *  1. Merge the sorted records into the temporary key and row id files
+   *  2. Call fileWriter.start() to write some Index Info
+   *  3. Split all unique keys into some nodes
+   *  4. Serialize nodes and call fileWriter.writeNode()
+   *  5. Copy the row ids of non-null keys and null keys with fileWriter.writeRowIdList()
+   *  6. Serialize footer and call fileWriter.writeFooter()
+   *  7. Call fileWriter.end() to write some meta data (e.g. file offset for each section)
+   */
+  private[index] def flush(): Unit = {
+    val keyFile = createTempFile()
+    val rowIdFile = createTempFile()
+    val nullRowIdFile = createTempFile()
+    try {
+      val (uniqueKeyCount, nullKeyRowCount) =
+        writeSortedRecords(keyFile, rowIdFile, nullRowIdFile)
+      sorter.cleanupResources()
+      statisticsManager.beginSortedKeys(uniqueKeyCount, recordCount - nullKeyRowCount)
 
-    lazy val ordering = buildOrdering(keySchema)
-    val partitionUniqueSize = multiHashMap.keySet().size()
-    val uniqueKeys = multiHashMap.keySet().toArray(new Array[InternalRow](partitionUniqueSize))
-    assert(uniqueKeys.size == partitionUniqueSize)
-    val (nullKeys, nonNullKeys) = uniqueKeys.partition(_.anyNull)
-    assert(nullKeys.length + nonNullKeys.length == partitionUniqueSize)
-    require(
-      nullKeys.isEmpty || keySchema.length == 1,
-      "No support for multi-column index building with null keys!")
-    lazy val comparator: Comparator[InternalRow] = new Comparator[InternalRow]() {
-      override def compare(o1: InternalRow, o2: InternalRow): Int = {
-        if (o1 == null && o2 == null) {
-          0
-        } else if (o1 == null) {
-          -1
-        } else if (o2 == null) {
-          1
-        } else {
-          ordering.compare(o1, o2)
+      val treeShape = BTreeUtils.generate2(uniqueKeyCount)
+      // Trick here. If root node has no child, then write root node as a child.
+      val children = if (treeShape.children.nonEmpty) treeShape.children else treeShape :: Nil
+
+      // Start
+      fileWriter.start()
+      // Write Node
+      val keyIn = new DataInputStream(new BufferedInputStream(new FileInputStream(keyFile)))
+      val nodes = try {
+        var startPosInRowList = 0
+        children.map { node =>
+          val (nodeBuf, nodeMeta) = serializeNode(keyIn, sumKeyCount(node), startPosInRowList)
+          fileWriter.writeNode(nodeBuf)
+          startPosInRowList += nodeMeta.rowCount
+          nodeMeta
         }
+      } finally {
+        keyIn.close()
       }
+      // Write Row Id List
+      writeRowIdList(rowIdFile)
+      writeRowIdList(nullRowIdFile)
+
+      // Write Footer
+      fileWriter.writeFooter(serializeFooter(nullKeyRowCount, nodes))
+      // End
+      fileWriter.end()
+    } finally {
+      sorter.cleanupResources()
+      Seq(keyFile, rowIdFile, nullRowIdFile).foreach(_.delete())
     }
-    // sort keys
-    java.util.Arrays.sort(nonNullKeys, comparator)
-    (nullKeys.toSeq, nonNullKeys.toSeq)
   }
 
+  private def createTempFile(): File =
+    SparkEnv.get.blockManager.diskBlockManager.createTempLocalBlock()._2
+
   /**
-   * Working Flow:
-   *  1. Call fileWriter.start() to write some Index Info
-   *  2. Split all unique keys into some nodes
-   *  3. Serialize nodes and call fileWriter.writeNode()
-   *  4. Serialize row id List based on sorted unique keys and call fileWriter.writeRowIdList()
-   *  5. Serialize footer and call fileWriter.writeFooter()
-   *  5. Call fileWriter.end() to write some meta data (e.g. file offset for each section)
+   * Merge the sorted runs. Each unique non-null key is written into `keyFile` as
+   * (key size, key data, row count), and added to the statistics taking the keys in any order.
+   * The row ids of non-null keys and null keys are written into `rowIdFile` and `nullRowIdFile`
+   * in the layout of the row id list.
+   *
+   * @return number of unique non-null keys, and number of rows with null key
    */
-  private[index] def flush(): Unit = {
-    val (nullKeys, nonNullUniqueKeys) = sortUniqueKeys()
-    val treeShape = BTreeUtils.generate2(nonNullUniqueKeys.length)
-    // Trick here. If root node has no child, then write root node as a child.
-    val children = if (treeShape.children.nonEmpty) treeShape.children else treeShape :: Nil
-
-    // Start
-    fileWriter.start()
-    // Write Node
-    var startPosInKeyList = 0
-    var startPosInRowList = 0
-    val nodes = children.map { node =>
-      val keyCount = sumKeyCount(node) // total number of keys of this node
-      val nodeUniqueKeys =
-        nonNullUniqueKeys.slice(startPosInKeyList, startPosInKeyList + keyCount)
-      // total number of row ids of this node
-      val rowCount = nodeUniqueKeys.map(multiHashMap.get(_).size()).sum
-
-      val nodeBuf = serializeNode(nodeUniqueKeys, startPosInRowList)
-      fileWriter.writeNode(nodeBuf)
-      startPosInKeyList += keyCount
-      startPosInRowList += rowCount
-      if (keyCount == 0 || nodeUniqueKeys.isEmpty || nonNullUniqueKeys.isEmpty) {
-        // this node is an empty node
-        BTreeNodeMetaData(0, nodeBuf.length, null, null)
+  private def writeSortedRecords(
+      keyFile: File, rowIdFile: File, nullRowIdFile: File): (Int, Int) = {
+    val keyOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keyFile)))
+    val rowIdOut = new BufferedOutputStream(new FileOutputStream(rowIdFile))
+    val nullRowIdOut = new BufferedOutputStream(new FileOutputStream(nullRowIdFile))
+    val keyBuffer = new ByteArrayOutputStream()
+    var uniqueKeyCount = 0
+    var nullKeyRowCount = 0
+    var currentKey: UnsafeRow = null
+    var currentKeyRowCount = 0
+    val addOapKeys = statisticsManager.needsOapKeys
+
+    def writeCurrentKey(): Unit = if (currentKey != null) {
+      // currentKey is a copy of its own, kept by the statistics as is
+      if (addOapKeys) statisticsManager.addOapKey(currentKey)
+      keyBuffer.reset()
+      nnkw.writeKey(keyBuffer, currentKey)
+      keyOut.writeInt(keyBuffer.size())
+      keyBuffer.writeTo(keyOut)
+      keyOut.writeInt(currentKeyRowCount)
+      uniqueKeyCount += 1
+    }
+
+    try {
+      val record = new UnsafeRow(recordSchema.length)
+      val iter = sorter.getSortedIterator
+      while (iter.hasNext) {
+        iter.loadNext()
+        record.pointTo(iter.getBaseObject, iter.getBaseOffset, iter.getRecordLength)
+        val rowId = record.getInt(numKeyFields)
+        if (record.anyNull) {
+          require(keySchema.length == 1,
+            "No support for multi-column index building with null keys!")
+          IndexUtils.writeInt(nullRowIdOut, rowId)
+          nullKeyRowCount += 1
+        } else {
+          if (currentKey == null || keyOrdering.compare(currentKey, record) != 0) {
+            writeCurrentKey()
+            currentKey = record.copy()
+            currentKeyRowCount = 0
+          }
+          IndexUtils.writeInt(rowIdOut, rowId)
+          currentKeyRowCount += 1
+        }
       }
-      else BTreeNodeMetaData(rowCount, nodeBuf.length, nodeUniqueKeys.head, nodeUniqueKeys.last)
+      writeCurrentKey()
+    } finally {
+      keyOut.close()
+      rowIdOut.close()
+      nullRowIdOut.close()
     }
-    // Write Row Id List
-    fileWriter.writeRowIdList(serializeRowIdLists(nonNullUniqueKeys ++ nullKeys))
-
-    // Write Footer
-    val nullKeyRowCount = nullKeys.map(multiHashMap.get(_).size()).sum
-    fileWriter.writeFooter(serializeFooter(nullKeyRowCount, nodes))
-    // End
-    fileWriter.end()
+    (uniqueKeyCount, nullKeyRowCount)
   }
 
   /**
@@ -169,21 +280,39 @@ private[index] case class BTreeIndexRecordWriter(
    * Key Data For Key #1
    * ...
    * Key Data For Key #N
+   *
+   * @param keyIn the temporary key file positioned at the first key of the node
    */
-  private[index] def serializeNode(
-      uniqueKeys: Seq[InternalRow], startPosInRowList: Int): Array[Byte] = {
+  private def serializeNode(
+      keyIn: DataInput,
+      keyCount: Int,
+      startPosInRowList: Int): (Array[Byte], BTreeNodeMetaData) = {
     val buffer = new ByteArrayOutputStream()
     val keyBuffer = new ByteArrayOutputStream()
+    var minKey: Array[Byte] = null
+    var maxKey: Array[Byte] = null
 
-    IndexUtils.writeInt(buffer, uniqueKeys.length)
+    IndexUtils.writeInt(buffer, keyCount)
     var rowPos = startPosInRowList
-    uniqueKeys.foreach { key =>
+    (0 until keyCount).foreach { _ =>
+      val key = new Array[Byte](keyIn.readInt())
+      keyIn.readFully(key)
       IndexUtils.writeInt(buffer, keyBuffer.size())
       IndexUtils.writeInt(buffer, rowPos)
-      nnkw.writeKey(keyBuffer, key)
-      rowPos += multiHashMap.get(key).size()
+      keyBuffer.write(key)
+      val keyRowCount = keyIn.readInt()
+      statisticsManager.addSortedKey(key, keyRowCount)
+      rowPos += keyRowCount
+      if (minKey == null) minKey = key
+      maxKey = key
+    }
+    val nodeBuf = buffer.toByteArray ++ keyBuffer.toByteArray
+    if (keyCount == 0) {
+      // this node is an empty node
+      (nodeBuf, BTreeNodeMetaData(0, nodeBuf.length, null, null))
+    } else {
+      (nodeBuf, BTreeNodeMetaData(rowPos - startPosInRowList, nodeBuf.length, minKey, maxKey))
     }
-    buffer.toByteArray ++ keyBuffer.toByteArray
   }
 
   // TODO: BTreeNode can be re-write. It doesn't carry any values.
@@ -198,11 +327,18 @@ private[index] case class BTreeIndexRecordWriter(
    * Key:    1 2 3 4 1 2 3 4 1 2
    * Then Row Id List is Stored as: 0481592637
    */
-  private def serializeRowIdLists(uniqueKeys: Seq[InternalRow]): Array[Byte] = {
-    val buffer = new ByteArrayOutputStream()
-    uniqueKeys.flatMap(key =>
-      multiHashMap.get(key).asScala).foreach(IndexUtils.writeInt(buffer, _))
-    buffer.toByteArray
+  private def writeRowIdList(file: File): Unit = {
+    val in = new FileInputStream(file)
+    try {
+      val buffer = new Array[Byte](COPY_BUFFER_SIZE)
+      var length = in.read(buffer)
+      while (length >= 0) {
+        if (length > 0) fileWriter.writeRowIdList(buffer, 0, length)
+        length = in.read(buffer)
+      }
+    } finally {
+      in.close()
+    }
   }
 
   /**
@@ -254,12 +390,12 @@ private[index] case class BTreeIndexRecordWriter(
       // Min Key Pos for each Child
       IndexUtils.writeInt(buffer, keyBuffer.size())
       if (node.min != null) {
-        nnkw.writeKey(keyBuffer, node.min)
+        keyBuffer.write(node.min)
       }
       // Max Key Pos for each Child
       IndexUtils.writeInt(buffer, keyBuffer.size())
       if (node.max != null) {
-        nnkw.writeKey(keyBuffer, node.max)
+        keyBuffer.write(node.max)
       }
       offset += node.byteSize
     }
@@ -270,5 +406,13 @@ private[index] case class BTreeIndexRecordWriter(
   }
 }
 
+private[index] object BTreeIndexRecordWriter {
+  private val INITIAL_SORT_BUFFER_SIZE = 4096
+  // Pointer and key prefix of a record in the sort buffer
+  private val POINTER_SIZE = 16
+  private val COPY_BUFFER_SIZE = 64 * 1024
+}
+
+// Min and max keys are serialized by NonNullKeyWriter
 private case class BTreeNodeMetaData(
-    rowCount: Int, byteSize: Int, min: InternalRow, max: InternalRow)
+    rowCount: Int, byteSize: Int, min: Array[Byte], max: Array[Byte])
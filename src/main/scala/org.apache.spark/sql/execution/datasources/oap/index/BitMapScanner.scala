@@ -23,7 +23,7 @@ import scala.collection.JavaConverters._
 import scala.collection.mutable
 
 import org.apache.hadoop.conf.Configuration
-import org.apache.hadoop.fs.{FSDataInputStream, Path}
+import org.apache.hadoop.fs.Path
 import org.roaringbitmap.FastAggregation
 import org.roaringbitmap.RoaringBitmap
 
@@ -77,35 +77,35 @@ private[oap] case class BitMapScanner(idxMeta: IndexMeta) extends IndexScanner(i
   private var bmEntryListCache: FiberCache = _
 
   @transient private var bmRowIdIterator: Iterator[Integer] = _
+  // Union of the desired bitmaps, null if limited
+  @transient private var bmRowIdBitmap: RoaringBitmap = _
   private var empty: Boolean = _
 
   override def hasNext: Boolean = {
     if (!empty && bmRowIdIterator.hasNext) {
       true
     } else {
-      if (bmFooterFiber != null) {
-        // TODO: release bmFooterCache usage number
-      }
-
-      if (bmUniqueKeyListFiber != null) {
-        // TODO: release bmUniqueKeyListCache usage number
-      }
-
-      if (bmOffsetListFiber != null) {
-        // TODO: release bmOffsetListCache usage number
-      }
-
-      if (bmEntryListFiber != null) {
-        // TODO: release bmEntryListCache usage number
-      }
+      close()
       false
     }
   }
 
+  // The desired bitmaps are deserialized to on-heap when initializing, so all the FiberCaches can
+  // be released once initialization is done.
+  override def close(): Unit = {
+    Seq(bmFooterCache, bmUniqueKeyListCache, bmOffsetListCache, bmEntryListCache, bmNullListCache)
+      .filter(_ != null).foreach(_.release())
+    bmFooterCache = null
+    bmUniqueKeyListCache = null
+    bmOffsetListCache = null
+    bmEntryListCache = null
+    bmNullListCache = null
+  }
+
   override def next(): Int = bmRowIdIterator.next()
 
-  private def loadBmFooter(fin: FSDataInputStream): FiberCache = {
-    MemoryManager.putToIndexFiberCache(fin, bmFooterOffset, BITMAP_FOOTER_SIZE)
+  private def loadBmFooter(fin: FiberInput): FiberCache = {
+    fin.readFiber(bmFooterOffset, BITMAP_FOOTER_SIZE)
   }
 
   override protected def analyzeStatistics(indexPath: Path, conf: Configuration): Double = {
@@ -122,10 +122,10 @@ private[oap] case class BitMapScanner(idxMeta: IndexMeta) extends IndexScanner(i
     bmNullEntrySize = data.getInt(IndexUtils.INT_SIZE * 6)
   }
 
-  private def loadBmKeyList(fin: FSDataInputStream): FiberCache = {
+  private def loadBmKeyList(fin: FiberInput): FiberCache = {
     // TODO: seems not supported yet on my local dev machine(hadoop is 2.7.3).
     // fin.setReadahead(bmUniqueKeyListTotalSize)
-    MemoryManager.putToIndexFiberCache(fin, bmUniqueKeyListOffset, bmUniqueKeyListTotalSize)
+    fin.readFiber(bmUniqueKeyListOffset, bmUniqueKeyListTotalSize)
   }
 
   private def readBmUniqueKeyListFromCache(data: FiberCache): IndexedSeq[InternalRow] = {
@@ -138,19 +138,19 @@ private[oap] case class BitMapScanner(idxMeta: IndexMeta) extends IndexScanner(i
     })
   }
 
-  private def loadBmEntryList(fin: FSDataInputStream): FiberCache = {
-    MemoryManager.putToIndexFiberCache(fin, bmEntryListOffset, bmEntryListTotalSize)
+  private def loadBmEntryList(fin: FiberInput): FiberCache = {
+    fin.readFiber(bmEntryListOffset, bmEntryListTotalSize)
   }
 
-  private def loadBmOffsetList(fin: FSDataInputStream): FiberCache = {
-    MemoryManager.putToIndexFiberCache(fin, bmOffsetListOffset, bmOffsetListTotalSize)
+  private def loadBmOffsetList(fin: FiberInput): FiberCache = {
+    fin.readFiber(bmOffsetListOffset, bmOffsetListTotalSize)
   }
 
-  private def loadBmNullList(fin: FSDataInputStream): FiberCache = {
-    MemoryManager.putToIndexFiberCache(fin, bmNullEntryOffset, bmNullEntrySize)
+  private def loadBmNullList(fin: FiberInput): FiberCache = {
+    fin.readFiber(bmNullEntryOffset, bmNullEntrySize)
   }
 
-  private def checkVersionNum(versionNum: Int, fin: FSDataInputStream): Unit = {
+  private def checkVersionNum(versionNum: Int, fin: FiberInput): Unit = {
     if (IndexFile.VERSION_NUM != versionNum) {
       fin.close()
       throw new OapException("Bitmap Index File version is not compatible!")
@@ -164,38 +164,44 @@ private[oap] case class BitMapScanner(idxMeta: IndexMeta) extends IndexScanner(i
 
   private def cacheBitmapAllSegments(idxPath: Path, conf: Configuration): Unit = {
     val fs = idxPath.getFileSystem(conf)
-    val fin = fs.open(idxPath)
-    val idxFileSize = fs.getFileStatus(idxPath).getLen.toInt
-    bmFooterOffset = idxFileSize - BITMAP_FOOTER_SIZE
-    // Cache the segments after first loading from file.
-    bmFooterFiber = BitmapFiber(
-      () => loadBmFooter(fin), idxPath.toString, BitmapIndexSectionId.footerSection, 0)
-    bmFooterCache = FiberCacheManager.get(bmFooterFiber, conf)
-    checkVersionNum(getIndexVersionNum, fin)
-    readBmFooterFromCache(bmFooterCache)
-
-    // Get the offset for the different segments in bitmap index file.
-    bmUniqueKeyListOffset = IndexFile.VERSION_LENGTH
-    bmEntryListOffset = bmUniqueKeyListOffset + bmUniqueKeyListTotalSize
-    bmOffsetListOffset = bmEntryListOffset + bmEntryListTotalSize + bmNullEntrySize
-
-    bmUniqueKeyListFiber = BitmapFiber(
-        () => loadBmKeyList(fin), idxPath.toString, BitmapIndexSectionId.keyListSection, 0)
-    bmUniqueKeyListCache = FiberCacheManager.get(bmUniqueKeyListFiber, conf)
-
-    bmEntryListFiber = BitmapFiber(
-      () => loadBmEntryList(fin), idxPath.toString, BitmapIndexSectionId.entryListSection, 0)
-    bmEntryListCache = FiberCacheManager.get(bmEntryListFiber, conf)
-
-    bmOffsetListFiber = BitmapFiber(
-      () => loadBmOffsetList(fin), idxPath.toString, BitmapIndexSectionId.entryOffsetsSection, 0)
-    bmOffsetListCache = FiberCacheManager.get(bmOffsetListFiber, conf)
-
-    bmNullListFiber = BitmapFiber(
-      () => loadBmNullList(fin), idxPath.toString, BitmapIndexSectionId.entryNullSection, 0)
-    bmNullListCache = FiberCacheManager.get(bmNullListFiber, conf)
-
-    fin.close()
+    val fin = FiberInput.open(idxPath, conf)
+    try {
+      val idxFileStatus = fs.getFileStatus(idxPath)
+      val idxFileSize = idxFileStatus.getLen.toInt
+      val fileId = FileRegistry.idOf(idxPath.toString, FileMeta.fingerprint(idxFileStatus))
+      bmFooterOffset = idxFileSize - BITMAP_FOOTER_SIZE
+      // Cache the segments after first loading from file.
+      bmFooterFiber = BitmapFiber(
+        () => loadBmFooter(fin), fileId, BitmapIndexSectionId.footerSection, 0)
+      bmFooterCache = FiberCacheManager.get(bmFooterFiber, conf)
+      val versionNum = getIndexVersionNum
+      if (IndexFile.VERSION_NUM != versionNum) close()
+      checkVersionNum(versionNum, fin)
+      readBmFooterFromCache(bmFooterCache)
+
+      // Get the offset for the different segments in bitmap index file.
+      bmUniqueKeyListOffset = IndexFile.VERSION_LENGTH
+      bmEntryListOffset = bmUniqueKeyListOffset + bmUniqueKeyListTotalSize
+      bmOffsetListOffset = bmEntryListOffset + bmEntryListTotalSize + bmNullEntrySize
+
+      bmUniqueKeyListFiber = BitmapFiber(
+          () => loadBmKeyList(fin), fileId, BitmapIndexSectionId.keyListSection, 0)
+      bmUniqueKeyListCache = FiberCacheManager.get(bmUniqueKeyListFiber, conf)
+
+      bmEntryListFiber = BitmapFiber(
+        () => loadBmEntryList(fin), fileId, BitmapIndexSectionId.entryListSection, 0)
+      bmEntryListCache = FiberCacheManager.get(bmEntryListFiber, conf)
+
+      bmOffsetListFiber = BitmapFiber(
+        () => loadBmOffsetList(fin), fileId, BitmapIndexSectionId.entryOffsetsSection, 0)
+      bmOffsetListCache = FiberCacheManager.get(bmOffsetListFiber, conf)
+
+      bmNullListFiber = BitmapFiber(
+        () => loadBmNullList(fin), fileId, BitmapIndexSectionId.entryNullSection, 0)
+      bmNullListCache = FiberCacheManager.get(bmNullListFiber, conf)
+    } finally {
+      fin.close()
+    }
   }
 
   private def getStartIdxOffset(fiberCache: FiberCache, baseOffset: Long, startIdx: Int): Int = {
@@ -273,6 +279,7 @@ private[oap] case class BitMapScanner(idxMeta: IndexMeta) extends IndexScanner(i
   }
 
   private def initDesiredRowIdIterator(): Unit = {
+    bmRowIdBitmap = null
     val bitmapArray = getDesiredBitmapArray
     if (bitmapArray.nonEmpty) {
       if (indexEntryScanIsLimited()) {
@@ -280,8 +287,8 @@ private[oap] case class BitMapScanner(idxMeta: IndexMeta) extends IndexScanner(i
         bmRowIdIterator = bitmapArray.flatMap(bm =>
           bm.iterator.asScala.take(internalLimit)).iterator
       } else {
-        bmRowIdIterator =
-          bitmapArray.reduceLeft(FastAggregation.or(_, _)).iterator.asScala
+        bmRowIdBitmap = FastAggregation.or(bitmapArray: _*)
+        bmRowIdIterator = bmRowIdBitmap.iterator.asScala
       }
       empty = false
     } else {
@@ -289,6 +296,12 @@ private[oap] case class BitMapScanner(idxMeta: IndexMeta) extends IndexScanner(i
     }
   }
 
+  override def toRowIdBitmap: RoaringBitmap = {
+    if (empty) new RoaringBitmap()
+    else if (bmRowIdBitmap != null) bmRowIdBitmap
+    else super.toRowIdBitmap
+  }
+
   // TODO: If the index file is not changed, bypass the repetitive initialization for queries.
   override def initialize(dataPath: Path, conf: Configuration): IndexScanner = {
     assert(keySchema ne null)
@@ -297,8 +310,13 @@ private[oap] case class BitMapScanner(idxMeta: IndexMeta) extends IndexScanner(i
     this.ordering = GenerateOrdering.create(keySchema)
     val idxPath = IndexUtils.indexFileFromDataFile(dataPath, meta.name, meta.time)
 
-    cacheBitmapAllSegments(idxPath, conf)
-    initDesiredRowIdIterator()
+    // The segments taken before a failure are released as well
+    try {
+      cacheBitmapAllSegments(idxPath, conf)
+      initDesiredRowIdIterator()
+    } finally {
+      close()
+    }
 
     this
   }
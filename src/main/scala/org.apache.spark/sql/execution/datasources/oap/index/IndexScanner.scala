@@ -17,16 +17,17 @@
 
 package org.apache.spark.sql.execution.datasources.oap.index
 
+import scala.collection.JavaConverters._
 import scala.collection.mutable
 import scala.collection.mutable.ArrayBuffer
 
 import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.fs.Path
+import org.roaringbitmap.{FastAggregation, RoaringBitmap}
 
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.catalyst.expressions.{SortDirection, UnsafeRow}
 import org.apache.spark.sql.execution.datasources.oap._
-import org.apache.spark.sql.execution.datasources.oap.io.OapIndexInfo
 import org.apache.spark.sql.execution.datasources.oap.statistics.StaticsAnalysisResult
 import org.apache.spark.sql.internal.SQLConf
 import org.apache.spark.sql.sources._
@@ -47,6 +48,25 @@ private[oap] abstract class IndexScanner(idxMeta: IndexMeta)
 
   var intervalArray: ArrayBuffer[RangeInterval] = _
 
+  // Whether the index can be scanned from the largest key to the smallest lazily
+  def canScanBackward: Boolean = false
+
+  /**
+   * Return row ids from the largest key to the smallest, only for scanners which
+   * `canScanBackward`. Must be set before `initialize`.
+   */
+  var backward: Boolean = false
+
+  /**
+   * Row ids of the scanner as a bitmap, instead of iterating the scanner after `initialize`.
+   * Scanners reading bitmaps from the index override it to avoid decoding row ids one by one.
+   */
+  def toRowIdBitmap: RoaringBitmap = {
+    val bitmap = new RoaringBitmap()
+    foreach(rowId => bitmap.add(rowId))
+    bitmap
+  }
+
   protected var keySchema: StructType = _
 
   def keyNames: Seq[String] = keySchema.fieldNames
@@ -88,7 +108,6 @@ private[oap] abstract class IndexScanner(idxMeta: IndexMeta)
         logWarning("OAP index is skipped. Set below flags to force enable index,\n" +
             "sqlContext.conf.setConfString(SQLConf.OAP_EXECUTOR_INDEX_SELECTION.key, false)")
       } else {
-        OapIndexInfo.partitionOapIndex.put(dataPath.toString, true)
         logInfo("Partition File " + dataPath.toString + " will use OAP index.\n")
       }
       behavior
@@ -167,6 +186,12 @@ private[oap] abstract class IndexScanner(idxMeta: IndexMeta)
   }
 
   def initialize(dataPath: Path, conf: Configuration): IndexScanner
+
+  /**
+   * Release the resources (e.g. occupied FiberCaches) held by this scanner. Called when the
+   * scanner is not needed any more, it may be not iterated to the end.
+   */
+  def close(): Unit = {}
 }
 
 // A dummy scanner will actually not do any scanning
@@ -328,6 +353,12 @@ private[oap] class IndexScanners(val scanners: Seq[IndexScanner])
 
   private var backendIter: Iterator[Int] = _
 
+  // Intersection of the row ids of multiple scanners
+  @transient private var rowIdBitmap: RoaringBitmap = _
+
+  // Row ids of the file scanned last with its path and fingerprint, shared by its splits
+  @transient private var lastFileRowIds: ((String, String), RoaringBitmap) = _
+
   def indexIsAvailable(dataPath: Path, conf: Configuration): Boolean = {
     val scannersAndStatics = scanners
       .map(scanner => (scanner, scanner.readBehavior(dataPath, conf)))
@@ -343,25 +374,73 @@ private[oap] class IndexScanners(val scanners: Seq[IndexScanner])
     }
   }
 
+  // Statistics of the index tell no row matches, nothing is read from the file
+  def isSkippedByStatistics: Boolean = actualUsedScanners.isEmpty
+
   def order: SortDirection = actualUsedScanners.head.meta.indexType.indexOrder.head
 
   def initialize(dataPath: Path, conf: Configuration): IndexScanners = {
     backendIter = actualUsedScanners.length match {
       case 0 => Iterator.empty
       case 1 =>
+        // Pulled lazily, so that a limited scan stops reading the index early
         actualUsedScanners.head.initialize(dataPath, conf)
-        actualUsedScanners.head.toArray.iterator
       case _ =>
-        actualUsedScanners.par.foreach(_.initialize(dataPath, conf))
-        actualUsedScanners.map(_.toSet)
-          .reduce((left, right) => {
-            if (left.isEmpty || right.isEmpty) Set.empty
-            else left.intersect(right)
-          }).iterator
+        val bitmaps = actualUsedScanners.par.map { scanner =>
+          scanner.initialize(dataPath, conf).toRowIdBitmap
+        }.seq
+        rowIdBitmap = FastAggregation.and(bitmaps: _*)
+        rowIdBitmap.iterator.asScala.map(_.intValue)
+    }
+    this
+  }
+
+  /**
+   * Row ids of all the used scanners as a bitmap, instead of iterating after `initialize`.
+   */
+  def toRowIdBitmap: RoaringBitmap = actualUsedScanners.length match {
+    case 0 => new RoaringBitmap()
+    case 1 => actualUsedScanners.head.toRowIdBitmap
+    case _ => rowIdBitmap
+  }
+
+  /**
+   * Row ids of the whole file as a bitmap, `indexIsAvailable` must be checked first. The splits of
+   * a file read one after another by the task holding these scanners scan its index only once.
+   */
+  def fileRowIdBitmap(dataPath: Path, fingerprint: String, conf: Configuration): RoaringBitmap = {
+    val key = (dataPath.toString, fingerprint)
+    if (lastFileRowIds == null || lastFileRowIds._1 != key) {
+      lastFileRowIds = null
+      initialize(dataPath, conf)
+      try {
+        lastFileRowIds = (key, toRowIdBitmap)
+      } finally {
+        close()
+      }
+    }
+    lastFileRowIds._2
+  }
+
+  /**
+   * Initialize to return row ids from the largest key to the smallest. A single scanner which
+   * `canScanBackward` walks the index backwards lazily, otherwise all the row ids are collected
+   * and reversed.
+   */
+  def initializeBackward(dataPath: Path, conf: Configuration): IndexScanners = {
+    actualUsedScanners match {
+      case Seq(scanner) if scanner.canScanBackward =>
+        scanner.backward = true
+        backendIter = scanner.initialize(dataPath, conf)
+      case _ =>
+        initialize(dataPath, conf)
+        backendIter = backendIter.toArray.reverseIterator
     }
     this
   }
 
+  def close(): Unit = if (actualUsedScanners != null) actualUsedScanners.foreach(_.close())
+
   override def hasNext: Boolean = backendIter.hasNext
 
   override def next(): Int = backendIter.next
@@ -25,6 +25,7 @@ import org.apache.spark.rdd.InputFileNameHolder
 import org.apache.spark.sql.Row
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.execution.datasources.OutputWriter
+import org.apache.spark.sql.execution.datasources.oap.FileMeta
 
 // TODO: parameter name "path" is ambiguous
 private[index] class OapIndexOutputWriter(
@@ -84,8 +85,11 @@ private[index] class OapIndexOutputWriter(
     if (recordWriter != null) {
       recordWriter.close(context)
       recordWriter = null
+      val inputFile = new Path(inputFileName)
+      val fingerprint = FileMeta.fingerprint(
+        inputFile.getFileSystem(context.getConfiguration).getFileStatus(inputFile))
       results = results :+ IndexBuildResult(
-        new Path(inputFileName).getName, rowCount, "", new Path(inputFileName).getParent.toString)
+        inputFile.getName, rowCount, fingerprint, inputFile.getParent.toString)
     }
   }
 
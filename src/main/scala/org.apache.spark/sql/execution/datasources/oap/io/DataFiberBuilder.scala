@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.io
+
+import java.io.ByteArrayOutputStream
+
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.sql.execution.datasources.oap.filecache.{FiberCache, MemoryManager}
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.Platform
+
+
+/**
+ * Build the decoded values of one column in one row group into a [[FiberCache]].
+ *
+ * The in-memory representation of a data fiber:
+ * {{{
+ *   Fixed size type:    [null bits][value * rowCount]
+ *   Variable size type: [null bits][(offset, length) * rowCount][value bytes]
+ * }}}
+ * Null bits are `ceil(rowCount / 64)` longs, bit `i` is set if row `i` is null. The offset of
+ * variable size value is counted from the beginning of the fiber.
+ */
+private[oap] abstract class DataFiberBuilder {
+  def defaultRowCount: Int
+
+  protected var currentRowId: Int = 0
+  private val nullBits = new Array[Long](DataFiberBuilder.nullBitsLength(defaultRowCount))
+
+  protected def nullBitsBytes: Int = nullBits.length * 8
+
+  /** Append the value of `ordinal` in `row` as the next row of this fiber */
+  def append(row: InternalRow, ordinal: Int): Unit = {
+    if (currentRowId >= defaultRowCount) {
+      throw new OapException(s"Fiber is full, capacity $defaultRowCount")
+    }
+    if (row.isNullAt(ordinal)) {
+      nullBits(currentRowId >> 6) |= 1L << (currentRowId & 63)
+    } else {
+      appendInternal(row, ordinal)
+    }
+    currentRowId += 1
+  }
+
+  protected def appendInternal(row: InternalRow, ordinal: Int): Unit
+
+  protected def fillNullBits(bytes: Array[Byte]): Unit =
+    Platform.copyMemory(nullBits, Platform.LONG_ARRAY_OFFSET,
+      bytes, Platform.BYTE_ARRAY_OFFSET, nullBitsBytes)
+
+  def build(): FiberCache
+}
+
+private[oap] object DataFiberBuilder {
+  def nullBitsLength(rowCount: Int): Int = (rowCount + 63) >> 6
+
+  def isSupported(dataType: DataType): Boolean = dataType match {
+    case BooleanType | ByteType | ShortType | IntegerType | LongType | FloatType | DoubleType |
+         DateType | TimestampType | StringType | BinaryType => true
+    case _ => false
+  }
+
+  def apply(dataType: DataType, rowCount: Int): DataFiberBuilder = dataType match {
+    case StringType | BinaryType => VariableSizeTypeFiberBuilder(rowCount, dataType)
+    case _ if isSupported(dataType) => FixedSizeTypeFiberBuilder(rowCount, dataType)
+    case _ => throw new OapException(s"$dataType data fiber is not supported")
+  }
+}
+
+private[oap] case class FixedSizeTypeFiberBuilder(
+    defaultRowCount: Int,
+    dataType: DataType) extends DataFiberBuilder {
+  private val typeDefaultSize = dataType.defaultSize
+  private val fiberBytes = new Array[Byte](nullBitsBytes + defaultRowCount * typeDefaultSize)
+  private val baseOffset = Platform.BYTE_ARRAY_OFFSET + nullBitsBytes
+
+  override protected def appendInternal(row: InternalRow, ordinal: Int): Unit = {
+    val offset = baseOffset + currentRowId * typeDefaultSize
+    dataType match {
+      case BooleanType => Platform.putBoolean(fiberBytes, offset, row.getBoolean(ordinal))
+      case ByteType => Platform.putByte(fiberBytes, offset, row.getByte(ordinal))
+      case ShortType => Platform.putShort(fiberBytes, offset, row.getShort(ordinal))
+      case IntegerType | DateType => Platform.putInt(fiberBytes, offset, row.getInt(ordinal))
+      case LongType | TimestampType => Platform.putLong(fiberBytes, offset, row.getLong(ordinal))
+      case FloatType => Platform.putFloat(fiberBytes, offset, row.getFloat(ordinal))
+      case DoubleType => Platform.putDouble(fiberBytes, offset, row.getDouble(ordinal))
+      case _ => throw new OapException(s"$dataType is not fixed size type")
+    }
+  }
+
+  override def build(): FiberCache = {
+    fillNullBits(fiberBytes)
+    MemoryManager.putToDataFiberCache(fiberBytes)
+  }
+}
+
+private[oap] case class VariableSizeTypeFiberBuilder(
+    defaultRowCount: Int,
+    dataType: DataType) extends DataFiberBuilder {
+  // (offset, length) of each row
+  private val positions = new Array[Int](defaultRowCount * 2)
+  private val valueStream = new ByteArrayOutputStream()
+
+  private def valueStart = nullBitsBytes + positions.length * 4
+
+  override protected def appendInternal(row: InternalRow, ordinal: Int): Unit = {
+    val bytes = dataType match {
+      case StringType => row.getUTF8String(ordinal).getBytes
+      case BinaryType => row.getBinary(ordinal)
+      case _ => throw new OapException(s"$dataType is not variable size type")
+    }
+    positions(currentRowId * 2) = valueStart + valueStream.size()
+    positions(currentRowId * 2 + 1) = bytes.length
+    valueStream.write(bytes)
+  }
+
+  override def build(): FiberCache = {
+    val values = valueStream.toByteArray
+    val fiberBytes = new Array[Byte](valueStart + values.length)
+    fillNullBits(fiberBytes)
+    Platform.copyMemory(positions, Platform.INT_ARRAY_OFFSET,
+      fiberBytes, Platform.BYTE_ARRAY_OFFSET + nullBitsBytes, positions.length * 4)
+    Platform.copyMemory(values, Platform.BYTE_ARRAY_OFFSET,
+      fiberBytes, Platform.BYTE_ARRAY_OFFSET + valueStart, values.length)
+    MemoryManager.putToDataFiberCache(fiberBytes)
+  }
+}
+
+/**
+ * Read the values of a data fiber built by [[DataFiberBuilder]].
+ */
+private[oap] case class DataFiberReader(
+    fiberCache: FiberCache,
+    dataType: DataType,
+    rowCount: Int) {
+  private val nullBitsBytes = DataFiberBuilder.nullBitsLength(rowCount) * 8
+  private val typeDefaultSize = dataType.defaultSize
+
+  def isNullAt(rowId: Int): Boolean =
+    (fiberCache.getLong((rowId >> 6) * 8L) & (1L << (rowId & 63))) != 0
+
+  /** Set the value of `rowId` into `ordinal` of `row` */
+  def readValue(rowId: Int, row: InternalRow, ordinal: Int): Unit = {
+    if (isNullAt(rowId)) {
+      row.setNullAt(ordinal)
+    } else {
+      val offset = nullBitsBytes + rowId.toLong * typeDefaultSize
+      dataType match {
+        case BooleanType => row.setBoolean(ordinal, fiberCache.getBoolean(offset))
+        case ByteType => row.setByte(ordinal, fiberCache.getByte(offset))
+        case ShortType => row.setShort(ordinal, fiberCache.getShort(offset))
+        case IntegerType | DateType => row.setInt(ordinal, fiberCache.getInt(offset))
+        case LongType | TimestampType => row.setLong(ordinal, fiberCache.getLong(offset))
+        case FloatType => row.setFloat(ordinal, fiberCache.getFloat(offset))
+        case DoubleType => row.setDouble(ordinal, fiberCache.getDouble(offset))
+        case StringType =>
+          val position = nullBitsBytes + rowId * 8L
+          row.update(ordinal, fiberCache.getUTF8String(
+            fiberCache.getInt(position), fiberCache.getInt(position + 4)))
+        case BinaryType =>
+          val position = nullBitsBytes + rowId * 8L
+          row.update(ordinal, fiberCache.getBytes(
+            fiberCache.getInt(position), fiberCache.getInt(position + 4)))
+        case _ => throw new OapException(s"$dataType data fiber is not supported")
+      }
+    }
+  }
+}
@@ -25,7 +25,8 @@ import org.apache.parquet.column.Dictionary
 
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.execution.datasources.OapException
-import org.apache.spark.sql.execution.datasources.oap.filecache.FiberCache
+import org.apache.spark.sql.execution.datasources.oap.filecache.{FiberCache, FileRegistry}
+import org.apache.spark.sql.execution.vectorized.ColumnarBatch
 import org.apache.spark.sql.types.StructType
 import org.apache.spark.util.Utils
 
@@ -35,28 +36,52 @@ abstract class DataFile {
   def schema: StructType
   def configuration: Configuration
 
+  // Fingerprint of the file version being read, see `FileMeta.fingerprint`
+  def fingerprint: String
+
+  /** Id of this file version in [[FileRegistry]], fibers of this file are keyed by it */
+  private[oap] lazy val fileId: Int = FileRegistry.idOf(path, fingerprint)
+
+  // Byte range [splitStart, splitEnd) of the split being read, row groups belong to the split
+  // containing their midpoints, the same as parquet
+  def splitStart: Long
+  def splitEnd: Long
+
+  protected def isWholeFile: Boolean = splitStart == 0L && splitEnd == Long.MaxValue
+
+  /** Global row id range [start, end) of the row groups in the split */
+  private[oap] def rowIdRange: (Long, Long)
+
   def createDataFileHandle(): DataFileHandle
   def getFiberData(groupId: Int, fiberId: Int, conf: Configuration): FiberCache
   def iterator(conf: Configuration, requiredIds: Array[Int]): Iterator[InternalRow]
   def iterator(conf: Configuration, requiredIds: Array[Int], rowIds: Array[Int])
   : Iterator[InternalRow]
+  // Columnar batches of the required columns followed by the partition columns, only for the
+  // scans without index or filters, see `OapFileFormat.supportBatch`
+  def batchIterator(conf: Configuration, requiredIds: Array[Int],
+      partitionSchema: StructType, partitionValues: InternalRow): Iterator[ColumnarBatch]
   def getDictionary(fiberId: Int, conf: Configuration): Dictionary
 }
 
 private[oap] object DataFile {
   def apply(path: String, schema: StructType, dataFileClassName: String,
-            configuration: Configuration): DataFile = {
+            configuration: Configuration, fingerprint: String = "",
+            start: Long = 0L, length: Long = Long.MaxValue): DataFile = {
+    val end = if (length >= Long.MaxValue - start) Long.MaxValue else start + length
     Try(Utils.classForName(dataFileClassName).getDeclaredConstructor(
-      classOf[String], classOf[StructType], classOf[Configuration])).toOption match {
+      classOf[String], classOf[StructType], classOf[Configuration], classOf[String],
+      classOf[Long], classOf[Long])).toOption match {
       case Some(ctor) =>
-        Try (ctor.newInstance(path, schema, configuration).asInstanceOf[DataFile]) match {
+        Try (ctor.newInstance(path, schema, configuration, fingerprint,
+          Long.box(start), Long.box(end)).asInstanceOf[DataFile]) match {
           case Success(e) => e
           case Failure(e) =>
             throw new OapException(s"Cannot instantiate class $dataFileClassName", e)
         }
       case None => throw new OapException(
         s"Cannot find constructor of signature like:" +
-          s" (String, StructType) for class $dataFileClassName")
+          s" (String, StructType, Configuration, String, Long, Long) for class $dataFileClassName")
     }
   }
 }
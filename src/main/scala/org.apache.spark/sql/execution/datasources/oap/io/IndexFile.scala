@@ -20,7 +20,7 @@ package org.apache.spark.sql.execution.datasources.oap.io
 import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.fs.Path
 
-import org.apache.spark.sql.execution.datasources.oap.filecache.{FiberCache, MemoryManager}
+import org.apache.spark.sql.execution.datasources.oap.filecache.{FiberCache, FiberInput}
 
 private[oap] trait CommonIndexFile {
   def file: Path
@@ -38,13 +38,12 @@ private[oap] trait CommonIndexFile {
  */
 private[oap] case class IndexFile(file: Path) extends CommonIndexFile {
   def getIndexFiberData(conf: Configuration): FiberCache = {
-    val fs = file.getFileSystem(conf)
-    val fin = fs.open(file)
+    val fin = FiberInput.open(file, conf)
     // wind to end of file to get tree root
     // TODO check if enough to fit in Int
-    val fileLength = fs.getContentSummary(file).getLength
+    val fileLength = fin.length
 
-    val fiberCache = MemoryManager.putToIndexFiberCache(fin, 0, fileLength.toInt)
+    val fiberCache = fin.readFiber(0, fileLength.toInt)
     fin.close()
     fiberCache
   }
@@ -19,68 +19,147 @@ package org.apache.spark.sql.execution.datasources.oap.io
 
 import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.fs.{FSDataOutputStream, Path}
+import org.roaringbitmap.RoaringBitmap
 
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions.Ascending
+import org.apache.spark.sql.execution.datasources.OapException
 import org.apache.spark.sql.execution.datasources.oap.{DataSourceMeta, OapFileFormat}
 import org.apache.spark.sql.execution.datasources.oap.index._
 import org.apache.spark.sql.types._
-import org.apache.spark.util.TimeStampedHashMap
 
 
-private[oap] object OapIndexInfo extends Logging {
-  val partitionOapIndex = new TimeStampedHashMap[String, Boolean](updateTimeStampOnGet = true)
-}
+/**
+ * Row ids of a split given by the index.
+ *
+ * @param skippedByStatistics if the index statistics tell no row of the file matches
+ * @param loadTime milliseconds taken to load and scan the index
+ */
+private[oap] case class IndexRowIds(
+    rowIds: Array[Int],
+    skippedByStatistics: Boolean,
+    loadTime: Long)
 
 private[oap] class OapDataReader(
   path: Path,
   meta: DataSourceMeta,
   filterScanners: Option[IndexScanners],
-  requiredIds: Array[Int]) extends Logging {
+  requiredIds: Array[Int],
+  fingerprint: String = "",
+  returningBatch: Boolean = false,
+  partitionSchema: StructType = new StructType(),
+  partitionValues: InternalRow = InternalRow.empty,
+  start: Long = 0L,
+  length: Long = Long.MaxValue,
+  metrics: OapReadMetrics = new OapReadMetrics) extends Logging {
 
   def initialize(
       conf: Configuration,
       options: Map[String, String] = Map.empty): Iterator[InternalRow] = {
-    logDebug("Initializing OapDataReader...")
-    // TODO how to save the additional FS operation to get the Split size
-    val fileScanner = DataFile(path.toString, meta.schema, meta.dataReaderClassName, conf)
-
-    filterScanners match {
-      case Some(indexScanners) if indexScanners.indexIsAvailable(path, conf) =>
-        def getRowIds(options: Map[String, String]): Array[Int] = {
-          indexScanners.initialize(path, conf)
-
-          // total Row count can be get from the index scanner
-          val limit = options.getOrElse(OapFileFormat.OAP_QUERY_LIMIT_OPTION_KEY, "0").toInt
-          val rowIds = if (limit > 0) {
-            // Order limit scan options
-            val isAscending = options.getOrElse(
-              OapFileFormat.OAP_QUERY_ORDER_OPTION_KEY, "true").toBoolean
-            val sameOrder =
-              !((indexScanners.order == Ascending) ^ isAscending)
+    val fileScanner = dataFile(conf)
+    initialize(conf, options, fileScanner, resolveIndex(conf, options, fileScanner))
+  }
 
-            if (sameOrder) indexScanners.take(limit).toArray
-            else indexScanners.toArray.reverse.take(limit)
-          } else indexScanners.toArray
+  /**
+   * Read the rows of the file given by the index, or all the rows if `indexRowIds` is None.
+   *
+   * @param fileScanner the split to read, the same one the index row ids are resolved for
+   */
+  def initialize(
+      conf: Configuration,
+      options: Map[String, String],
+      fileScanner: DataFile,
+      indexRowIds: Option[IndexRowIds]): Iterator[InternalRow] = {
+    logDebug("Initializing OapDataReader...")
 
-          // Parquet reader does not support backward scan, so rowIds must be sorted.
-          if (meta.dataReaderClassName.contains("ParquetDataFile")) rowIds.sorted
-          else rowIds
+    indexRowIds match {
+      case Some(IndexRowIds(rowIds, skippedByStatistics, loadTime)) =>
+        if (skippedByStatistics) {
+          metrics.filesSkippedByStatistics += 1
+        } else {
+          metrics.filesWithIndex += 1
+        }
+        metrics.rowsSelectedByIndex += rowIds.length
+        metrics.indexLoadTime += loadTime
+        if (returningBatch) {
+          throw new OapException("Scans with index are not read as batches")
         }
-
         val start = System.currentTimeMillis()
-        val iter = fileScanner.iterator(conf, requiredIds, getRowIds(options))
+        val iter = fileScanner.iterator(conf, requiredIds, rowIds)
         val end = System.currentTimeMillis()
         logDebug("Construct File Iterator: " + (end - start) + "ms")
         iter
-      case _ =>
+      case None =>
         val start = System.currentTimeMillis()
-        val iter = fileScanner.iterator(conf, requiredIds)
+        val iter = if (returningBatch) {
+          fileScanner.batchIterator(conf, requiredIds, partitionSchema, partitionValues)
+            .asInstanceOf[Iterator[InternalRow]]
+        } else {
+          fileScanner.iterator(conf, requiredIds)
+        }
         val end = System.currentTimeMillis()
         logDebug("Construct File Iterator: " + (end - start) + "ms")
 
         iter
     }
   }
+
+  /**
+   * Scan the index for the row ids of the split to read, None if no index is available.
+   *
+   * @param fileScanner the split to read
+   */
+  def resolveIndex(
+      conf: Configuration,
+      options: Map[String, String],
+      fileScanner: DataFile): Option[IndexRowIds] = {
+    filterScanners match {
+      case Some(indexScanners) if indexScanners.indexIsAvailable(path, conf) =>
+        val start = System.currentTimeMillis()
+        // total Row count can be get from the index scanner
+        val limit = options.getOrElse(OapFileFormat.OAP_QUERY_LIMIT_OPTION_KEY, "0").toInt
+        val backward = limit > 0 && {
+          // Order limit scan options
+          val isAscending = options.getOrElse(
+            OapFileFormat.OAP_QUERY_ORDER_OPTION_KEY, "true").toBoolean
+          (indexScanners.order == Ascending) ^ isAscending
+        }
+        // Index gives global row ids of the file, only the ones in this split are read
+        val (startRowId, endRowId) = fileScanner.rowIdRange
+        val isWholeFile = startRowId == 0L && endRowId == Long.MaxValue
+
+        val rowIds = if (limit > 0) {
+          // Row ids are pulled lazily, a limited scan only reads the index entries it takes
+          if (backward) indexScanners.initializeBackward(path, conf)
+          else indexScanners.initialize(path, conf)
+          val rowIdsInSplit =
+            if (isWholeFile) indexScanners
+            else indexScanners.filter(rowId => rowId >= startRowId && rowId < endRowId)
+          val rowIds = try rowIdsInSplit.take(limit).toArray finally indexScanners.close()
+          // Parquet reader does not support backward scan, so rowIds must be sorted.
+          if (meta.dataReaderClassName.contains("ParquetDataFile")) rowIds.sorted
+          else rowIds
+        } else {
+          // Row ids of a bitmap are unboxed and sorted already, the other splits of the file
+          // read by this task reuse it
+          val bitmap = indexScanners.fileRowIdBitmap(path, fingerprint, conf)
+          if (isWholeFile) {
+            bitmap.toArray
+          } else {
+            // Only the row ids in the split are unboxed
+            val split = new RoaringBitmap()
+            split.add(startRowId, math.min(endRowId, Int.MaxValue.toLong + 1))
+            RoaringBitmap.and(bitmap, split).toArray
+          }
+        }
+        Some(IndexRowIds(
+          rowIds, indexScanners.isSkippedByStatistics, System.currentTimeMillis() - start))
+      case _ => None
+    }
+  }
+
+  // TODO how to save the additional FS operation to get the Split size
+  def dataFile(conf: Configuration): DataFile =
+    DataFile(path.toString, meta.schema, meta.dataReaderClassName, conf, fingerprint, start, length)
 }
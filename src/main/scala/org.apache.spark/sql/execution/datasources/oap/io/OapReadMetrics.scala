@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.io
+
+import java.util.concurrent.ConcurrentHashMap
+
+import org.apache.parquet.hadoop.ParquetReadMetrics
+
+import org.apache.spark.{SparkContext, TaskContext}
+import org.apache.spark.sql.execution.metric.SQLMetric
+
+/**
+ * Metrics of an OAP scan. They are created on the driver when the reader of the scan is built,
+ * and are accumulators, so the values of the tasks are aggregated by Spark and shown by name
+ * in the stage page of the UI.
+ */
+private[oap] class OapReadMetrics extends Serializable {
+  val filesWithIndex = new SQLMetric("sum")
+  val filesSkippedByStatistics = new SQLMetric("sum")
+  val rowGroupsSkipped = new SQLMetric("sum")
+  val rowsSelectedByIndex = new SQLMetric("sum")
+  val bytesRead = new SQLMetric("size")
+  val cacheHits = new SQLMetric("sum")
+  val cacheMisses = new SQLMetric("sum")
+  val indexLoadTime = new SQLMetric("timing")
+  val decodeTime = new SQLMetric("timing")
+  val readTime = new SQLMetric("timing")
+
+  def metrics: Map[String, SQLMetric] = Map(
+    "number of files read with index" -> filesWithIndex,
+    "number of files skipped by index statistics" -> filesSkippedByStatistics,
+    "number of row groups skipped" -> rowGroupsSkipped,
+    "number of rows selected by index" -> rowsSelectedByIndex,
+    "bytes read" -> bytesRead,
+    "fiber cache hits" -> cacheHits,
+    "fiber cache misses" -> cacheMisses,
+    "index load time (ms)" -> indexLoadTime,
+    "decode time (ms)" -> decodeTime,
+    "page read time (ms)" -> readTime)
+
+  /** Register the metrics to be aggregated from the tasks, called on the driver */
+  def register(sc: SparkContext): OapReadMetrics = {
+    metrics.foreach { case (name, metric) => metric.register(sc, Some(s"OAP $name")) }
+    this
+  }
+
+  /** The metrics of a parquet record reader, reported to these metrics as they are updated */
+  def parquetReadMetrics: ParquetReadMetrics = new ParquetReadMetrics {
+    private var decodeTimeNanos = 0L
+    private var readTimeNanos = 0L
+
+    override def incRowGroupsSkipped(count: Long): Unit = {
+      super.incRowGroupsSkipped(count)
+      rowGroupsSkipped += count
+    }
+
+    override def incBytesRead(bytes: Long): Unit = {
+      super.incBytesRead(bytes)
+      bytesRead += bytes
+    }
+
+    override def incDecodeTime(nanos: Long): Unit = {
+      super.incDecodeTime(nanos)
+      decodeTimeNanos = addMillis(decodeTime, decodeTimeNanos + nanos)
+    }
+
+    override def incReadTime(nanos: Long): Unit = {
+      super.incReadTime(nanos)
+      readTimeNanos = addMillis(readTime, readTimeNanos + nanos)
+    }
+
+    // Reported in milliseconds, the remainder is returned to be kept for the next update
+    private def addMillis(metric: SQLMetric, nanos: Long): Long = {
+      val millis = nanos / 1000000
+      if (millis > 0) metric += millis
+      nanos - millis * 1000000
+    }
+  }
+}
+
+private[oap] object OapReadMetrics {
+
+  // Metrics of the scan each running task is reading for, by task attempt id
+  private val taskMetrics = new ConcurrentHashMap[Long, OapReadMetrics]()
+
+  /**
+   * Set the metrics updated by the current task, for the code shared with other callers, e.g.
+   * the fiber cache and the data files.
+   */
+  def setForCurrentTask(metrics: OapReadMetrics): Unit = {
+    Option(TaskContext.get()).foreach { context =>
+      if (taskMetrics.put(context.taskAttemptId(), metrics) == null) {
+        context.addTaskCompletionListener(_ => taskMetrics.remove(context.taskAttemptId()))
+      }
+    }
+  }
+
+  /** Metrics of the current task, None if not reading an OAP scan */
+  def current: Option[OapReadMetrics] =
+    Option(TaskContext.get()).flatMap(context => Option(taskMetrics.get(context.taskAttemptId())))
+
+  def currentParquetReadMetrics: ParquetReadMetrics =
+    current.map(_.parquetReadMetrics).getOrElse(new ParquetReadMetrics)
+}
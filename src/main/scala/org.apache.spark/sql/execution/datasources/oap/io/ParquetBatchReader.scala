@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.io
+
+import scala.collection.JavaConverters._
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.hadoop.mapreduce.TaskAttemptID
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl
+import org.apache.parquet.hadoop.ParquetInputSplit
+import org.apache.parquet.hadoop.metadata.ParquetMetadata
+
+import org.apache.spark.TaskContext
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.execution.datasources.parquet.{OapVectorizedParquetRecordReader, VectorizedParquetRecordReader}
+import org.apache.spark.sql.execution.vectorized.ColumnarBatch
+import org.apache.spark.sql.types.StructType
+
+/**
+ * Read a parquet file into [[ColumnarBatch]]es through Spark's vectorized parquet reader, with
+ * the partition columns appended after the required columns.
+ *
+ * It's only for the scans without index or filters, the row readers prune the row groups, pages
+ * and records by them.
+ *
+ * @param handle handle of the file, the footer is not read again from the file
+ * @param conf configuration with the requested schema and the read support set
+ */
+private[oap] class ParquetBatchReader(
+    path: Path,
+    handle: ParquetDataFileHandle,
+    conf: Configuration,
+    partitionSchema: StructType,
+    partitionValues: InternalRow) {
+
+  /**
+   * @param footer footer with the row groups to read
+   * @param rowGroupOffsets starting positions of the row groups to read, null for all the row
+   *                        groups in `footer` passing the filter
+   */
+  private def createReader(
+      footer: ParquetMetadata,
+      rowGroupOffsets: Array[Long]): VectorizedParquetRecordReader = {
+    val split = new ParquetInputSplit(
+      path, 0, Long.MaxValue, Long.MaxValue, Array.empty[String], rowGroupOffsets)
+    val reader =
+      new OapVectorizedParquetRecordReader(footer, OapReadMetrics.currentParquetReadMetrics)
+    try {
+      reader.initialize(split, new TaskAttemptContextImpl(conf, new TaskAttemptID()))
+      reader.initBatch(partitionSchema, partitionValues)
+    } catch {
+      case e: Throwable =>
+        reader.close()
+        throw e
+    }
+    Option(TaskContext.get()).foreach(_.addTaskCompletionListener(_ => reader.close()))
+    reader
+  }
+
+  /** Read all the rows of the file */
+  def iterator(): Iterator[ColumnarBatch] = toIterator(createReader(handle.footer, null))
+
+  /** Read all the rows of the row groups of `rowGroupIds` */
+  def rowGroupIterator(rowGroupIds: Seq[Int]): Iterator[ColumnarBatch] = {
+    val footer = handle.footer(rowGroupIds)
+    toIterator(createReader(footer, footer.getBlocks.asScala.map(_.getStartingPos).toArray))
+  }
+
+  private def toIterator(reader: VectorizedParquetRecordReader): Iterator[ColumnarBatch] = {
+    val batch = reader.resultBatch()
+    new Iterator[ColumnarBatch] {
+      private var havePair = false
+      private var finished = false
+
+      override def hasNext: Boolean = {
+        if (!finished && !havePair) {
+          finished = !reader.nextBatch()
+          if (finished) reader.close()
+          havePair = !finished
+        }
+        !finished
+      }
+
+      override def next(): ColumnarBatch = {
+        if (!hasNext) throw new java.util.NoSuchElementException("End of stream")
+        havePair = false
+        batch
+      }
+    }
+  }
+}
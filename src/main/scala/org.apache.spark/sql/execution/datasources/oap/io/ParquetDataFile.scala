@@ -17,33 +17,134 @@
 
 package org.apache.spark.sql.execution.datasources.oap.io
 
+import scala.collection.mutable.ArrayBuffer
+
 import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.fs.Path
 import org.apache.hadoop.util.StringUtils
 import org.apache.parquet.column.Dictionary
-import org.apache.parquet.hadoop.RecordReaderBuilder
+import org.apache.parquet.filter2.predicate.FilterPredicate
+import org.apache.parquet.hadoop.{ParquetInputFormat, RecordReaderBuilder}
 import org.apache.parquet.hadoop.api.RecordReader
+import org.apache.parquet.hadoop.metadata.ParquetMetadata
+import org.apache.parquet.hadoop.util.SerializationUtil
 
-import org.apache.spark.sql.catalyst.expressions.UnsafeRow
+import org.apache.spark.TaskContext
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{SpecificInternalRow, UnsafeProjection, UnsafeRow}
 import org.apache.spark.sql.execution.datasources.oap.filecache._
 import org.apache.spark.sql.execution.datasources.parquet.ParquetReadSupportHelper
+import org.apache.spark.sql.execution.vectorized.ColumnarBatch
+import org.apache.spark.sql.internal.SQLConf
 import org.apache.spark.sql.types.StructType
+import org.apache.spark.util.CompletionIterator
 
 
-private[oap] case class ParquetDataFile
-(path: String, schema: StructType, configuration: Configuration) extends DataFile {
+private[oap] case class ParquetDataFile(
+    path: String,
+    schema: StructType,
+    configuration: Configuration,
+    fingerprint: String = "",
+    splitStart: Long = 0L,
+    splitEnd: Long = Long.MaxValue) extends DataFile {
 
+  /**
+   * Decode column `fiberId` of row group `groupId` into a [[DataFiberCache]], the layout can be
+   * found at [[DataFiberBuilder]].
+   */
   def getFiberData(groupId: Int, fiberId: Int, conf: Configuration): FiberCache = {
-    // TODO data cache
-    throw new UnsupportedOperationException("Not support getFiberData Operation.")
+    // Only decode the meta of this row group
+    val groupFooter = handle.footer(Seq(groupId))
+    val rowCount = groupFooter.getBlocks.get(0).getRowCount.toInt
+    // Don't pollute the requested schema of the caller
+    val recordReader = recordReaderBuilder(new Configuration(conf), Array(fiberId), groupFooter)
+      .buildDefault()
+    recordReader.initialize()
+    val builder = DataFiberBuilder(schema(fiberId).dataType, rowCount)
+    try {
+      while (recordReader.nextKeyValue()) {
+        builder.append(recordReader.getCurrentValue.asInstanceOf[UnsafeRow], 0)
+      }
+    } finally {
+      recordReader.close()
+    }
+    builder.build()
+  }
+
+  // Ids of the row groups in the split
+  private lazy val groupIdsInSplit: Seq[Int] = {
+    if (isWholeFile) {
+      handle.rowGroupRowCounts.indices
+    } else {
+      val offsets = handle.rowGroupOffsets
+      val sizes = handle.rowGroupCompressedSizes
+      offsets.indices.filter { i =>
+        val midpoint = offsets(i) + sizes(i) / 2
+        midpoint >= splitStart && midpoint < splitEnd
+      }
+    }
+  }
+
+  override private[oap] def rowIdRange: (Long, Long) = {
+    if (isWholeFile) {
+      (0L, Long.MaxValue)
+    } else if (groupIdsInSplit.isEmpty) {
+      (0L, 0L)
+    } else {
+      // Row groups in a split are contiguous
+      val groupStarts = handle.rowGroupRowCounts.scanLeft(0L)(_ + _)
+      (groupStarts(groupIdsInSplit.head), groupStarts(groupIdsInSplit.last + 1))
+    }
+  }
+
+  private def isDataCacheEnabled(conf: Configuration, requiredIds: Array[Int]): Boolean =
+    conf.getBoolean(SQLConf.OAP_PARQUET_DATA_CACHE_ENABLED.key,
+      SQLConf.OAP_PARQUET_DATA_CACHE_ENABLED.defaultValue.get) &&
+      requiredIds.forall(id => DataFiberBuilder.isSupported(schema(id).dataType))
+
+  // Filter predicate pushed down by `OapFileFormat`, null if none
+  private def filterPredicate(conf: Configuration): FilterPredicate =
+    SerializationUtil.readObjectFromConfAsBase64(ParquetInputFormat.FILTER_PREDICATE, conf)
+
+  /**
+   * Late materialization pays off only if some required columns are not referenced by the
+   * filter, the filter columns are decoded twice for the matched rows.
+   */
+  private def isLateMaterializationEnabled(conf: Configuration, requiredIds: Array[Int]) = {
+    conf.getBoolean(SQLConf.OAP_PARQUET_LATE_MATERIALIZATION_ENABLED.key,
+      SQLConf.OAP_PARQUET_LATE_MATERIALIZATION_ENABLED.defaultValue.get) && {
+      val predicate = filterPredicate(conf)
+      predicate != null &&
+        ParquetPredicateReader.isSupported(handle.fileSchema, predicate) &&
+        requiredIds.exists(id => !ParquetPredicateReader.columnsOf(predicate)(schema(id).name))
+    }
   }
 
   def iterator(conf: Configuration, requiredIds: Array[Int]): Iterator[UnsafeRow] = {
-    val recordReader = recordReaderBuilder(conf, requiredIds)
-      .buildDefault()
-    recordReader.initialize()
-    new FileRecordReaderIterator[UnsafeRow](
-      recordReader.asInstanceOf[RecordReader[UnsafeRow]])
+    if (groupIdsInSplit.isEmpty) {
+      Iterator.empty
+    } else if (isDataCacheEnabled(conf, requiredIds)) {
+      val rowCounts = handle.rowGroupRowCounts
+      cachedIterator(conf, requiredIds, groupIdsInSplit.map { groupId =>
+        (groupId, 0 until rowCounts(groupId).toInt)
+      })
+    } else if (isLateMaterializationEnabled(conf, requiredIds)) {
+      // Decode the filter columns first, then the required columns of the matched rows only
+      val predicate = filterPredicate(conf)
+      val groupStarts = handle.rowGroupRowCounts.scanLeft(0L)(_ + _)
+      val rowIds = new ParquetPredicateReader(
+        new Path(StringUtils.unEscapeString(path)), conf, predicate)
+        .matchedRowIds(handle.footer(groupIdsInSplit), groupIdsInSplit.map(groupStarts(_)))
+      iterator(conf, requiredIds, rowIds)
+    } else {
+      val footer = if (isWholeFile) null else handle.footer(groupIdsInSplit)
+      val recordReader = recordReaderBuilder(conf, requiredIds, footer)
+        .withFilter(ParquetInputFormat.getFilter(conf))
+        .buildDefault()
+      recordReader.initialize()
+      new FileRecordReaderIterator[UnsafeRow](
+        recordReader.asInstanceOf[RecordReader[UnsafeRow]])
+    }
   }
 
   def iterator(conf: Configuration,
@@ -51,17 +152,118 @@ private[oap] case class ParquetDataFile
                rowIds: Array[Int]): Iterator[UnsafeRow] = {
     if (rowIds == null || rowIds.length == 0) {
       Iterator.empty
+    } else if (isDataCacheEnabled(conf, requiredIds)) {
+      // Split the sorted global row ids into the row groups
+      val rowCounts = handle.rowGroupRowCounts
+      val groupedRowIds = new ArrayBuffer[(Int, Seq[Int])]()
+      var groupStart = 0
+      var index = 0
+      var groupId = 0
+      while (groupId < rowCounts.length && index < rowIds.length) {
+        val groupEnd = groupStart + rowCounts(groupId).toInt
+        val rowIdsInGroup = new ArrayBuffer[Int]()
+        while (index < rowIds.length && rowIds(index) < groupEnd) {
+          rowIdsInGroup += rowIds(index) - groupStart
+          index += 1
+        }
+        if (rowIdsInGroup.nonEmpty) groupedRowIds += ((groupId, rowIdsInGroup))
+        groupStart = groupEnd
+        groupId += 1
+      }
+      cachedIterator(conf, requiredIds, groupedRowIds)
     } else {
       val recordReader = recordReaderBuilder(conf, requiredIds)
-        .withGlobalRowIds(rowIds).buildIndexed()
+        .withGlobalRowIds(rowIds)
+        .withFilter(ParquetInputFormat.getFilter(conf))
+        .buildIndexed()
       recordReader.initialize()
       new FileRecordReaderIterator[UnsafeRow](
         recordReader.asInstanceOf[RecordReader[UnsafeRow]])
     }
   }
 
-  private def recordReaderBuilder(conf: Configuration,
-                                  requiredIds: Array[Int]): RecordReaderBuilder[UnsafeRow] = {
+  def batchIterator(
+      conf: Configuration,
+      requiredIds: Array[Int],
+      partitionSchema: StructType,
+      partitionValues: InternalRow): Iterator[ColumnarBatch] = {
+    if (isWholeFile) {
+      batchReader(conf, requiredIds, partitionSchema, partitionValues).iterator()
+    } else if (groupIdsInSplit.isEmpty) {
+      Iterator.empty
+    } else {
+      batchReader(conf, requiredIds, partitionSchema, partitionValues)
+        .rowGroupIterator(groupIdsInSplit)
+    }
+  }
+
+  private def batchReader(
+      conf: Configuration,
+      requiredIds: Array[Int],
+      partitionSchema: StructType,
+      partitionValues: InternalRow): ParquetBatchReader = {
+    // Don't pollute the requested schema of the caller
+    val readerConf = new Configuration(conf)
+    readerConf.set(ParquetReadSupportHelper.SPARK_ROW_REQUESTED_SCHEMA,
+      StructType(requiredIds.map(schema(_))).json)
+    readerConf.set(
+      ParquetInputFormat.READ_SUPPORT_CLASS, ParquetReadSupportHelper.READ_SUPPORT_CLASS)
+    new ParquetBatchReader(new Path(StringUtils.unEscapeString(path)), handle, readerConf,
+      partitionSchema, partitionValues)
+  }
+
+  /**
+   * Assemble rows from the [[DataFiber]]s of required columns, the fibers are loaded into
+   * [[FiberCacheManager]] if absent.
+   *
+   * @param groupedRowIds the row group ids and the row ids (inside that row group) to read
+   */
+  private def cachedIterator(
+      conf: Configuration,
+      requiredIds: Array[Int],
+      groupedRowIds: Seq[(Int, Seq[Int])]): Iterator[UnsafeRow] = {
+    val requestSchema = StructType(requiredIds.map(schema(_)))
+    val row = new SpecificInternalRow(requestSchema.map(_.dataType))
+    val unsafeProjection = UnsafeProjection.create(requestSchema)
+    val rowCounts = handle.rowGroupRowCounts
+
+    // The fiber caches of the row group being iterated, released when the task finishes if the
+    // iterator is not drained.
+    var occupiedCaches: Seq[FiberCache] = Nil
+    def releaseCaches(): Unit = {
+      occupiedCaches.foreach(_.release())
+      occupiedCaches = Nil
+    }
+    Option(TaskContext.get()).foreach(_.addTaskCompletionListener(_ => releaseCaches()))
+
+    groupedRowIds.toIterator.flatMap { case (groupId, rowIdsInGroup) =>
+      val rowCount = rowCounts(groupId).toInt
+      // Each cache is kept as soon as it's occupied, so it's released even if a later column
+      // fails to load
+      val caches = new ArrayBuffer[FiberCache](requiredIds.length)
+      occupiedCaches = caches
+      requiredIds.foreach { id =>
+        caches += FiberCacheManager.get(DataFiber(this, id, groupId), conf)
+      }
+      val fiberReaders = requiredIds.indices.map { i =>
+        DataFiberReader(caches(i), requestSchema(i).dataType, rowCount)
+      }
+      val iterator = rowIdsInGroup.toIterator.map { rowId =>
+        var i = 0
+        while (i < fiberReaders.length) {
+          fiberReaders(i).readValue(rowId, row, i)
+          i += 1
+        }
+        unsafeProjection(row)
+      }
+      CompletionIterator[UnsafeRow, Iterator[UnsafeRow]](iterator, releaseCaches())
+    }
+  }
+
+  private def recordReaderBuilder(
+      conf: Configuration,
+      requiredIds: Array[Int],
+      footer: ParquetMetadata = null): RecordReaderBuilder[UnsafeRow] = {
     val requestSchemaString = {
       var requestSchema = new StructType
       for (index <- requiredIds) {
@@ -73,10 +275,10 @@ private[oap] case class ParquetDataFile
 
     val readSupport = new OapReadSupportImpl
 
-    val meta: ParquetDataFileHandle = DataFileHandleCacheManager(this)
     RecordReaderBuilder
       .builder(readSupport, new Path(StringUtils.unEscapeString(path)), conf)
-      .withFooter(meta.footer)
+      .withFooter(if (footer != null) footer else handle.footer)
+      .withMetrics(OapReadMetrics.currentParquetReadMetrics)
   }
 
   private class FileRecordReaderIterator[V](rowReader: RecordReader[V])
@@ -104,8 +306,10 @@ private[oap] case class ParquetDataFile
     }
   }
 
+  private def handle: ParquetDataFileHandle = DataFileHandleCacheManager(this)
+
   override def createDataFileHandle(): ParquetDataFileHandle = {
-    new ParquetDataFileHandle().read(configuration, new Path(StringUtils.unEscapeString(path)))
+    new ParquetDataFileHandle(configuration, new Path(StringUtils.unEscapeString(path)))
   }
 
   override def getDictionary(fiberId: Int, conf: Configuration): Dictionary = null
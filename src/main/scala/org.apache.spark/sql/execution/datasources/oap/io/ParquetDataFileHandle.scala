@@ -17,25 +17,134 @@
 
 package org.apache.spark.sql.execution.datasources.oap.io
 
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.nio.{ByteBuffer, ByteOrder}
+import java.nio.charset.StandardCharsets
+
+import scala.collection.JavaConverters._
+
 import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.fs.{FSDataInputStream, Path}
-import org.apache.parquet.format.converter.ParquetMetadataConverter._
-import org.apache.parquet.hadoop.ParquetFileReader
+import org.apache.parquet.format.{FileMetaData, RowGroup, SchemaElement, Util}
+import org.apache.parquet.format.converter.ParquetMetadataConverter
 import org.apache.parquet.hadoop.metadata.ParquetMetadata
+import org.apache.parquet.schema.MessageType
+
+import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.sql.execution.datasources.oap.filecache.{FiberCache, FiberInput, MemoryManager}
 
 
+/**
+ * Keep the row groups of a parquet footer in their serialized (thrift compact) form in off-heap
+ * memory, which is much smaller than the decoded [[ParquetMetadata]]. The footer is decoded once
+ * when the handle is created, only the file level metadata and the row count, position and size
+ * of each row group are kept decoded on heap, the row groups requested are decoded one by one.
+ *
+ * The off-heap row groups are freed by [[close]] when the handle is evicted from
+ * `DataFileHandleCacheManager`, a reader decoding them at the same time falls back to reading the
+ * footer from the file.
+ */
 private[oap] class ParquetDataFileHandle(
-  var footer: ParquetMetadata = null)
-  extends DataFileHandle {
+    conf: Configuration,
+    path: Path) extends DataFileHandle {
+
+  import ParquetDataFileHandle._
+
+  // File level metadata, the row groups are removed after being serialized into `footerCache`
+  private val fileMetaData: FileMetaData = readFileMetaData(conf, path)
+
+  /**
+   * Schema of the file, and the row count, the position of the first page and the compressed
+   * size of each row group
+   */
+  val (fileSchema: MessageType, rowGroupRowCounts: Array[Long], rowGroupOffsets: Array[Long],
+      rowGroupCompressedSizes: Array[Long]) = {
+    val footer = converter.fromParquetMetadata(fileMetaData)
+    val blocks = footer.getBlocks.asScala
+    (footer.getFileMetaData.getSchema, blocks.map(_.getRowCount).toArray,
+      blocks.map(_.getStartingPos).toArray, blocks.map(_.getCompressedSize).toArray)
+  }
+
+  // Position of each serialized row group in `footerCache`, followed by the end of the last one
+  private val rowGroupPositions = new Array[Int](rowGroupRowCounts.length + 1)
+
+  private val footerCache: FiberCache = {
+    // A row group is serialized in a file metadata of its own, `Util` only reads file metadata
+    val out = new ByteArrayOutputStream()
+    val rowGroups = fileMetaData.getRow_groups
+    for (i <- 0 until rowGroups.size()) {
+      val single = new FileMetaData(
+        fileMetaData.getVersion, EMPTY_SCHEMA, rowGroups.get(i).getNum_rows,
+        java.util.Collections.singletonList(rowGroups.get(i)))
+      Util.writeFileMetaData(single, out)
+      rowGroupPositions(i + 1) = out.size()
+    }
+    MemoryManager.putToDataFiberCache(out.toByteArray)
+  }
+  fileMetaData.setRow_groups(new java.util.ArrayList[RowGroup]())
 
   override def fin: FSDataInputStream = null
 
-  override def len: Long = 0
+  /** Size of the serialized row groups in off-heap memory */
+  override def len: Long = footerCache.size()
+
+  override def close(): Unit = footerCache.evict()
+
+  /** Decode the whole footer */
+  def footer: ParquetMetadata = footer(rowGroupRowCounts.indices)
 
-  def read(conf: Configuration, path: Path): ParquetDataFileHandle = {
-    this.footer = ParquetFileReader.readFooter(conf, path, NO_FILTER)
-    this
+  /** Decode the footer with only the row groups of `rowGroupIds`, in the given order */
+  def footer(rowGroupIds: Seq[Int]): ParquetMetadata = {
+    val rowGroups = if (footerCache.tryOccupy()) {
+      try rowGroupIds.map(readRowGroup) finally footerCache.release()
+    } else {
+      // Evicted concurrently, read it from file again
+      val allRowGroups = readFileMetaData(conf, path).getRow_groups
+      rowGroupIds.map(allRowGroups.get)
+    }
+    converter.fromParquetMetadata(fileMetaData.deepCopy().setRow_groups(rowGroups.asJava))
   }
 
+  private def readRowGroup(rowGroupId: Int): RowGroup = {
+    val position = rowGroupPositions(rowGroupId)
+    val bytes = footerCache.getBytes(position, rowGroupPositions(rowGroupId + 1) - position)
+    Util.readFileMetaData(new ByteArrayInputStream(bytes)).getRow_groups.get(0)
+  }
 }
 
+private[oap] object ParquetDataFileHandle {
+  private val MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII)
+  // footer length (4 bytes) + magic (4 bytes)
+  private val FOOTER_TAIL_LENGTH = 4 + MAGIC.length
+
+  private val converter = new ParquetMetadataConverter()
+
+  private val EMPTY_SCHEMA = java.util.Collections.emptyList[SchemaElement]()
+
+  private def readFileMetaData(conf: Configuration, path: Path): FileMetaData = {
+    val in = FiberInput.open(path, conf)
+    try {
+      val (footerIndex, footerLength) = footerRange(in)
+      val footerBytes = new Array[Byte](footerLength)
+      in.readFully(footerIndex, footerBytes)
+      Util.readFileMetaData(new ByteArrayInputStream(footerBytes))
+    } finally {
+      in.close()
+    }
+  }
+
+  /** @return the position and the length of the serialized footer */
+  private def footerRange(in: FiberInput): (Long, Int) = {
+    val fileLength = in.length
+    if (fileLength < MAGIC.length + FOOTER_TAIL_LENGTH) {
+      throw new OapException(s"Not a parquet file, length: $fileLength")
+    }
+    val tail = new Array[Byte](FOOTER_TAIL_LENGTH)
+    in.readFully(fileLength - FOOTER_TAIL_LENGTH, tail)
+    if (!java.util.Arrays.equals(MAGIC, java.util.Arrays.copyOfRange(tail, 4, tail.length))) {
+      throw new OapException("Not a parquet file, magic number at tail is not found")
+    }
+    val footerLength = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN).getInt
+    (fileLength - FOOTER_TAIL_LENGTH - footerLength, footerLength)
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.io
+
+import java.util.IdentityHashMap
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.parquet.filter2.compat.{FilterCompat, RowGroupFilter}
+import org.apache.parquet.filter2.predicate.{FilterPredicate, Operators}
+import org.apache.parquet.hadoop.{DictionaryRowGroupFilter, PrefetchingParquetFileReader}
+import org.apache.parquet.hadoop.metadata.{BlockMetaData, ParquetMetadata}
+import org.apache.parquet.io.ColumnIOFactory
+import org.apache.parquet.io.api.{Binary, Converter, GroupConverter, PrimitiveConverter, RecordMaterializer}
+import org.apache.parquet.schema.{GroupType, MessageType}
+import org.apache.parquet.schema.Type.Repetition
+
+/**
+ * Find the rows matching a parquet filter predicate by decoding the predicate columns only, the
+ * first phase of late materialization. The other columns are decoded for the matched rows only
+ * by the indexed reader afterwards.
+ *
+ * Row groups are pruned by statistics first, and records are filtered the same way as parquet
+ * record level filtering, the materializer only tells the position of the matched records.
+ */
+private[oap] class ParquetPredicateReader(
+    path: Path,
+    conf: Configuration,
+    predicate: FilterPredicate) {
+
+  import ParquetPredicateReader._
+
+  /**
+   * @param footer footer of the row groups to read
+   * @param groupStarts global row id of the first row of each row group in `footer`
+   * @return sorted global row ids of the matched rows
+   */
+  def matchedRowIds(footer: ParquetMetadata, groupStarts: Seq[Long]): Array[Int] = {
+    val blocks = footer.getBlocks.asScala
+    val startOfBlock = new IdentityHashMap[BlockMetaData, Long]()
+    blocks.zip(groupStarts).foreach { case (block, start) => startOfBlock.put(block, start) }
+
+    val filter = FilterCompat.get(predicate)
+    val fileSchema = footer.getFileMetaData.getSchema
+    val matchedBlocks = DictionaryRowGroupFilter.filterRowGroups(
+      conf, path, filter, RowGroupFilter.filterRowGroups(filter, blocks.asJava, fileSchema),
+      fileSchema)
+    val metrics = OapReadMetrics.currentParquetReadMetrics
+    metrics.incRowGroupsSkipped(blocks.size - matchedBlocks.size)
+    if (matchedBlocks.isEmpty) return Array.empty
+
+    val requestedSchema = predicateSchema(fileSchema, predicate)
+    val columnIO = new ColumnIOFactory(footer.getFileMetaData.getCreatedBy)
+      .getColumnIO(requestedSchema, fileSchema, true)
+    val reader = new PrefetchingParquetFileReader(
+      conf, path, new ParquetMetadata(footer.getFileMetaData, matchedBlocks), metrics)
+    reader.setRequestedSchema(requestedSchema)
+    val rowIds = new ArrayBuffer[Int]()
+    try {
+      matchedBlocks.asScala.foreach { block =>
+        val pages = reader.readNextRowGroup()
+        val recordReader =
+          columnIO.getRecordReader(pages, new RowIndexMaterializer(requestedSchema), filter)
+        val groupStart = startOfBlock.get(block)
+        var i = 0L
+        while (i < block.getRowCount) {
+          val rowIndex = recordReader.read()
+          if (rowIndex != null) rowIds += (groupStart + rowIndex.intValue).toInt
+          i += 1
+        }
+      }
+    } finally {
+      reader.close()
+    }
+    rowIds.toArray
+  }
+}
+
+private[oap] object ParquetPredicateReader {
+
+  /** Names of the columns referenced by `predicate` */
+  def columnsOf(predicate: FilterPredicate): Set[String] = predicate match {
+    case p: Operators.And => columnsOf(p.getLeft) ++ columnsOf(p.getRight)
+    case p: Operators.Or => columnsOf(p.getLeft) ++ columnsOf(p.getRight)
+    case p: Operators.Not => columnsOf(p.getPredicate)
+    // The super class of the column comparisons is package private
+    case p: Operators.Eq[_] => Set(p.getColumn.getColumnPath.toDotString)
+    case p: Operators.NotEq[_] => Set(p.getColumn.getColumnPath.toDotString)
+    case p: Operators.Lt[_] => Set(p.getColumn.getColumnPath.toDotString)
+    case p: Operators.LtEq[_] => Set(p.getColumn.getColumnPath.toDotString)
+    case p: Operators.Gt[_] => Set(p.getColumn.getColumnPath.toDotString)
+    case p: Operators.GtEq[_] => Set(p.getColumn.getColumnPath.toDotString)
+    case p: Operators.UserDefined[_, _] => Set(p.getColumn.getColumnPath.toDotString)
+    case p: Operators.LogicalNotUserDefined[_, _] => columnsOf(p.getUserDefined)
+  }
+
+  /**
+   * @return if `predicate` only references top level columns of `fileSchema` that are not
+   *         repeated
+   */
+  def isSupported(fileSchema: MessageType, predicate: FilterPredicate): Boolean = {
+    columnsOf(predicate).forall { name =>
+      fileSchema.containsField(name) && {
+        val field = fileSchema.getType(fileSchema.getFieldIndex(name))
+        field.isPrimitive && !field.isRepetition(Repetition.REPEATED)
+      }
+    }
+  }
+
+  private def predicateSchema(fileSchema: MessageType, predicate: FilterPredicate) = {
+    val columns = columnsOf(predicate)
+    new MessageType(
+      fileSchema.getName, fileSchema.getFields.asScala.filter(f => columns(f.getName)).asJava)
+  }
+
+  /**
+   * Count the records assembled, and return the position of the record in its row group. Values
+   * are ignored, only the filter predicate looks at them.
+   */
+  private class RowIndexMaterializer(schema: MessageType) extends RecordMaterializer[Integer] {
+    private var rowIndex = -1
+
+    private val root = new IgnoredGroupConverter(schema) {
+      override def end(): Unit = rowIndex += 1
+    }
+
+    override def getCurrentRecord: Integer = rowIndex
+
+    override def getRootConverter: GroupConverter = root
+  }
+
+  private class IgnoredGroupConverter(groupType: GroupType) extends GroupConverter {
+    private val converters: Array[Converter] = groupType.getFields.asScala.map { field =>
+      if (field.isPrimitive) new IgnoredPrimitiveConverter
+      else new IgnoredGroupConverter(field.asGroupType())
+    }.toArray
+
+    override def getConverter(fieldIndex: Int): Converter = converters(fieldIndex)
+    override def start(): Unit = {}
+    override def end(): Unit = {}
+  }
+
+  private class IgnoredPrimitiveConverter extends PrimitiveConverter {
+    override def addBinary(value: Binary): Unit = {}
+    override def addBoolean(value: Boolean): Unit = {}
+    override def addDouble(value: Double): Unit = {}
+    override def addFloat(value: Float): Unit = {}
+    override def addInt(value: Int): Unit = {}
+    override def addLong(value: Long): Unit = {}
+  }
+}
@@ -120,8 +120,8 @@ private[oap] class BloomFilterStatisticsWriter(
     projectors.foreach(p => bfIndex.addValue(p(key).getBytes))
   }
 
-  override def write(writer: OutputStream, sortedKeys: ArrayBuffer[Key]): Int = {
-    var offset = super.write(writer, sortedKeys)
+  override def write(writer: OutputStream): Int = {
+    var offset = super.write(writer)
 
     // Bloom filter index file format:
     // numOfLong            4 Bytes, Int, record the total number of Longs in bit array
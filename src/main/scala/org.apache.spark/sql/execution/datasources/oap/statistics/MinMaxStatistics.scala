@@ -95,8 +95,8 @@ private[oap] class MinMaxStatisticsWriter(
     }
   }
 
-  override def write(writer: OutputStream, sortedKeys: ArrayBuffer[Key]): Int = {
-    var offset = super.write(writer, sortedKeys)
+  override def write(writer: OutputStream): Int = {
+    var offset = super.write(writer)
     if (min != null) {
       val tempWriter = new ByteArrayOutputStream()
       nnkw.writeKey(tempWriter, min)
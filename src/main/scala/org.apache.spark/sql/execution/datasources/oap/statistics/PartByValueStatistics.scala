@@ -144,49 +144,54 @@ private[oap] class PartByValueStatisticsWriter(schema: StructType, conf: Configu
   extends StatisticsWriter(schema, conf) {
   override val id: Int = StatisticsType.TYPE_PART_BY_VALUE
 
+  override def needsSortedKeys: Boolean = true
+
   private lazy val maxPartNum: Int = conf.getInt(
     SQLConf.OAP_STATISTICS_PART_NUM.key, SQLConf.OAP_STATISTICS_PART_NUM.defaultValue.get)
-  @transient private lazy val ordering = GenerateOrdering.create(schema)
 
+  // `row` is the key serialized by `NonNullKeyWriter`
   protected case class PartedByValueMeta(
-      idx: Int, row: InternalRow, curMaxId: Int, accumulatorCnt: Int)
+      idx: Int, row: Array[Byte], curMaxId: Int, accumulatorCnt: Int)
   protected lazy val metas: ArrayBuffer[PartedByValueMeta] = new ArrayBuffer[PartedByValueMeta]()
 
-  override def write(writer: OutputStream, sortedKeys: ArrayBuffer[Key]): Int = {
-    var offset = super.write(writer, sortedKeys)
-    val hashMap = new java.util.HashMap[Key, Int]()
-    val uniqueKeys: ArrayBuffer[Key] = new ArrayBuffer[Key]()
+  private var uniqueKeyCount = 0
+  private var partNum = 0
+  private var perSize = 0
 
-    var prev: Key = null
-    var prevCnt: Int = 0
+  // Index of the next unique key and the row count of the keys before it
+  private var keyIndex = 0
+  private var accumulatorCnt = 0
 
-    for (key <- sortedKeys) {
-      if (prev == null) {
-        prev = key
-        prevCnt += 1
-      } else {
-        if (ordering.compare(prev, key) == 0) prevCnt += 1
-        else {
-          hashMap.put(prev, prevCnt)
-          uniqueKeys.append(prev)
-          prevCnt = 1
-          prev = key
-        }
-      }
+  override def beginSortedKeys(uniqueKeyCount: Int, rowCount: Int): Unit = {
+    this.uniqueKeyCount = uniqueKeyCount
+    if (uniqueKeyCount > 0) {
+      partNum = if (uniqueKeyCount > maxPartNum) maxPartNum else uniqueKeyCount
+      perSize = uniqueKeyCount / partNum
+    }
+  }
+
+  // Every `perSize`-th unique key of the first `partNum` parts, and the last key, are kept with
+  // the row count of the keys up to it
+  override def addSortedKey(key: Array[Byte], rowCount: Int): Unit = {
+    accumulatorCnt += rowCount
+    if (keyIndex % perSize == 0 && keyIndex / perSize < partNum) {
+      metas.append(PartedByValueMeta(keyIndex / perSize, key, keyIndex, accumulatorCnt))
     }
-    if (prev != null) {
-      hashMap.put(prev, prevCnt)
-      uniqueKeys.append(prev)
+    if (keyIndex == uniqueKeyCount - 1) {
+      metas.append(PartedByValueMeta(partNum, key, keyIndex, accumulatorCnt))
     }
+    keyIndex += 1
+  }
 
-    buildPartMeta(uniqueKeys, hashMap)
+  override def write(writer: OutputStream): Int = {
+    var offset = super.write(writer)
 
     // start writing
     IndexUtils.writeInt(writer, metas.length)
     offset += IndexUtils.INT_SIZE
     val tempWriter = new ByteArrayOutputStream()
     metas.foreach(meta => {
-      nnkw.writeKey(tempWriter, meta.row)
+      tempWriter.write(meta.row)
       IndexUtils.writeInt(writer, meta.curMaxId)
       IndexUtils.writeInt(writer, meta.accumulatorCnt)
       IndexUtils.writeInt(writer, tempWriter.size())
@@ -196,34 +201,4 @@ private[oap] class PartByValueStatisticsWriter(schema: StructType, conf: Configu
     offset += tempWriter.size
     offset
   }
-
-  // TODO needs refactor, kept for easy debug
-  private def buildPartMeta(uniqueKeys: ArrayBuffer[Key], hashMap: java.util.HashMap[Key, Int]) = {
-    val size = hashMap.size()
-    if (size > 0) {
-      val partNum = if (size > maxPartNum) maxPartNum else size
-      val perSize = size / partNum
-
-      var i = 0
-      var count = 0
-      var index = 0
-      while (i < partNum) {
-        index = i * perSize
-        var begin = Math.max(index - perSize + 1, 0)
-        while (begin <= index) {
-          count += hashMap.get(uniqueKeys(begin))
-          begin += 1
-        }
-        metas.append(PartedByValueMeta(i, uniqueKeys(Math.max(begin - 1, 0)), index, count))
-        i += 1
-      }
-
-      index += 1
-      while (index < uniqueKeys.size) {
-        count += hashMap.get(uniqueKeys(index))
-        index += 1
-      }
-      metas.append(PartedByValueMeta(partNum, uniqueKeys.last, size - 1, count))
-    }
-  }
 }
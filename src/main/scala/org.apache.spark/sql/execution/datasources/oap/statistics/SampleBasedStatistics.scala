@@ -23,7 +23,6 @@ import scala.util.Random
 
 import org.apache.hadoop.conf.Configuration
 
-import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions.codegen.GenerateOrdering
 import org.apache.spark.sql.execution.datasources.oap.Key
 import org.apache.spark.sql.execution.datasources.oap.filecache.FiberCache
@@ -79,10 +78,37 @@ private[oap] class SampleBasedStatisticsWriter(schema: StructType, conf: Configu
   extends StatisticsWriter(schema, conf) {
   override val id: Int = StatisticsType.TYPE_SAMPLE_BASE
 
+  override def needsSortedKeys: Boolean = true
+
   lazy val sampleRate: Double = conf.getDouble(
     SQLConf.OAP_STATISTICS_SAMPLE_RATE.key, SQLConf.OAP_STATISTICS_SAMPLE_RATE.defaultValue.get)
 
-  protected var sampleArray: Array[Key] = _
+  // Serialized keys of the sampled rows, in ascending order
+  protected val sampleArray = new ArrayBuffer[Array[Byte]]()
+
+  // Rows not visited yet and samples to take from them
+  private var remainingRows = 0L
+  private var remainingSamples = 0
+
+  override def beginSortedKeys(uniqueKeyCount: Int, rowCount: Int): Unit = {
+    remainingRows = rowCount
+    remainingSamples = (rowCount * sampleRate).toInt
+  }
+
+  // Selection sampling, each row is taken with the probability of the samples still to take
+  // over the rows left, which takes a uniform sample of the rows in one pass
+  override def addSortedKey(key: Array[Byte], rowCount: Int): Unit = {
+    var i = 0
+    while (i < rowCount && remainingSamples > 0) {
+      if (Random.nextDouble() * remainingRows < remainingSamples) {
+        sampleArray += key
+        remainingSamples -= 1
+      }
+      remainingRows -= 1
+      i += 1
+    }
+    remainingRows -= rowCount - i
+  }
 
   // SampleBasedStatistics file structure
   // statistics_id        4 Bytes, Int, specify the [[Statistic]] type
@@ -93,16 +119,14 @@ private[oap] class SampleBasedStatisticsWriter(schema: StructType, conf: Configu
   // | unsafeRow-3 sizeInBytes | unsafeRow-3 content |   (4 + u3_sizeInBytes) Bytes, unsafeRow-3
   // ...
   // | unsafeRow-(sample_size) sizeInBytes | unsafeRow-(sample_size) content |
-  override def write(writer: OutputStream, sortedKeys: ArrayBuffer[Key]): Int = {
-    var offset = super.write(writer, sortedKeys)
-    val size = (sortedKeys.size * sampleRate).toInt
-    sampleArray = takeSample(sortedKeys, size)
+  override def write(writer: OutputStream): Int = {
+    var offset = super.write(writer)
 
-    IndexUtils.writeInt(writer, size)
+    IndexUtils.writeInt(writer, sampleArray.size)
     offset += IndexUtils.INT_SIZE
     val tempWriter = new ByteArrayOutputStream()
     sampleArray.foreach(key => {
-      nnkw.writeKey(tempWriter, key)
+      tempWriter.write(key)
       IndexUtils.writeInt(writer, tempWriter.size())
       offset += IndexUtils.INT_SIZE
     })
@@ -110,7 +134,4 @@ private[oap] class SampleBasedStatisticsWriter(schema: StructType, conf: Configu
     writer.write(tempWriter.toByteArray)
     offset
   }
-
-  protected def takeSample(keys: ArrayBuffer[InternalRow], size: Int): Array[InternalRow] =
-    Random.shuffle(keys.indices.toList).take(size).map(keys(_)).toArray
 }
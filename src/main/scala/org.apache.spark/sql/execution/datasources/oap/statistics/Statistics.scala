@@ -65,24 +65,44 @@ abstract class StatisticsWriter(schema: StructType, conf: Configuration) {
   @transient
   protected lazy val nnkw = new NonNullKeyWriter(schema)
 
+  /**
+   * Whether the statistics are built from the unique keys in ascending order, given by
+   * `beginSortedKeys` and `addSortedKey`, instead of `addOapKey`.
+   */
+  def needsSortedKeys: Boolean = false
+
   /**
    * For MinMax & Bloom Filter, every time a key is inserted, then
-   * the info should be updated, for SampleBase and PartByValue statistics,
-   * nothing done in this function, a in-memory key array is stored in
-   * `StatisticsManager`. This function does nothing for most cases.
+   * the info should be updated. The key is kept as is, the caller passes a copy if the row is
+   * reused. This function does nothing for most cases.
    * @param key an InternalRow from index partition
    */
   def addOapKey(key: Key): Unit = {
   }
 
+  /**
+   * Called once before the sorted keys are added.
+   * @param uniqueKeyCount number of unique non-null keys
+   * @param rowCount number of rows with non-null keys
+   */
+  def beginSortedKeys(uniqueKeyCount: Int, rowCount: Int): Unit = {
+  }
+
+  /**
+   * For SampleBase and PartByValue, the unique non-null keys are added in ascending order.
+   * @param key the key serialized by [[NonNullKeyWriter]]
+   * @param rowCount number of rows with the key
+   */
+  def addSortedKey(key: Array[Byte], rowCount: Int): Unit = {
+  }
+
   /**
    * Statistics write function, by default, only a Statistics id should be
    * written into the writer.
    * @param writer IndexOutputWrite, where to write the information
-   * @param sortedKeys sorted keys stored related to this statistics
    * @return number of bytes written in writer
    */
-  def write(writer: OutputStream, sortedKeys: ArrayBuffer[Key]): Int = {
+  def write(writer: OutputStream): Int = {
     IndexUtils.writeInt(writer, id)
     4
   }
@@ -23,7 +23,6 @@ import scala.collection.mutable.ArrayBuffer
 
 import org.apache.hadoop.conf.Configuration
 
-import org.apache.spark.sql.catalyst.expressions.codegen.GenerateOrdering
 import org.apache.spark.sql.execution.datasources.oap.Key
 import org.apache.spark.sql.execution.datasources.oap.filecache.FiberCache
 import org.apache.spark.sql.execution.datasources.oap.index._
@@ -37,6 +36,8 @@ import org.apache.spark.sql.types._
  * val statisticsManager = new StatisticsWriteManager
  * statisticsManager.initialize(BTreeIndexType, schema)
  * for (key <- keys) statisticsManager.addOapKey(key)
+ * statisticsManager.beginSortedKeys(uniqueKeyCount, rowCount)
+ * for ((key, count) <- sortedUniqueKeys) statisticsManager.addSortedKey(key, count)
  * statisticsManager.write(out)
  * }}}
  */
@@ -44,13 +45,6 @@ class StatisticsWriteManager {
   protected var stats: Array[StatisticsWriter] = _
   protected var schema: StructType = _
 
-  // share key store for all statistics
-  // for MinMax and BloomFilter, this is not necessary
-  // but for SampleBase and PartByValue, this is needed
-  protected var content: ArrayBuffer[Key] = _
-
-  @transient private lazy val ordering = GenerateOrdering.create(schema)
-
   // When a task initialize statisticsWriteManager, we read all config from `conf`,
   // which is created from `SparkUtils`, hence containing all spark config values.
   def initialize(indexType: AnyIndexType, s: StructType, conf: Configuration): Unit = {
@@ -64,15 +58,35 @@ class StatisticsWriteManager {
       case StatisticsType(st) => st(s, conf)
       case t => throw new UnsupportedOperationException(s"non-supported statistic type $t")
     }
-    content = new ArrayBuffer[Key]()
   }
 
+  // Statistics built from the sorted keys, SampleBase and PartByValue
+  private lazy val sortedKeyStats = stats.filter(_.needsSortedKeys)
+
+  /**
+   * Whether `addOapKey` is needed, the caller may skip projecting and copying the keys
+   * otherwise.
+   */
+  def needsOapKeys: Boolean = stats.exists(!_.needsSortedKeys)
+
   def addOapKey(key: Key): Unit = {
     if (key.anyNull) return // stats info does not collect null keys
-    content.append(key)
     stats.foreach(_.addOapKey(key))
   }
 
+  /**
+   * Called before the unique non-null keys are added in ascending order by `addSortedKey`.
+   */
+  def beginSortedKeys(uniqueKeyCount: Int, rowCount: Int): Unit =
+    sortedKeyStats.foreach(_.beginSortedKeys(uniqueKeyCount, rowCount))
+
+  /**
+   * @param key the key serialized by `NonNullKeyWriter`
+   * @param rowCount number of rows with the key
+   */
+  def addSortedKey(key: Array[Byte], rowCount: Int): Unit =
+    sortedKeyStats.foreach(_.addSortedKey(key, rowCount))
+
   def write(out: OutputStream): Int = {
     var offset = 0
 
@@ -86,16 +100,13 @@ class StatisticsWriteManager {
       offset += 4
     }
 
-    val sortedKeys = sortKeys
     stats.foreach { stat =>
-      val off = stat.write(out, sortedKeys)
+      val off = stat.write(out)
       assert(off >= 0)
       offset += off
     }
     offset
   }
-
-  private def sortKeys = content.sortWith((l, r) => ordering.compare(l, r) < 0)
 }
 
 object StatisticsManager {
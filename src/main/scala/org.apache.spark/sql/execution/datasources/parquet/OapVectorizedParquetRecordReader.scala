@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.parquet
+
+import scala.collection.JavaConverters._
+
+import org.apache.hadoop.mapreduce.{InputSplit, TaskAttemptContext}
+import org.apache.parquet.column.page.PageReadStore
+import org.apache.parquet.filter2.compat.RowGroupFilter
+import org.apache.parquet.hadoop.{ParquetFileReader, ParquetInputFormat, ParquetInputSplit, ParquetReadMetrics}
+import org.apache.parquet.hadoop.api.InitContext
+import org.apache.parquet.hadoop.metadata.{BlockMetaData, ParquetMetadata}
+
+import org.apache.spark.sql.types.StructType
+
+/**
+ * [[VectorizedParquetRecordReader]] over a footer already read, e.g. the one cached by the data
+ * file handle, instead of reading the footer from the file again for each split.
+ *
+ * The compressed sizes of the requested columns of the row groups to read are reported as the
+ * bytes read once the reader is initialized. The time spent in each batch is decode time, except
+ * the time reading the pages of the next row group, which is read time.
+ *
+ * @param footer footer of the whole file
+ * @param metrics metrics of the reader
+ */
+class OapVectorizedParquetRecordReader(footer: ParquetMetadata, metrics: ParquetReadMetrics)
+  extends VectorizedParquetRecordReader {
+
+  // Total time reading the row groups, taken out of the decode time of the batches
+  private var readTimeNanos = 0L
+
+  override def initialize(split: InputSplit, context: TaskAttemptContext): Unit = {
+    // Same as `SpecificParquetRecordReaderBase.initialize` except the footer
+    val conf = context.getConfiguration
+    val parquetSplit = split.asInstanceOf[ParquetInputSplit]
+    file = parquetSplit.getPath
+    fileSchema = footer.getFileMetaData.getSchema
+    val rowGroupOffsets = parquetSplit.getRowGroupOffsets
+    val selected: java.util.List[BlockMetaData] = if (rowGroupOffsets == null) {
+      footer.getBlocks
+    } else {
+      val offsets = rowGroupOffsets.toSet
+      val selected = footer.getBlocks.asScala.filter(b => offsets(b.getStartingPos))
+      if (selected.length != rowGroupOffsets.length) {
+        throw new IllegalStateException(s"All the offsets listed in the split should be found " +
+          s"in the file. expected: ${rowGroupOffsets.mkString("[", ", ", "]")} " +
+          s"found: ${selected.map(_.getStartingPos).mkString("[", ", ", "]")} in file: $file")
+      }
+      selected.asJava
+    }
+    // The row groups of a split are pruned by statistics as well
+    val blocks = RowGroupFilter.filterRowGroups(
+      ParquetInputFormat.getFilter(conf), selected, fileSchema)
+    metrics.incRowGroupsSkipped(selected.size - blocks.size)
+
+    val keyValueMetaData = footer.getFileMetaData.getKeyValueMetaData.asScala.map {
+      case (k, v) => k -> Set(v).asJava
+    }.asJava
+    val readContext = ParquetInputFormat.getReadSupportInstance(conf)
+      .init(new InitContext(conf, keyValueMetaData, fileSchema))
+    requestedSchema = readContext.getRequestedSchema
+    sparkSchema = StructType.fromString(conf.get(ParquetReadSupport.SPARK_ROW_REQUESTED_SCHEMA))
+    reader = new ParquetFileReader(
+        conf, footer.getFileMetaData, file, blocks, requestedSchema.getColumns) {
+      override def readNextRowGroup(): PageReadStore = {
+        val start = System.nanoTime()
+        val pages = super.readNextRowGroup()
+        val nanos = System.nanoTime() - start
+        readTimeNanos += nanos
+        metrics.incReadTime(nanos)
+        pages
+      }
+    }
+    totalRowCount = blocks.asScala.map(_.getRowCount).sum
+
+    OapVectorizedParquetRecordReader.initializeInternal.invoke(this)
+    metrics.incBytesRead(
+      blocks.asScala.map(ParquetReadMetrics.chunkBytes(_, requestedSchema)).sum)
+  }
+
+  override def nextBatch(): Boolean = {
+    val start = System.nanoTime()
+    val readStart = readTimeNanos
+    val hasNext = super.nextBatch()
+    metrics.incDecodeTime(System.nanoTime() - start - (readTimeNanos - readStart))
+    hasNext
+  }
+}
+
+private object OapVectorizedParquetRecordReader {
+
+  // Checks the requested columns against the file schema, private in the super class
+  private lazy val initializeInternal = {
+    val method = classOf[VectorizedParquetRecordReader].getDeclaredMethod("initializeInternal")
+    method.setAccessible(true)
+    method
+  }
+}
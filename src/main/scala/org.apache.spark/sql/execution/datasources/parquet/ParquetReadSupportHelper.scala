@@ -46,4 +46,7 @@ object ParquetReadSupportHelper {
 
   val SPARK_ROW_REQUESTED_SCHEMA = ParquetReadSupport.SPARK_ROW_REQUESTED_SCHEMA
 
+  // Read support of Spark's parquet readers, `ParquetReadSupport` is private to this package
+  val READ_SUPPORT_CLASS = classOf[ParquetReadSupport].getName
+
 }
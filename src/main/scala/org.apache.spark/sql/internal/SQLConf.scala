@@ -761,6 +761,112 @@ object SQLConf {
         .intConf
         .createWithDefault(1024 * 1024)
 
+  val OAP_BTREE_SORT_BUFFER_SIZE =
+    SQLConfigBuilder("spark.sql.oap.btree.sortBuffer.size")
+        .internal()
+        .doc("Max memory to sort the keys of a file in when building btree index, sorted runs " +
+          "are spilled to local disk beyond it and merged when writing the index")
+        .bytesConf(ByteUnit.BYTE)
+        .createWithDefault(64 * 1024 * 1024)
+
+  val OAP_PARQUET_DATA_CACHE_ENABLED =
+    SQLConfigBuilder("spark.sql.oap.parquet.data.cache.enable")
+      .internal()
+      .doc("Whether enable caching the decoded parquet column chunks in fiber cache")
+      .booleanConf
+      .createWithDefault(false)
+
+  val OAP_FIBER_CACHE_MEMORY_FRACTION =
+    SQLConfigBuilder("spark.sql.oap.fiberCache.memory.fraction")
+      .internal()
+      .doc("The fraction of off-heap storage memory used by OAP fiber cache")
+      .doubleConf
+      .transform { v =>
+        require(v > 0 && v <= 1, s"The fraction should be in (0, 1], but was $v")
+        v
+      }
+      .createWithDefault(0.7)
+
+  val OAP_INDEX_FIBER_CACHE_FRACTION =
+    SQLConfigBuilder("spark.sql.oap.fiberCache.index.fraction")
+      .internal()
+      .doc("The fraction of OAP fiber cache memory reserved for index fibers, the rest is for " +
+        "data fibers")
+      .doubleConf
+      .transform { v =>
+        require(v > 0 && v <= 1, s"The fraction should be in (0, 1], but was $v")
+        v
+      }
+      .createWithDefault(0.3)
+
+  val OAP_MMAP_ENABLED =
+    SQLConfigBuilder("spark.sql.oap.mmap.enabled")
+      .internal()
+      .doc("Whether to memory map the index files and data file footers on local file system, " +
+        "fibers are read as views over the mapped files instead of copies in off-heap memory")
+      .booleanConf
+      .createWithDefault(false)
+
+  val OAP_FIBER_CACHE_BORROW_ENABLED =
+    SQLConfigBuilder("spark.sql.oap.fiberCache.borrow.enable")
+      .internal()
+      .doc("Whether index and data fiber cache can borrow the idle memory of each other")
+      .booleanConf
+      .createWithDefault(true)
+
+  val OAP_DATA_FILE_HANDLE_CACHE_SIZE =
+    SQLConfigBuilder("spark.sql.oap.dataFileHandle.cache.size")
+      .internal()
+      .doc("The max total size in bytes of cached data file handles, e.g. parquet footers")
+      .longConf
+      .createWithDefault(64L * 1024 * 1024)
+
+  val OAP_PARQUET_PAGE_SKIPPING_ENABLED =
+    SQLConfigBuilder("spark.sql.oap.parquet.pageSkipping.enable")
+      .internal()
+      .doc("Whether only read the parquet pages containing the row ids given by index, for the " +
+        "columns not repeated")
+      .booleanConf
+      .createWithDefault(true)
+
+  val OAP_PARQUET_PREFETCH_ENABLED =
+    SQLConfigBuilder("spark.sql.oap.parquet.prefetch.enable")
+      .internal()
+      .doc("Whether read the next parquet row group in background while decoding the current one")
+      .booleanConf
+      .createWithDefault(true)
+
+  val OAP_PARQUET_PREFETCH_THREADS =
+    SQLConfigBuilder("spark.sql.oap.parquet.prefetch.threads")
+      .internal()
+      .doc("The number of threads of each executor reading parquet row groups in background")
+      .intConf
+      .createWithDefault(4)
+
+  val OAP_PARQUET_LATE_MATERIALIZATION_ENABLED =
+    SQLConfigBuilder("spark.sql.oap.parquet.lateMaterialization.enable")
+      .internal()
+      .doc("Whether decode the pushed down filter columns first, and the other required columns " +
+        "for the matched rows only, when scanning parquet without index")
+      .booleanConf
+      .createWithDefault(false)
+
+  val OAP_PARQUET_DICTIONARY_FILTER_ENABLED =
+    SQLConfigBuilder("spark.sql.oap.parquet.dictionaryFilter.enable")
+      .internal()
+      .doc("Whether skip the parquet row groups whose dictionaries have no value matching the " +
+        "equality or IN filters")
+      .booleanConf
+      .createWithDefault(true)
+
+  val OAP_PARQUET_DENSE_ROW_GROUP_THRESHOLD =
+    SQLConfigBuilder("spark.sql.oap.parquet.denseRowGroupThreshold")
+      .internal()
+      .doc("When reading parquet with index, row groups with a higher ratio of rows hit by the " +
+        "index are read in whole and decoded sequentially, instead of reading the rows hit only")
+      .doubleConf
+      .createWithDefault(0.3)
+
   object Deprecated {
     val MAPRED_REDUCE_TASKS = "mapred.reduce.tasks"
   }
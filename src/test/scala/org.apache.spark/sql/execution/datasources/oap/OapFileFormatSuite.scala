@@ -0,0 +1,397 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap
+
+import java.io.File
+
+import scala.collection.mutable
+
+import org.apache.hadoop.fs.Path
+import org.apache.parquet.example.data.simple.SimpleGroupFactory
+import org.apache.parquet.hadoop.example.ExampleParquetWriter
+import org.apache.parquet.schema.MessageTypeParser
+
+import org.apache.spark.scheduler.{SparkListener, SparkListenerStageCompleted}
+import org.apache.spark.sql.{DataFrame, QueryTest, Row}
+import org.apache.spark.sql.execution.FileSourceScanExec
+import org.apache.spark.sql.execution.datasources.oap.filecache.FiberCacheManager
+import org.apache.spark.sql.internal.SQLConf
+import org.apache.spark.sql.test.SharedSQLContext
+import org.apache.spark.sql.types._
+import org.apache.spark.util.Utils
+
+class OapFileFormatSuite extends QueryTest with SharedSQLContext {
+
+  // Fibers are cached in off-heap memory, and keep the warehouse local
+  sparkConf.set("spark.memory.offHeap.enabled", "true")
+  sparkConf.set("spark.memory.offHeap.size", "64m")
+  sparkConf.set("spark.sql.warehouse.dir", Utils.createTempDir().toURI.toString)
+
+  private val FILE_COUNT = 2
+  private val ROW_COUNT = 3000
+
+  private val parquetSchema = MessageTypeParser.parseMessageType(
+    """message test {
+      |  required int32 a;
+      |  optional binary b (UTF8);
+      |  optional int64 c;
+      |  required double d;
+      |}""".stripMargin)
+
+  private val schema = new StructType()
+    .add("a", IntegerType, nullable = false)
+    .add("b", StringType)
+    .add("c", LongType)
+    .add("d", DoubleType, nullable = false)
+
+  // Unique keys out of order, so the rows given by index are scattered over the pages
+  private def key(file: Int, i: Int): Int = ((file * ROW_COUNT + i) * 1009L % 6000).toInt
+
+  private def rowOf(a: Int): Row =
+    Row(a, if (a % 7 == 0) null else s"s$a", if (a % 11 == 0) null else a * 10L, a / 2.0)
+
+  private val filters = Seq(
+    "a = 17",
+    "a in (1, 500, 5999)",
+    "a between 100 and 300",
+    "a < 50 or a > 5950",
+    "a >= 1000 and a < 1500 and d > 600",
+    "a > 6000")
+
+  private var dir: File = _
+
+  // Several row groups of several pages in each file
+  private def writeFile(path: Path, rows: Seq[Row]): Unit = {
+    val writer = ExampleParquetWriter.builder(path)
+      .withType(parquetSchema)
+      .withRowGroupSize(16 * 1024)
+      .withPageSize(1024)
+      .build()
+    val factory = new SimpleGroupFactory(parquetSchema)
+    try {
+      rows.foreach { row =>
+        val group = factory.newGroup().append("a", row.getInt(0))
+        if (!row.isNullAt(1)) group.append("b", row.getString(1))
+        if (!row.isNullAt(2)) group.append("c", row.getLong(2))
+        writer.write(group.append("d", row.getDouble(3)))
+      }
+    } finally {
+      writer.close()
+    }
+  }
+
+  override def beforeAll(): Unit = {
+    super.beforeAll()
+    dir = Utils.createTempDir()
+    (0 until FILE_COUNT).foreach { file =>
+      writeFile(
+        new Path(dir.getAbsolutePath, s"part-$file.parquet"),
+        (0 until ROW_COUNT).map(key(file, _)).map(rowOf))
+    }
+    val rows = (0 until FILE_COUNT).flatMap(file => (0 until ROW_COUNT).map(key(file, _)))
+    spark.createDataFrame(sparkContext.parallelize(rows.map(rowOf)), schema)
+      .createOrReplaceTempView("expected")
+    spark.read.parquet(dir.getAbsolutePath).createOrReplaceTempView("t")
+    sql("create oindex idx on t (a)")
+    assert(dir.listFiles().count(_.getName.endsWith(".idx.index")) == FILE_COUNT)
+    // Always scanned by `OapFileFormat`, with or without filters on the index columns
+    spark.read.format("oap").load(dir.getAbsolutePath).createOrReplaceTempView("o")
+  }
+
+  override def afterAll(): Unit = {
+    try {
+      Utils.deleteRecursively(dir)
+    } finally {
+      super.afterAll()
+    }
+  }
+
+  private def checkFilters(projection: String = "*"): Unit = filters.foreach { filter =>
+    checkAnswer(
+      sql(s"select $projection from t where $filter"),
+      sql(s"select $projection from expected where $filter"))
+  }
+
+  test("read the rows given by index with and without page skipping") {
+    Seq("true", "false").foreach { enabled =>
+      withSQLConf(SQLConf.OAP_PARQUET_PAGE_SKIPPING_ENABLED.key -> enabled) {
+        checkFilters()
+        checkFilters("c, a")
+      }
+    }
+  }
+
+  test("read the row groups hit by index sequentially or by row ids") {
+    // Row groups hit by index are read in whole with 0, and by the row ids hit with 1
+    Seq("0", "0.3", "1").foreach { threshold =>
+      withSQLConf(SQLConf.OAP_PARQUET_DENSE_ROW_GROUP_THRESHOLD.key -> threshold) {
+        checkFilters()
+        checkFilters("b")
+      }
+    }
+  }
+
+  private def isBatched(df: DataFrame): Boolean =
+    df.queryExecution.executedPlan.collectFirst { case s: FileSourceScanExec => s }.get
+      .supportsBatch
+
+  test("scan columnar batches without filters") {
+    Seq("true", "false").foreach { vectorized =>
+      withSQLConf(SQLConf.PARQUET_VECTORIZED_READER_ENABLED.key -> vectorized) {
+        Seq("*", "d, b", "c").foreach { projection =>
+          val df = sql(s"select $projection from o")
+          assert(isBatched(df) == vectorized.toBoolean)
+          checkAnswer(df, sql(s"select $projection from expected"))
+        }
+      }
+    }
+    // The rows skipped by filters are not in batches
+    val df = sql("select * from o where a = 17")
+    assert(!isBatched(df))
+    checkAnswer(df, sql("select * from expected where a = 17"))
+  }
+
+  test("push down the filters not on the index columns") {
+    val filters = Seq(
+      "b = 's20'",
+      "b is null and d < 100",
+      "c is not null and c < 3000",
+      "a < 300 and b is null",
+      "(a < 100 or a > 5900) and c > 59500",
+      "d >= 2999.5")
+    Seq("true", "false").foreach { oindex =>
+      Seq("true", "false").foreach { pushDown =>
+        withSQLConf(
+            SQLConf.OAP_ENABLE_OINDEX.key -> oindex,
+            SQLConf.PARQUET_FILTER_PUSHDOWN_ENABLED.key -> pushDown) {
+          filters.foreach { filter =>
+            checkAnswer(
+              sql(s"select * from o where $filter"),
+              sql(s"select * from expected where $filter"))
+          }
+        }
+      }
+    }
+  }
+
+  test("decode the projected columns of the rows matching the filters only") {
+    val queries = Seq(
+      "select b from o where c < 2000",
+      "select d, b from o where a between 100 and 300",
+      "select c from o where b is null and d > 1000",
+      "select * from o where a > 5000 and c is null",
+      // Projected columns only, filtering nothing
+      "select b, d from o where a > -1")
+    Seq("true", "false").foreach { lateMaterialization =>
+      withSQLConf(
+          SQLConf.OAP_PARQUET_LATE_MATERIALIZATION_ENABLED.key -> lateMaterialization,
+          SQLConf.OAP_ENABLE_OINDEX.key -> "false") {
+        queries.foreach { query =>
+          checkAnswer(sql(query), sql(query.replace(" o ", " expected ")))
+        }
+      }
+    }
+  }
+
+  test("read the row groups hit by index in background") {
+    Seq("true" -> "1", "true" -> "4", "false" -> "4").foreach { case (enabled, threads) =>
+      withSQLConf(
+          SQLConf.OAP_PARQUET_PREFETCH_ENABLED.key -> enabled,
+          SQLConf.OAP_PARQUET_PREFETCH_THREADS.key -> threads,
+          SQLConf.OAP_PARQUET_DENSE_ROW_GROUP_THRESHOLD.key -> "1") {
+        checkFilters()
+        // Stop before the row groups being read in background
+        val rows = sql("select a from t where a > 100 limit 5").collect()
+        assert(rows.length == 5 && rows.forall(_.getInt(0) > 100))
+      }
+    }
+  }
+
+  test("read the column chunks from data fiber cache") {
+    withSQLConf(SQLConf.OAP_PARQUET_DATA_CACHE_ENABLED.key -> "true") {
+      Seq("*", "d, b").foreach { projection =>
+        val df = sql(s"select $projection from o")
+        assert(!isBatched(df))
+        checkAnswer(df, sql(s"select $projection from expected"))
+      }
+      // The column chunks are cached by the scans above
+      val hitCount = FiberCacheManager.dataCacheStats.hitCount
+      checkFilters()
+      checkFilters("c")
+      assert(FiberCacheManager.dataCacheStats.hitCount > hitCount)
+    }
+  }
+
+  test("split the files at row group boundaries") {
+    withSQLConf(
+        SQLConf.FILES_MAX_PARTITION_BYTES.key -> "8192",
+        SQLConf.FILES_OPEN_COST_IN_BYTES.key -> "0") {
+      Seq("true", "false").foreach { vectorized =>
+        withSQLConf(SQLConf.PARQUET_VECTORIZED_READER_ENABLED.key -> vectorized) {
+          val df = sql("select * from o")
+          assert(df.rdd.getNumPartitions > FILE_COUNT)
+          checkAnswer(df, sql("select * from expected"))
+        }
+      }
+      checkFilters()
+      withSQLConf(SQLConf.OAP_PARQUET_DATA_CACHE_ENABLED.key -> "true") {
+        checkAnswer(sql("select b, c from o"), sql("select b, c from expected"))
+        checkFilters()
+      }
+    }
+  }
+
+  test("read the first rows of each file in the index order") {
+    Seq(true, false).foreach { ascending =>
+      val df = spark.read.format("oap")
+        .option(OapFileFormat.OAP_QUERY_LIMIT_OPTION_KEY, "3")
+        .option(OapFileFormat.OAP_QUERY_ORDER_OPTION_KEY, ascending.toString)
+        .load(dir.getAbsolutePath)
+      val expected = (0 until FILE_COUNT).flatMap { file =>
+        val keys = (0 until ROW_COUNT).map(key(file, _)).filter(_ > 100).sorted
+        (if (ascending) keys else keys.reverse).take(3)
+      }
+      checkAnswer(df.filter("a > 100"), expected.map(rowOf))
+      // Less rows than the limit
+      checkAnswer(df.filter("a = 17"), Row(17, "s17", 170L, 8.5))
+    }
+  }
+
+  /** Values of the OAP metrics of the stages run by `f`, by name */
+  private def readMetrics(f: => Unit): Map[String, Long] = {
+    val metrics = mutable.Map[String, Long]().withDefaultValue(0L)
+    val listener = new SparkListener {
+      override def onStageCompleted(stageCompleted: SparkListenerStageCompleted): Unit = {
+        metrics.synchronized {
+          stageCompleted.stageInfo.accumulables.values.foreach { info =>
+            info.name.filter(_.startsWith("OAP ")).foreach { name =>
+              metrics(name.stripPrefix("OAP ")) += info.value.get.asInstanceOf[Long]
+            }
+          }
+        }
+      }
+    }
+    sparkContext.addSparkListener(listener)
+    try {
+      f
+      sparkContext.listenerBus.waitUntilEmpty(10000)
+    } finally {
+      sparkContext.listenerBus.removeListener(listener)
+    }
+    metrics.synchronized(metrics.toMap.withDefaultValue(0L))
+  }
+
+  test("report the metrics of the scans") {
+    def scan(filter: String): Map[String, Long] =
+      readMetrics(sql(s"select * from t where $filter").collect())
+
+    val range = scan("a between 100 and 300")
+    assert(range("number of files read with index") == FILE_COUNT)
+    assert(range("number of rows selected by index") == 201)
+    assert(range("bytes read") > 0)
+    // The pages without the row are skipped
+    val point = scan("a = 17")
+    assert(point("number of rows selected by index") == 1)
+    assert(point("bytes read") > 0 && point("bytes read") < range("bytes read"))
+
+    withSQLConf(SQLConf.OAP_PARQUET_DATA_CACHE_ENABLED.key -> "true") {
+      sql("select b from o").collect()
+      val cached = readMetrics(sql("select b from o").collect())
+      assert(cached("fiber cache hits") > 0)
+      assert(cached("fiber cache misses") == 0)
+      assert(cached("bytes read") == 0)
+    }
+  }
+
+  test("read the new version of an overwritten file from data fiber cache") {
+    val versionDir = Utils.createTempDir()
+    try {
+      val path = new Path(versionDir.getAbsolutePath, "part-0.parquet")
+      val oldRows = (0 until ROW_COUNT).map(rowOf)
+      writeFile(path, oldRows)
+      spark.read.parquet(versionDir.getAbsolutePath).createOrReplaceTempView("v")
+      sql("create oindex v_idx on v (a)")
+      withSQLConf(SQLConf.OAP_PARQUET_DATA_CACHE_ENABLED.key -> "true") {
+        def scan(): DataFrame = spark.read.format("oap").load(versionDir.getAbsolutePath)
+        checkAnswer(scan(), oldRows)
+        // Same path and row count, different length and modification time
+        val newRows = (0 until ROW_COUNT).map(a => Row(a, s"new$a", null, -a / 2.0))
+        path.getFileSystem(spark.sessionState.newHadoopConf()).delete(path, false)
+        writeFile(path, newRows)
+        checkAnswer(scan(), newRows)
+      }
+    } finally {
+      Utils.deleteRecursively(versionDir)
+    }
+  }
+
+  test("intersect the row ids given by the indexes of different columns") {
+    val indexDir = Utils.createTempDir()
+    try {
+      val rows = (0 until ROW_COUNT).map(key(0, _)).map(rowOf)
+      writeFile(new Path(indexDir.getAbsolutePath, "part-0.parquet"), rows)
+      spark.read.parquet(indexDir.getAbsolutePath).createOrReplaceTempView("m")
+      sql("create oindex m_a on m (a)")
+      sql("create oindex m_c on m (c)")
+      sql("create oindex m_b on m (b) using bitmap")
+      spark.read.format("oap").load(indexDir.getAbsolutePath).createOrReplaceTempView("mo")
+      val expected = spark.createDataFrame(sparkContext.parallelize(rows), schema)
+      val filters = Seq(
+        "a < 3000 and c > 10000",
+        "(a < 100 or a > 5000) and c <= 55000",
+        "a in (3, 2018, 4036) and c = 20180",
+        "b = 's2018'",
+        "b in ('s3', 's2018', 's5') and a > 100")
+      Seq("1", "2").foreach { maxIndexers =>
+        withSQLConf(
+            SQLConf.OAP_INDEXER_CHOICE_MAX_SIZE.key -> maxIndexers,
+            SQLConf.FILES_MAX_PARTITION_BYTES.key -> "16384",
+            SQLConf.FILES_OPEN_COST_IN_BYTES.key -> "0") {
+          filters.foreach { filter =>
+            checkAnswer(sql(s"select * from mo where $filter"), expected.filter(filter))
+          }
+        }
+      }
+    } finally {
+      Utils.deleteRecursively(indexDir)
+    }
+  }
+
+  test("read the files of a task one after another with their own index") {
+    val filesDir = Utils.createTempDir()
+    try {
+      // Small files, several of them are read by each task
+      val files = (0 until ROW_COUNT).grouped(500).toSeq
+      files.zipWithIndex.foreach { case (ids, file) =>
+        writeFile(
+          new Path(filesDir.getAbsolutePath, s"part-$file.parquet"), ids.map(key(0, _)).map(rowOf))
+      }
+      spark.read.parquet(filesDir.getAbsolutePath).createOrReplaceTempView("f")
+      sql("create oindex f_idx on f (a)")
+      val df = spark.read.format("oap").load(filesDir.getAbsolutePath)
+      assert(df.rdd.getNumPartitions < files.length)
+      val expected = spark.createDataFrame(
+        sparkContext.parallelize((0 until ROW_COUNT).map(key(0, _)).map(rowOf)), schema)
+      filters.foreach { filter =>
+        checkAnswer(df.filter(filter), expected.filter(filter))
+      }
+    } finally {
+      Utils.deleteRecursively(filesDir)
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.io.File
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.parquet.example.data.simple.SimpleGroupFactory
+import org.apache.parquet.hadoop.example.ExampleParquetWriter
+import org.apache.parquet.schema.MessageTypeParser
+
+import org.apache.spark.{SharedSparkContext, SparkConf, SparkFunSuite}
+import org.apache.spark.sql.execution.datasources.oap.OapFileFormat
+import org.apache.spark.sql.execution.datasources.oap.io.DataFile
+import org.apache.spark.sql.internal.SQLConf
+import org.apache.spark.sql.types.{IntegerType, StructType}
+import org.apache.spark.util.Utils
+
+class FiberCacheManagerSuite extends SparkFunSuite with SharedSparkContext {
+
+  // Fibers are cached in the off-heap memory
+  conf.set("spark.memory.offHeap.enabled", "true")
+  conf.set("spark.memory.offHeap.size", "64m")
+
+  // Given by `OapFileFormat` to the parquet readers
+  private val hadoopConf = new Configuration()
+  hadoopConf.setBoolean(SQLConf.PARQUET_BINARY_AS_STRING.key, false)
+  hadoopConf.setBoolean(SQLConf.PARQUET_INT96_AS_TIMESTAMP.key, true)
+  private var dir: File = _
+
+  override def beforeAll(): Unit = {
+    super.beforeAll()
+    dir = Utils.createTempDir()
+  }
+
+  override def afterAll(): Unit = {
+    try {
+      Utils.deleteRecursively(dir)
+    } finally {
+      super.afterAll()
+    }
+  }
+
+  private def writeParquetFile(name: String): Path = {
+    val schema = MessageTypeParser.parseMessageType("message test { required int32 a; }")
+    val path = new Path(dir.getAbsolutePath, name)
+    val writer = ExampleParquetWriter.builder(path).withType(schema).build()
+    val factory = new SimpleGroupFactory(schema)
+    try {
+      (0 until 1000).foreach(i => writer.write(factory.newGroup().append("a", i)))
+    } finally {
+      writer.close()
+    }
+    path
+  }
+
+  /** Get `fiber` from cache and release it at once */
+  private def access(fiber: Fiber): FiberCache = {
+    val fiberCache = FiberCacheManager.get(fiber, hadoopConf)
+    fiberCache.release()
+    fiberCache
+  }
+
+  test("index and data fibers are cached in their own pools") {
+    val dataPath = writeParquetFile("data.parquet").toString
+    val dataFile = DataFile(dataPath, new StructType().add("a", IntegerType),
+      OapFileFormat.PARQUET_DATA_FILE_CLASSNAME, hadoopConf, "v1")
+    val dataFiber = DataFiber(dataFile, 0, 0)
+    val indexPath = new Path(dir.getAbsolutePath, "data.index").toString
+    val indexFiber =
+      BTreeFiber(() => new TestFiberCache(1000), FileRegistry.idOf(indexPath, "v1"), 0, 0)
+
+    val indexCacheSize = FiberCacheManager.indexCacheSize
+    val dataCacheSize = FiberCacheManager.dataCacheSize
+    val indexStats = FiberCacheManager.indexCacheStats
+    val dataStats = FiberCacheManager.dataCacheStats
+
+    val dataFiberCache = access(dataFiber)
+    assert(FiberCacheManager.dataCacheSize === dataCacheSize + dataFiberCache.size())
+    assert(FiberCacheManager.dataCacheStats.missCount === dataStats.missCount + 1)
+    assert(access(dataFiber) eq dataFiberCache)
+    assert(FiberCacheManager.dataCacheStats.hitCount === dataStats.hitCount + 1)
+    assert(FiberCacheManager.indexCacheSize === indexCacheSize)
+    assert(FiberCacheManager.indexCacheStats === indexStats)
+
+    access(indexFiber)
+    assert(FiberCacheManager.indexCacheSize === indexCacheSize + 1000)
+    assert(FiberCacheManager.indexCacheStats.missCount === indexStats.missCount + 1)
+    assert(FiberCacheManager.dataCacheSize === dataCacheSize + dataFiberCache.size())
+
+    val stats = FiberCacheManager.cacheStats
+    assert(stats.hitCount ===
+      FiberCacheManager.indexCacheStats.hitCount + FiberCacheManager.dataCacheStats.hitCount)
+    assert(stats.missCount ===
+      FiberCacheManager.indexCacheStats.missCount + FiberCacheManager.dataCacheStats.missCount)
+
+    // Each file is removed from the pool caching it
+    FiberCacheManager.removeFileCache(dataPath)
+    assert(FiberCacheManager.dataCacheSize === dataCacheSize)
+    assert(FiberCacheManager.indexCacheSize === indexCacheSize + 1000)
+    assert(dataFiberCache.isDisposed)
+    FiberCacheManager.removeFileCache(indexPath)
+    assert(FiberCacheManager.indexCacheSize === indexCacheSize)
+  }
+
+  test("the fractions of fiber cache memory must be in (0, 1]") {
+    Seq(SQLConf.OAP_FIBER_CACHE_MEMORY_FRACTION, SQLConf.OAP_INDEX_FIBER_CACHE_FRACTION)
+      .foreach { entry =>
+        assert(new SparkConf().set(entry.key, "1").get(entry) === 1.0)
+        assert(new SparkConf().set(entry.key, "0.5").get(entry) === 0.5)
+        Seq("0", "-0.1", "1.5").foreach { fraction =>
+          intercept[IllegalArgumentException](new SparkConf().set(entry.key, fraction).get(entry))
+        }
+      }
+  }
+}
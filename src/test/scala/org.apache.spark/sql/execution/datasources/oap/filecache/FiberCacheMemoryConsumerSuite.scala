@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import org.apache.spark.{SharedSparkContext, SparkFunSuite, TaskContext}
+
+class FiberCacheMemoryConsumerSuite extends SparkFunSuite with SharedSparkContext {
+
+  conf.set("spark.memory.offHeap.enabled", "true")
+  conf.set("spark.memory.offHeap.size", "64m")
+
+  test("register the spill hook of fiber cache to a task") {
+    val registered = sc.parallelize(Seq(0), 1).map { _ =>
+      val context = TaskContext.get()
+      MemoryManager.registerSpillHook(context)
+      // Only registered once for each task
+      MemoryManager.registerSpillHook(context)
+      // No execution memory is held by the hook
+      context.taskMemoryManager().getMemoryConsumptionForThisTask
+    }.collect()
+    assert(registered === Array(0L))
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.unsafe.Platform
+import org.apache.spark.unsafe.memory.MemoryBlock
+
+class FiberCacheSuite extends SparkFunSuite {
+
+  test("a fiber is freed at once when evicted without readers") {
+    val fiberCache = new TestFiberCache(16)
+    fiberCache.evict()
+    assert(fiberCache.isEvicted)
+    assert(fiberCache.isDisposed)
+    assert(fiberCache.freeCount === 1)
+    intercept[OapException](fiberCache.getInt(0))
+  }
+
+  test("an evicted fiber is freed when its last reader releases it") {
+    val fiberCache = new TestFiberCache(16)
+    fiberCache.occupy()
+    assert(fiberCache.tryOccupy())
+    assert(fiberCache.referenceCount === 2)
+
+    fiberCache.evict()
+    assert(!fiberCache.isDisposed)
+    // Still readable by the readers holding it, but can't be pinned by new readers
+    assert(fiberCache.getInt(0) === 0)
+    assert(!fiberCache.tryOccupy())
+
+    fiberCache.release()
+    assert(!fiberCache.isDisposed)
+    fiberCache.release()
+    assert(fiberCache.isDisposed)
+    assert(fiberCache.freeCount === 1)
+  }
+
+  test("a fiber still cached is not freed when released by all its readers") {
+    val fiberCache = new TestFiberCache(16)
+    fiberCache.occupy()
+    fiberCache.release()
+    assert(fiberCache.referenceCount === 0)
+    assert(!fiberCache.isDisposed)
+    fiberCache.evict()
+    assert(fiberCache.isDisposed)
+  }
+
+  test("a fiber is freed only once") {
+    val fiberCache = new TestFiberCache(16)
+    fiberCache.evict()
+    fiberCache.dispose()
+    assert(fiberCache.freeCount === 1)
+  }
+
+  test("release without occupying and occupying a freed fiber fail") {
+    val fiberCache = new TestFiberCache(16)
+    intercept[OapException](fiberCache.release())
+    fiberCache.dispose()
+    intercept[OapException](fiberCache.occupy())
+    assert(!fiberCache.tryOccupy())
+  }
+}
+
+/** An on-heap FiberCache counting how many times it's freed */
+private[filecache] class TestFiberCache(length: Int) extends FiberCache {
+  @volatile var freeCount = 0
+
+  override protected val fiberData: MemoryBlock =
+    new MemoryBlock(new Array[Byte](length), Platform.BYTE_ARRAY_OFFSET, length)
+
+  override protected def freeFiberData(): Unit = freeCount += 1
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.io.{EOFException, File, RandomAccessFile}
+import java.nio.{ByteBuffer, ByteOrder}
+import java.nio.file.Files
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{Path, RawLocalFileSystem}
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.sql.internal.SQLConf
+import org.apache.spark.util.Utils
+
+class FiberInputSuite extends SparkFunSuite {
+
+  private val content = Array.tabulate[Byte](4096)(i => (i * 31).toByte)
+
+  private def withFile(f: File => Unit): Unit = {
+    val dir = Utils.createTempDir()
+    try {
+      val file = new File(dir, "input")
+      Files.write(file.toPath, content)
+      f(file)
+    } finally {
+      Utils.deleteRecursively(dir)
+    }
+  }
+
+  private def conf(mmap: Boolean): Configuration = {
+    val conf = new Configuration()
+    conf.setBoolean(SQLConf.OAP_MMAP_ENABLED.key, mmap)
+    conf
+  }
+
+  private def openMapped(file: File): MappedFiberInput =
+    FiberInput.open(new Path(file.getAbsolutePath), conf(mmap = true)) match {
+      case input: MappedFiberInput => input
+      case input => fail(s"$file is read by $input instead of being mapped")
+    }
+
+  test("read bytes and fibers of a mapped file") {
+    withFile { file =>
+      val input = openMapped(file)
+      try {
+        assert(input.length === content.length)
+        val bytes = new Array[Byte](100)
+        input.readFully(1000, bytes)
+        assert(bytes === content.slice(1000, 1100))
+
+        val fiber = input.readFiber(4000, 96)
+        assert(fiber.size() === 96)
+        assert(fiber.toArray === content.slice(4000, 4096))
+        assert(fiber.getInt(0) ===
+          ByteBuffer.wrap(content, 4000, 4).order(ByteOrder.nativeOrder()).getInt)
+        fiber.dispose()
+      } finally {
+        input.close()
+      }
+    }
+  }
+
+  test("reads out of a mapped file or after it's closed fail") {
+    withFile { file =>
+      val input = openMapped(file)
+      intercept[EOFException](input.readFully(4000, new Array[Byte](100)))
+      intercept[EOFException](input.readFiber(-1, 10))
+      intercept[EOFException](input.readFiber(4000, 97))
+      input.close()
+      intercept[OapException](input.readFully(0, new Array[Byte](1)))
+      intercept[OapException](input.readFiber(0, 1))
+      // Closing again doesn't release the mapping twice
+      input.close()
+      assert(input.isUnmapped)
+    }
+  }
+
+  test("a mapped file is unmapped once closed and all its fibers are disposed") {
+    withFile { file =>
+      val input = openMapped(file)
+      val fiber1 = input.readFiber(0, 100)
+      val fiber2 = input.readFiber(100, 100)
+      input.close()
+      // The fibers still read the mapping after the file is closed
+      assert(!input.isUnmapped)
+      assert(fiber1.toArray === content.slice(0, 100))
+
+      // An evicted fiber in use is only disposed when released by its last reader
+      fiber1.occupy()
+      fiber1.evict()
+      assert(!fiber1.isDisposed)
+      assert(fiber1.toArray === content.slice(0, 100))
+      fiber1.release()
+      assert(fiber1.isDisposed)
+      assert(!input.isUnmapped)
+
+      fiber2.evict()
+      assert(fiber2.isDisposed)
+      assert(input.isUnmapped)
+    }
+  }
+
+  test("a mapped file stays mapped while open even when its fibers are disposed") {
+    withFile { file =>
+      val input = openMapped(file)
+      val fiber = input.readFiber(0, 100)
+      fiber.evict()
+      // Disposing twice doesn't release the mapping twice
+      fiber.dispose()
+      assert(!input.isUnmapped)
+      val bytes = new Array[Byte](10)
+      input.readFully(10, bytes)
+      assert(bytes === content.slice(10, 20))
+      input.close()
+      assert(input.isUnmapped)
+    }
+  }
+
+  test("read a file through the file system when mapping is disabled") {
+    withFile { file =>
+      val input = FiberInput.open(new Path(file.getAbsolutePath), conf(mmap = false))
+      try {
+        assert(input.isInstanceOf[StreamFiberInput])
+        assert(input.length === content.length)
+        val bytes = new Array[Byte](100)
+        input.readFully(2000, bytes)
+        assert(bytes === content.slice(2000, 2100))
+      } finally {
+        input.close()
+      }
+    }
+  }
+
+  test("read a file of a file system other than the local one through the file system") {
+    withFile { file =>
+      val conf = this.conf(mmap = true)
+      conf.setClass("fs.file.impl", classOf[RawLocalFileSystem], classOf[RawLocalFileSystem])
+      conf.setBoolean("fs.file.impl.disable.cache", true)
+      val input = FiberInput.open(new Path(file.toURI), conf)
+      try {
+        assert(input.isInstanceOf[StreamFiberInput])
+        assert(input.length === content.length)
+        val bytes = new Array[Byte](100)
+        input.readFully(3000, bytes)
+        assert(bytes === content.slice(3000, 3100))
+      } finally {
+        input.close()
+      }
+    }
+  }
+
+  test("read a local file larger than 2GB through the file system") {
+    val dir = Utils.createTempDir()
+    try {
+      // A sparse file, only the tail takes room on disk
+      val file = new File(dir, "large")
+      val length = Int.MaxValue.toLong + content.length
+      val raf = new RandomAccessFile(file, "rw")
+      try {
+        raf.setLength(length)
+        raf.seek(length - content.length)
+        raf.write(content)
+      } finally {
+        raf.close()
+      }
+      val input = FiberInput.open(new Path(file.getAbsolutePath), conf(mmap = true))
+      try {
+        assert(input.isInstanceOf[StreamFiberInput])
+        assert(input.length === length)
+        val bytes = new Array[Byte](content.length)
+        input.readFully(length - content.length, bytes)
+        assert(bytes === content)
+      } finally {
+        input.close()
+      }
+    } finally {
+      Utils.deleteRecursively(dir)
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.util.UUID
+
+import org.apache.hadoop.fs.Path
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.sql.execution.datasources.oap.index.IndexUtils
+
+class FileRegistrySuite extends SparkFunSuite {
+
+  // The registry lives as long as the JVM, each test registers files of its own
+  private def newDir(): String = s"/tmp/${UUID.randomUUID()}"
+
+  test("a version of a file has the same id until retired") {
+    val path = s"${newDir()}/part-0.parquet"
+    val id = FileRegistry.idOf(path, "100_1")
+    assert(FileRegistry.idOf(path, "100_1") === id)
+    assert(FileRegistry.versionsOf(path) === Seq(id))
+
+    FileRegistry.retire(id)
+    assert(FileRegistry.versionsOf(path) === Nil)
+    // Ids are never reused
+    val newId = FileRegistry.idOf(path, "100_1")
+    assert(newId !== id)
+    FileRegistry.retire(newId)
+  }
+
+  test("each version of a file has its own id") {
+    val path = s"${newDir()}/part-0.parquet"
+    val id1 = FileRegistry.idOf(path, "100_1")
+    val id2 = FileRegistry.idOf(path, "200_2")
+    val other = FileRegistry.idOf(s"${newDir()}/part-0.parquet", "100_1")
+    assert(Set(id1, id2, other).size === 3)
+    assert(FileRegistry.versionsOf(path).toSet === Set(id1, id2))
+
+    FileRegistry.retire(id1)
+    assert(FileRegistry.versionsOf(path) === Seq(id2))
+    assert(FileRegistry.idOf(path, "200_2") === id2)
+    // Retiring twice does nothing
+    FileRegistry.retire(id1)
+    assert(FileRegistry.versionsOf(path) === Seq(id2))
+    FileRegistry.retire(id2)
+    FileRegistry.retire(other)
+  }
+
+  test("index files are grouped by index name") {
+    val dataFile = new Path(s"${newDir()}/part-0.parquet")
+    val indexName = s"index_${UUID.randomUUID().toString.replace("-", "")}"
+    val index1 = IndexUtils.indexFileFromDataFile(dataFile, indexName, "1").toString
+    val index2 = IndexUtils.indexFileFromDataFile(dataFile, indexName, "2").toString
+    val otherIndex = IndexUtils.indexFileFromDataFile(dataFile, s"${indexName}_2", "1").toString
+
+    val id1 = FileRegistry.idOf(index1, "")
+    val id2 = FileRegistry.idOf(index2, "")
+    val otherId = FileRegistry.idOf(otherIndex, "")
+    FileRegistry.idOf(dataFile.toString, "")
+    assert(FileRegistry.filesOfIndex(indexName).toSet === Set(id1, id2))
+    assert(FileRegistry.filesOfIndex(s"${indexName}_2") === Seq(otherId))
+
+    FileRegistry.retire(id1)
+    FileRegistry.retire(id2)
+    assert(FileRegistry.filesOfIndex(indexName) === Nil)
+    FileRegistry.retire(otherId)
+    FileRegistry.versionsOf(dataFile.toString).foreach(FileRegistry.retire)
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.io.{ByteArrayInputStream, EOFException, File}
+import java.nio.ByteBuffer
+import java.nio.file.Files
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{ByteBufferReadable, FileSystem, FSDataInputStream, Path, PositionedReadable, Seekable}
+
+import org.apache.spark.{SharedSparkContext, SparkFunSuite}
+import org.apache.spark.util.Utils
+
+/** Stream over `bytes` reading at most `maxRead` bytes into a [[ByteBuffer]] each time */
+private class ByteBufferReadableStream(bytes: Array[Byte], maxRead: Int)
+  extends ByteArrayInputStream(bytes)
+  with Seekable with PositionedReadable with ByteBufferReadable {
+
+  var byteBufferReads = 0
+
+  override def seek(newPos: Long): Unit = pos = newPos.toInt
+
+  override def getPos: Long = pos
+
+  override def seekToNewSource(targetPos: Long): Boolean = false
+
+  override def read(position: Long, buffer: Array[Byte], offset: Int, length: Int): Int = {
+    if (position >= count) {
+      -1
+    } else {
+      val n = math.min(length, count - position.toInt)
+      System.arraycopy(bytes, position.toInt, buffer, offset, n)
+      n
+    }
+  }
+
+  override def readFully(position: Long, buffer: Array[Byte], offset: Int, length: Int): Unit = {
+    if (read(position, buffer, offset, length) < length) {
+      throw new EOFException(s"Reach the end of stream when reading at $position")
+    }
+  }
+
+  override def readFully(position: Long, buffer: Array[Byte]): Unit =
+    readFully(position, buffer, 0, buffer.length)
+
+  override def read(buffer: ByteBuffer): Int = synchronized {
+    byteBufferReads += 1
+    if (pos >= count) {
+      -1
+    } else {
+      val n = math.min(math.min(buffer.remaining(), maxRead), count - pos)
+      buffer.put(bytes, pos, n)
+      pos += n
+      n
+    }
+  }
+}
+
+class MemoryManagerSuite extends SparkFunSuite with SharedSparkContext {
+
+  // Fibers are allocated from the off-heap memory
+  conf.set("spark.memory.offHeap.enabled", "true")
+  conf.set("spark.memory.offHeap.size", "64m")
+
+  // Larger than the bounce buffer, and not a multiple of it
+  private val content = Array.tabulate[Byte](200 * 1024 + 17)(i => (i * 31 + i / 7).toByte)
+
+  private def checkIndexFiber(in: FSDataInputStream, position: Long, length: Int): Unit = {
+    val memoryUsed = MemoryManager.memoryUsed
+    val fiberCache = MemoryManager.putToIndexFiberCache(in, position, length)
+    try {
+      assert(fiberCache.size() === length)
+      assert(MemoryManager.memoryUsed === memoryUsed + length)
+      assert(fiberCache.toArray === content.slice(position.toInt, position.toInt + length))
+    } finally {
+      fiberCache.dispose()
+    }
+    assert(MemoryManager.memoryUsed === memoryUsed)
+  }
+
+  test("load index fibers through a bounce buffer") {
+    val dir = Utils.createTempDir()
+    try {
+      val file = new File(dir, "index")
+      Files.write(file.toPath, content)
+      val in = FileSystem.getLocal(new Configuration()).open(new Path(file.getAbsolutePath))
+      try {
+        assert(!in.getWrappedStream.isInstanceOf[ByteBufferReadable])
+        checkIndexFiber(in, 0, content.length)
+        checkIndexFiber(in, 1000, 100)
+        checkIndexFiber(in, 3, 150 * 1024)
+      } finally {
+        in.close()
+      }
+    } finally {
+      Utils.deleteRecursively(dir)
+    }
+  }
+
+  test("load index fibers into direct buffers over the off-heap memory") {
+    val stream = new ByteBufferReadableStream(content, 1000)
+    val in = new FSDataInputStream(stream)
+    in.seek(42)
+    checkIndexFiber(in, 0, content.length)
+    checkIndexFiber(in, 1000, 100)
+    checkIndexFiber(in, 3, 150 * 1024)
+    // Read by read(ByteBuffer) without changing the position of the stream
+    assert(stream.byteBufferReads > content.length / 1000)
+    assert(in.getPos === 42)
+  }
+
+  test("the memory of an index fiber is freed if loading fails") {
+    val memoryUsed = MemoryManager.memoryUsed
+    val in = new FSDataInputStream(new ByteBufferReadableStream(content, 1000))
+    intercept[EOFException](MemoryManager.putToIndexFiberCache(in, 1000, content.length))
+    assert(in.getPos === 0)
+    assert(MemoryManager.memoryUsed === memoryUsed)
+
+    val dir = Utils.createTempDir()
+    try {
+      val file = new File(dir, "index")
+      Files.write(file.toPath, content)
+      val in = FileSystem.getLocal(new Configuration()).open(new Path(file.getAbsolutePath))
+      try {
+        intercept[EOFException](MemoryManager.putToIndexFiberCache(in, 1000, content.length))
+      } finally {
+        in.close()
+      }
+    } finally {
+      Utils.deleteRecursively(dir)
+    }
+    assert(MemoryManager.memoryUsed === memoryUsed)
+  }
+
+  test("copy data fibers into the off-heap memory") {
+    val memoryUsed = MemoryManager.memoryUsed
+    val fiberCache = MemoryManager.putToDataFiberCache(content)
+    try {
+      assert(fiberCache.fiberData.getBaseObject === null)
+      assert(fiberCache.toArray === content)
+      assert(MemoryManager.memoryUsed === memoryUsed + content.length)
+    } finally {
+      fiberCache.dispose()
+    }
+    assert(MemoryManager.memoryUsed === memoryUsed)
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.util.concurrent.{Callable, CountDownLatch, Executors, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.apache.spark.SparkFunSuite
+
+class OapCacheSuite extends SparkFunSuite {
+
+  private val FIBER_SIZE = 1000
+
+  // Removed fibers in order, evicted the same as FiberCacheManager does
+  private class Removals {
+    val fibers = new ArrayBuffer[Fiber]()
+
+    val onRemoval: (Fiber, FiberCache) => Unit = (fiber, fiberCache) => synchronized {
+      fibers += fiber
+      fiberCache.evict()
+    }
+  }
+
+  private def fiber(name: String): Fiber = TestFiber(() => null, name)
+
+  private def loader(size: Int = FIBER_SIZE): () => FiberCache = () => {
+    val fiberCache = new TestFiberCache(size)
+    fiberCache.occupy()
+    fiberCache
+  }
+
+  /** Get `fiber` from `cache` and release it at once */
+  private def access(cache: OapCache, fiber: Fiber, size: Int = FIBER_SIZE): FiberCache = {
+    val fiberCache = cache.get(fiber, loader(size))
+    fiberCache.release()
+    fiberCache
+  }
+
+  test("a fiber is loaded once and then read from cache") {
+    val cache = new OapCache(100 * FIBER_SIZE, new Removals().onRemoval)
+    val loaded = access(cache, fiber("a"))
+    assert(access(cache, fiber("a")) eq loaded)
+    assert(cache.getIfPresent(fiber("a")) === Some(loaded))
+    assert(cache.size === 1)
+    assert(cache.weight === FIBER_SIZE)
+    assert(cache.stats === CacheStats(1, 1, 0, 0))
+  }
+
+  test("the weight of the cache is bounded by its quota") {
+    val removals = new Removals
+    val cache = new OapCache(10 * FIBER_SIZE, removals.onRemoval)
+    val fiberCaches = (0 until 100).map(i => access(cache, fiber(s"f$i")))
+    assert(cache.weight <= 10 * FIBER_SIZE)
+    assert(cache.size === cache.keys.size)
+    assert(cache.size + removals.fibers.length === 100)
+    // The candidates refused by the admission policy are evicted as well
+    assert(cache.stats.evictionCount === removals.fibers.length)
+    // The memory of the removed fibers is freed as they are not in use
+    assert(fiberCaches.count(_.isDisposed) === removals.fibers.length)
+    assert(removals.fibers.forall(cache.getIfPresent(_).isEmpty))
+  }
+
+  test("a fiber larger than the cache is not cached") {
+    val removals = new Removals
+    val cache = new OapCache(10 * FIBER_SIZE, removals.onRemoval)
+    val fiberCache = cache.get(fiber("large"), loader(11 * FIBER_SIZE))
+    // The caller still holds it until released
+    assert(!fiberCache.isDisposed)
+    assert(cache.getIfPresent(fiber("large")).isEmpty)
+    assert(cache.weight === 0)
+    assert(cache.stats.rejectionCount === 1)
+    assert(removals.fibers === Seq(fiber("large")))
+    fiberCache.release()
+    assert(fiberCache.isDisposed)
+  }
+
+  test("frequently read fibers are kept by a scan of fibers read once") {
+    val cache = new OapCache(100 * FIBER_SIZE, new Removals().onRemoval)
+    val hot = (0 until 20).map(i => fiber(s"hot$i"))
+    (0 until 5).foreach(_ => hot.foreach(access(cache, _)))
+    (0 until 1000).foreach(i => access(cache, fiber(s"scan$i")))
+    assert(hot.forall(cache.getIfPresent(_).isDefined))
+    assert(cache.weight <= 100 * FIBER_SIZE)
+  }
+
+  test("the cache grows with the bytes borrowable from the other cache") {
+    @volatile var borrowable = 10L * FIBER_SIZE
+    val cache = new OapCache(10 * FIBER_SIZE, new Removals().onRemoval, () => borrowable)
+    (0 until 20).foreach(i => access(cache, fiber(s"f$i")))
+    assert(cache.weight > 10 * FIBER_SIZE)
+    assert(cache.weight <= 20 * FIBER_SIZE)
+
+    // The borrowed bytes are given back on the next write
+    borrowable = 0L
+    access(cache, fiber("f20"))
+    assert(cache.weight <= 10 * FIBER_SIZE)
+  }
+
+  test("invalidate and evict fibers") {
+    val removals = new Removals
+    val inserted = new ArrayBuffer[Fiber]()
+    val cache = new OapCache(100 * FIBER_SIZE, removals.onRemoval,
+      onInsert = (fiber, _) => inserted += fiber)
+    val fibers = (0 until 10).map(i => fiber(s"f$i"))
+    val fiberCaches = fibers.map(access(cache, _))
+    assert(inserted === fibers)
+
+    cache.invalidate(fibers.head)
+    assert(fiberCaches.head.isDisposed)
+    assert(cache.getIfPresent(fibers.head).isEmpty)
+    assert(cache.weight === 9 * FIBER_SIZE)
+    // Invalidating a fiber not cached does nothing
+    cache.invalidate(fibers.head)
+    assert(removals.fibers === Seq(fibers.head))
+
+    // An evicted fiber in use is only freed when released
+    val inUse = cache.get(fibers(1), loader())
+    assert(cache.evictWeight(3 * FIBER_SIZE) === 3 * FIBER_SIZE)
+    assert(cache.weight === 6 * FIBER_SIZE)
+    assert(cache.evictWeight(Long.MaxValue) === 6 * FIBER_SIZE)
+    assert(cache.size === 0)
+    assert(!inUse.isDisposed)
+    inUse.release()
+    assert(fiberCaches.forall(_.isDisposed))
+  }
+
+  test("a fiber read concurrently is loaded once") {
+    val cache = new OapCache(100 * FIBER_SIZE, new Removals().onRemoval)
+    val loads = new AtomicInteger(0)
+    val start = new CountDownLatch(1)
+    val pool = Executors.newFixedThreadPool(8)
+    try {
+      val results = (0 until 8).map { _ =>
+        pool.submit(new Callable[FiberCache] {
+          override def call(): FiberCache = {
+            start.await()
+            val fiberCache = cache.get(fiber("a"), () => {
+              loads.incrementAndGet()
+              Thread.sleep(100)
+              loader()()
+            })
+            fiberCache.release()
+            fiberCache
+          }
+        })
+      }
+      start.countDown()
+      val fiberCaches = results.map(_.get(10, TimeUnit.SECONDS))
+      assert(loads.get() === 1)
+      assert(fiberCaches.forall(_ eq fiberCaches.head))
+      assert(fiberCaches.head.referenceCount === 0)
+    } finally {
+      pool.shutdown()
+    }
+  }
+}
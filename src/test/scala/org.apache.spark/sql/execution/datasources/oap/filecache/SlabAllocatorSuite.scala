@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.filecache
+
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.unsafe.Platform
+import org.apache.spark.unsafe.memory.MemoryAllocator
+
+class SlabAllocatorSuite extends SparkFunSuite {
+
+  import SlabAllocator._
+
+  // Bytes acquired from the outside and not released yet
+  private class Budget(limit: Long = Long.MaxValue) {
+    val acquired = new AtomicLong(0)
+
+    def acquire(numOfBytes: Long): Boolean = {
+      if (acquired.get() + numOfBytes <= limit) {
+        acquired.addAndGet(numOfBytes)
+        true
+      } else {
+        false
+      }
+    }
+
+    def release(numOfBytes: Long): Unit = acquired.addAndGet(-numOfBytes)
+
+    def allocator(capacity: Long): SlabAllocator =
+      new SlabAllocator(capacity, acquire, release)
+  }
+
+  test("small blocks are carved from a slab without overlapping") {
+    val budget = new Budget
+    val allocator = budget.allocator(4 * SLAB_SIZE)
+    val blocks = (0 until 64).map(i => allocator.allocate(65 + i))
+    assert(blocks.forall(_ != null))
+    assert(blocks.map(_.size()) === (0 until 64).map(65L + _))
+    // All in the slab of 128 bytes slots
+    assert(allocator.reserved === SLAB_SIZE)
+    assert(budget.acquired.get() === SLAB_SIZE)
+
+    blocks.zipWithIndex.foreach { case (block, i) =>
+      (0L until block.size()).foreach { j =>
+        Platform.putByte(null, block.getBaseOffset + j, i.toByte)
+      }
+    }
+    blocks.zipWithIndex.foreach { case (block, i) =>
+      (0L until block.size()).foreach { j =>
+        assert(Platform.getByte(null, block.getBaseOffset + j) === i.toByte)
+      }
+    }
+    blocks.foreach(allocator.free)
+    // The only slab of the size class is kept
+    assert(allocator.reserved === SLAB_SIZE)
+  }
+
+  test("the slots of freed blocks are reused") {
+    val allocator = new Budget().allocator(4 * SLAB_SIZE)
+    val block = allocator.allocate(64)
+    val address = block.getBaseOffset
+    allocator.free(block)
+    assert(allocator.allocate(64).getBaseOffset === address)
+  }
+
+  test("empty slabs are freed except the last one of a size class") {
+    val budget = new Budget
+    val allocator = budget.allocator(4 * SLAB_SIZE)
+    val slotsPerSlab = (SLAB_SIZE / MAX_SLOT_SIZE).toInt
+    val blocks = (0 until 3 * slotsPerSlab).map(_ => allocator.allocate(MAX_SLOT_SIZE))
+    assert(allocator.reserved === 3 * SLAB_SIZE)
+    blocks.foreach(allocator.free)
+    assert(allocator.reserved === SLAB_SIZE)
+    assert(budget.acquired.get() === SLAB_SIZE)
+  }
+
+  test("large blocks are reserved and released by their sizes") {
+    val budget = new Budget
+    val allocator = budget.allocator(4 * SLAB_SIZE)
+    val block = allocator.allocate(MAX_SLOT_SIZE + 1)
+    assert(block.size() === MAX_SLOT_SIZE + 1)
+    assert(allocator.reserved === MAX_SLOT_SIZE + 1)
+    allocator.free(block)
+    assert(allocator.reserved === 0)
+    assert(budget.acquired.get() === 0)
+  }
+
+  test("allocation fails instead of exceeding the budget") {
+    val allocator = new Budget().allocator(2 * SLAB_SIZE)
+    assert(allocator.allocate(2 * SLAB_SIZE + 1) === null)
+    assert(allocator.bytesToFree(2 * SLAB_SIZE + 1) === 1)
+
+    val large = allocator.allocate(2 * SLAB_SIZE - 100)
+    assert(large != null)
+    // No room for a new slab
+    assert(allocator.allocate(64) === null)
+    assert(allocator.bytesToFree(64) === SLAB_SIZE - 100)
+    assert(allocator.reserved === 2 * SLAB_SIZE - 100)
+
+    allocator.free(large)
+    val small = allocator.allocate(64)
+    assert(small != null)
+    allocator.free(small)
+  }
+
+  test("allocation fails when the memory is refused from the outside") {
+    val budget = new Budget(limit = SLAB_SIZE)
+    val allocator = budget.allocator(4 * SLAB_SIZE)
+    val small = allocator.allocate(64)
+    assert(small != null)
+    assert(allocator.allocate(MAX_SLOT_SIZE + 1) === null)
+    // The budget is not exhausted, all the bytes are to be freed from the outside
+    assert(allocator.bytesToFree(MAX_SLOT_SIZE + 1) === MAX_SLOT_SIZE + 1)
+    assert(allocator.reserved === SLAB_SIZE)
+    assert(budget.acquired.get() === SLAB_SIZE)
+    allocator.free(small)
+  }
+
+  test("free a block not allocated by the allocator") {
+    val allocator = new Budget().allocator(4 * SLAB_SIZE)
+    val block = MemoryAllocator.UNSAFE.allocate(64)
+    try {
+      intercept[OapException](allocator.free(block))
+    } finally {
+      MemoryAllocator.UNSAFE.free(block)
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.index
+
+import java.io.{ByteArrayOutputStream, File}
+import java.nio.file.Files
+
+import com.google.common.io.ByteStreams
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+
+import org.apache.spark.{SharedSparkContext, SparkFunSuite}
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.execution.datasources.oap.statistics.SampleBasedStatisticsWriter
+import org.apache.spark.sql.internal.SQLConf
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+import org.apache.spark.util.Utils
+
+class BTreeIndexRecordWriterSuite extends SparkFunSuite with SharedSparkContext {
+
+  // Small sort buffer to merge several spilled runs, and a small bloom filter to keep the
+  // expected index files small. SAMPLE is random, so it is tested on its own.
+  private val indexConf = Map(
+    SQLConf.OAP_BTREE_SORT_BUFFER_SIZE.key -> "1024",
+    SQLConf.OAP_STATISTICS_TYPES.key -> "MINMAX,BLOOM,PARTBYVALUE",
+    SQLConf.OAP_BLOOMFILTER_MAXBITS.key -> "1024")
+
+  /** Write the index of `rows` in a task, the writer sorts with the memory of the task */
+  private def writeIndex(keySchema: StructType, rows: Seq[InternalRow]): Array[Byte] = {
+    val options = indexConf
+    sc.parallelize(Seq(0), 1).map { _ =>
+      val configuration = new Configuration()
+      options.foreach { case (key, value) => configuration.set(key, value) }
+      val dir = Utils.createTempDir()
+      try {
+        val file = new Path(dir.getAbsolutePath, "index")
+        val writer = BTreeIndexRecordWriter(
+          configuration, BTreeIndexFileWriter(configuration, file), keySchema)
+        rows.foreach(writer.write(null, _))
+        writer.close(null)
+        Files.readAllBytes(new File(file.toUri.getPath).toPath)
+      } finally {
+        Utils.deleteRecursively(dir)
+      }
+    }.collect().head
+  }
+
+  // Written by the in-memory writer before the keys were sorted externally
+  private def expectedIndex(name: String): Array[Byte] = {
+    val in = getClass.getResourceAsStream(s"/btree-index/$name")
+    try ByteStreams.toByteArray(in) finally in.close()
+  }
+
+  test("index of int keys is the same as the one of the in-memory writer") {
+    val rows = (0 until 2000).map { i =>
+      if (i % 97 == 5) InternalRow(null) else InternalRow((i * 7919) % 331)
+    }
+    val index = writeIndex(new StructType().add("a", IntegerType), rows)
+    assert(index === expectedIndex("int-key.index"))
+  }
+
+  test("index of string keys is the same as the one of the in-memory writer") {
+    val rows = (0 until 1000).map { i =>
+      InternalRow(UTF8String.fromString(s"key-${(i * 31) % 257}"))
+    }
+    val index = writeIndex(new StructType().add("s", StringType), rows)
+    assert(index === expectedIndex("string-key.index"))
+  }
+
+  test("sample statistics take the rows uniformly from the sorted keys") {
+    val schema = new StructType().add("a", IntegerType)
+    val configuration = new Configuration()
+    configuration.set(SQLConf.OAP_STATISTICS_SAMPLE_RATE.key, "0.1")
+    val writer = new SampleBasedStatisticsWriter(schema, configuration)
+    // Keys 0 to 99 with 1 to 100 rows
+    val keys = (0 until 100).map { i =>
+      val out = new ByteArrayOutputStream()
+      IndexUtils.writeInt(out, i)
+      out.toByteArray
+    }
+    val rowCount = (1 to 100).sum
+    writer.beginSortedKeys(keys.length, rowCount)
+    keys.zipWithIndex.foreach { case (key, i) => writer.addSortedKey(key, i + 1) }
+    val out = new ByteArrayOutputStream()
+    val written = writer.write(out)
+
+    val bytes = out.toByteArray
+    assert(written === bytes.length)
+    def intAt(offset: Int): Int = (0 until 4).map(i => (bytes(offset + i) & 0xFF) << (8 * i)).sum
+    val size = intAt(4)
+    assert(size === rowCount / 10)
+    // Each key is 4 bytes, the sampled keys follow their end offsets
+    val sampled = (0 until size).map(i => intAt(8 + size * 4 + i * 4))
+    assert(sampled.forall(k => k >= 0 && k < 100))
+    assert(sampled === sampled.sorted)
+  }
+}
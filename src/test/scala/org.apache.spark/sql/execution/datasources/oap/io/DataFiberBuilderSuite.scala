@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.io
+
+import org.apache.spark.{SharedSparkContext, SparkFunSuite}
+import org.apache.spark.sql.catalyst.expressions.GenericInternalRow
+import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+
+class DataFiberBuilderSuite extends SparkFunSuite with SharedSparkContext {
+
+  // The fibers are built into the off-heap memory of the fiber cache
+  conf.set("spark.memory.offHeap.enabled", "true")
+  conf.set("spark.memory.offHeap.size", "64m")
+
+  private def valueOf(dataType: DataType, i: Int): Any = dataType match {
+    case BooleanType => i % 3 == 0
+    case ByteType => i.toByte
+    case ShortType => (i * 7).toShort
+    case IntegerType | DateType => i * 31 - 1000
+    case LongType | TimestampType => i * 1000000007L
+    case FloatType => i / 3.0f
+    case DoubleType => i / 7.0
+    // Some empty values
+    case StringType => UTF8String.fromString("s" * (i % 5) + i)
+    case BinaryType => Array.fill[Byte](i % 4)(i.toByte)
+  }
+
+  private def checkRoundTrip(dataType: DataType, rowCount: Int, isNull: Int => Boolean): Unit = {
+    val builder = DataFiberBuilder(dataType, rowCount)
+    val row = new GenericInternalRow(1)
+    (0 until rowCount).foreach { i =>
+      row.update(0, if (isNull(i)) null else valueOf(dataType, i))
+      builder.append(row, 0)
+    }
+    val fiberCache = builder.build()
+    try {
+      val reader = DataFiberReader(fiberCache, dataType, rowCount)
+      (0 until rowCount).foreach { i =>
+        reader.readValue(i, row, 0)
+        if (isNull(i)) {
+          assert(reader.isNullAt(i), s"$dataType at $i")
+          assert(row.isNullAt(0), s"$dataType at $i")
+        } else {
+          assert(!reader.isNullAt(i), s"$dataType at $i")
+          assert(row.get(0, dataType) === valueOf(dataType, i), s"$dataType at $i")
+        }
+      }
+    } finally {
+      fiberCache.dispose()
+    }
+  }
+
+  private val supportedTypes = Seq(BooleanType, ByteType, ShortType, IntegerType, LongType,
+    FloatType, DoubleType, DateType, TimestampType, StringType, BinaryType)
+
+  supportedTypes.foreach { dataType =>
+    test(s"build and read a fiber of $dataType") {
+      // Row counts not a multiple of the 64 null bits of a long
+      Seq(1, 64, 100, 130).foreach { rowCount =>
+        checkRoundTrip(dataType, rowCount, _ % 3 == 1)
+        checkRoundTrip(dataType, rowCount, _ => false)
+        checkRoundTrip(dataType, rowCount, _ => true)
+      }
+    }
+  }
+
+  test("a fiber can't hold more rows than its row count") {
+    val builder = DataFiberBuilder(IntegerType, 2)
+    val row = new GenericInternalRow(Array[Any](1))
+    builder.append(row, 0)
+    builder.append(row, 0)
+    intercept[OapException](builder.append(row, 0))
+  }
+
+  test("fibers of nested types are not supported") {
+    Seq(ArrayType(IntegerType), new StructType().add("a", IntegerType), DecimalType(20, 2))
+      .foreach { dataType =>
+        assert(!DataFiberBuilder.isSupported(dataType))
+        intercept[OapException](DataFiberBuilder(dataType, 10))
+      }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.oap.io
+
+import java.io.File
+
+import scala.collection.JavaConverters._
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.parquet.example.data.simple.SimpleGroupFactory
+import org.apache.parquet.format.converter.ParquetMetadataConverter
+import org.apache.parquet.hadoop.ParquetFileReader
+import org.apache.parquet.hadoop.example.ExampleParquetWriter
+import org.apache.parquet.hadoop.metadata.BlockMetaData
+import org.apache.parquet.schema.MessageTypeParser
+
+import org.apache.spark.{SharedSparkContext, SparkFunSuite}
+import org.apache.spark.sql.execution.datasources.OapException
+import org.apache.spark.util.Utils
+
+class ParquetDataFileHandleSuite extends SparkFunSuite with SharedSparkContext {
+
+  // The footers are kept in off-heap memory
+  conf.set("spark.memory.offHeap.enabled", "true")
+  conf.set("spark.memory.offHeap.size", "64m")
+
+  private val schema = MessageTypeParser.parseMessageType(
+    """message test {
+      |  required int32 a;
+      |  optional binary b (UTF8);
+      |}""".stripMargin)
+
+  private val hadoopConf = new Configuration()
+  private var dir: File = _
+  private var path: Path = _
+
+  override def beforeAll(): Unit = {
+    super.beforeAll()
+    dir = Utils.createTempDir()
+    path = new Path(dir.getAbsolutePath, "test.parquet")
+    // Flush a row group every ~100 rows
+    val writer = ExampleParquetWriter.builder(path)
+      .withType(schema)
+      .withRowGroupSize(1)
+      .build()
+    val factory = new SimpleGroupFactory(schema)
+    try {
+      (0 until 1000).foreach { i =>
+        val group = factory.newGroup().append("a", i)
+        writer.write(if (i % 3 == 0) group else group.append("b", s"s$i"))
+      }
+    } finally {
+      writer.close()
+    }
+  }
+
+  override def afterAll(): Unit = {
+    try {
+      Utils.deleteRecursively(dir)
+    } finally {
+      super.afterAll()
+    }
+  }
+
+  private def checkBlock(expected: BlockMetaData, actual: BlockMetaData): Unit = {
+    assert(actual.getRowCount === expected.getRowCount)
+    assert(actual.getStartingPos === expected.getStartingPos)
+    assert(actual.getCompressedSize === expected.getCompressedSize)
+    assert(actual.getTotalByteSize === expected.getTotalByteSize)
+    assert(actual.getColumns.size() === expected.getColumns.size())
+    actual.getColumns.asScala.zip(expected.getColumns.asScala).foreach { case (a, e) =>
+      assert(a.getPath === e.getPath)
+      assert(a.getType === e.getType)
+      assert(a.getCodec === e.getCodec)
+      assert(a.getEncodings === e.getEncodings)
+      assert(a.getFirstDataPageOffset === e.getFirstDataPageOffset)
+      assert(a.getDictionaryPageOffset === e.getDictionaryPageOffset)
+      assert(a.getValueCount === e.getValueCount)
+      assert(a.getTotalSize === e.getTotalSize)
+      assert(a.getStatistics === e.getStatistics)
+    }
+  }
+
+  test("decode the row groups of the footer kept off-heap") {
+    val expected =
+      ParquetFileReader.readFooter(hadoopConf, path, ParquetMetadataConverter.NO_FILTER)
+    val blocks = expected.getBlocks.asScala
+    assert(blocks.length > 2)
+
+    val handle = new ParquetDataFileHandle(hadoopConf, path)
+    try {
+      assert(handle.len > 0)
+      assert(handle.fileSchema === expected.getFileMetaData.getSchema)
+      assert(handle.rowGroupRowCounts === blocks.map(_.getRowCount))
+      assert(handle.rowGroupOffsets === blocks.map(_.getStartingPos))
+      assert(handle.rowGroupCompressedSizes === blocks.map(_.getCompressedSize))
+
+      val footer = handle.footer
+      assert(footer.getFileMetaData.getSchema === expected.getFileMetaData.getSchema)
+      assert(footer.getFileMetaData.getKeyValueMetaData ===
+        expected.getFileMetaData.getKeyValueMetaData)
+      assert(footer.getBlocks.size() === blocks.length)
+      footer.getBlocks.asScala.zip(blocks).foreach { case (a, e) => checkBlock(e, a) }
+
+      // Only the requested row groups, in the given order
+      val ids = Seq(blocks.length - 1, 0)
+      val partial = handle.footer(ids).getBlocks.asScala
+      assert(partial.length === ids.length)
+      partial.zip(ids).foreach { case (a, id) => checkBlock(blocks(id), a) }
+      assert(handle.footer(Nil).getBlocks.isEmpty)
+    } finally {
+      handle.close()
+    }
+
+    // Read from file again once the off-heap footer is freed
+    val footer = handle.footer(Seq(1))
+    assert(footer.getBlocks.size() === 1)
+    checkBlock(blocks(1), footer.getBlocks.get(0))
+  }
+
+  test("reject the files not in parquet format") {
+    val file = new Path(dir.getAbsolutePath, "not-parquet")
+    val out = file.getFileSystem(hadoopConf).create(file)
+    try out.write(Array.fill[Byte](100)(1)) finally out.close()
+    intercept[OapException](new ParquetDataFileHandle(hadoopConf, file))
+  }
+}
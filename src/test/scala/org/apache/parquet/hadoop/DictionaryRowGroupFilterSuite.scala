@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.parquet.hadoop
+
+import java.io.File
+import java.nio.file.Files
+
+import scala.collection.JavaConverters._
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.parquet.column.Encoding
+import org.apache.parquet.example.data.simple.SimpleGroupFactory
+import org.apache.parquet.filter2.compat.FilterCompat
+import org.apache.parquet.filter2.predicate.{FilterApi, FilterPredicate, Statistics, UserDefinedPredicate}
+import org.apache.parquet.format.converter.ParquetMetadataConverter
+import org.apache.parquet.hadoop.example.ExampleParquetWriter
+import org.apache.parquet.hadoop.metadata.BlockMetaData
+import org.apache.parquet.io.api.Binary
+import org.apache.parquet.schema.MessageTypeParser
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.network.util.JavaUtils
+
+/** Keep the values in `values` only, the same as Spark's IN filter */
+private class InSet(values: Set[Int]) extends UserDefinedPredicate[Integer] with Serializable {
+  override def keep(value: Integer): Boolean = value != null && values.contains(value)
+
+  override def canDrop(statistics: Statistics[Integer]): Boolean = false
+
+  override def inverseCanDrop(statistics: Statistics[Integer]): Boolean = false
+}
+
+class DictionaryRowGroupFilterSuite extends SparkFunSuite {
+
+  private val ROW_COUNT = 2000
+
+  private val schema = MessageTypeParser.parseMessageType(
+    """message test {
+      |  required int32 low;
+      |  required binary str (UTF8);
+      |  required double dbl;
+      |  required int32 wide;
+      |  optional int32 opt;
+      |}""".stripMargin)
+
+  // Few values in each range of 250 rows, except `wide` whose dictionary overflows
+  private def low(i: Int): Int = i / 250 * 10 + i % 3
+  private def str(i: Int): String = s"v${i / 250}_${i % 3}"
+  private def dbl(i: Int): Double = i / 250 * 1.0
+  private def wide(i: Int): Int = i
+  private def opt(i: Int): Option[Int] = if (i < 1000) None else Some(i / 250)
+
+  private var dir: File = _
+  private var file: Path = _
+  private var blocks: Seq[BlockMetaData] = _
+  // Rows of each row group
+  private var rowRanges: Seq[Range] = _
+
+  override def beforeAll(): Unit = {
+    super.beforeAll()
+    dir = Files.createTempDirectory("dictionary-filter").toFile
+    file = new Path(dir.getAbsolutePath, "test.parquet")
+    // Flush a row group every ~100 rows, the dictionary of `wide` overflows its page
+    val writer = ExampleParquetWriter.builder(file)
+      .withType(schema)
+      .withRowGroupSize(1)
+      .withDictionaryPageSize(256)
+      .withDictionaryEncoding(true)
+      .build()
+    val factory = new SimpleGroupFactory(schema)
+    try {
+      (0 until ROW_COUNT).foreach { i =>
+        val group = factory.newGroup()
+          .append("low", low(i))
+          .append("str", str(i))
+          .append("dbl", dbl(i))
+          .append("wide", wide(i))
+        opt(i).foreach(group.append("opt", _))
+        writer.write(group)
+      }
+    } finally {
+      writer.close()
+    }
+    blocks = ParquetFileReader.readFooter(new Configuration(), file,
+      ParquetMetadataConverter.NO_FILTER).getBlocks.asScala
+    val starts = blocks.scanLeft(0L)(_ + _.getRowCount).map(_.toInt)
+    rowRanges = starts.zip(starts.tail).map { case (start, end) => start until end }
+  }
+
+  override def afterAll(): Unit = {
+    try {
+      JavaUtils.deleteRecursively(dir)
+    } finally {
+      super.afterAll()
+    }
+  }
+
+  private def filter(
+      predicate: FilterPredicate,
+      conf: Configuration = new Configuration()): Seq[BlockMetaData] = {
+    DictionaryRowGroupFilter.filterRowGroups(
+      conf, file, FilterCompat.get(predicate), blocks.asJava, schema).asScala
+  }
+
+  private def blocksWith(matches: Int => Boolean): Seq[BlockMetaData] =
+    blocks.zip(rowRanges).filter { case (_, rows) => rows.exists(matches) }.map(_._1)
+
+  private def encodings(column: String): Seq[Set[Encoding]] = blocks.map { block =>
+    block.getColumns.asScala.find(_.getPath.toDotString == column).get.getEncodings.asScala.toSet
+  }
+
+  test("the file has several row groups, with and without dictionaries") {
+    assert(blocks.length > 4)
+    assert(encodings("low").forall(_.exists(_.usesDictionary())))
+    assert(encodings("wide").exists(_.contains(Encoding.PLAIN)))
+  }
+
+  test("drop the row groups with no value in the dictionary equal to the filter") {
+    val kept = filter(FilterApi.eq(FilterApi.intColumn("low"), Integer.valueOf(21)))
+    assert(kept.nonEmpty && kept.length < blocks.length)
+    assert(kept === blocksWith(low(_) == 21))
+
+    // 25 is in the range of the statistics of the row groups of 20 to 22
+    assert(filter(FilterApi.eq(FilterApi.intColumn("low"), Integer.valueOf(25))).isEmpty)
+  }
+
+  test("filter binary and double values") {
+    val strKept = filter(FilterApi.eq(FilterApi.binaryColumn("str"), Binary.fromString("v3_1")))
+    assert(strKept.nonEmpty)
+    assert(strKept === blocksWith(str(_) == "v3_1"))
+
+    val dblKept = filter(FilterApi.eq(FilterApi.doubleColumn("dbl"), java.lang.Double.valueOf(2.0)))
+    assert(dblKept.nonEmpty)
+    assert(dblKept === blocksWith(dbl(_) == 2.0))
+    // -0.0 equals 0.0 like the record filter, NaN equals nothing
+    assert(filter(FilterApi.eq(FilterApi.doubleColumn("dbl"), java.lang.Double.valueOf(-0.0))) ===
+      blocksWith(dbl(_) == 0.0))
+    assert(filter(
+      FilterApi.eq(FilterApi.doubleColumn("dbl"), java.lang.Double.valueOf(Double.NaN))).isEmpty)
+  }
+
+  test("filter by the user defined predicates of IN") {
+    val values = Set(1, 42, 70)
+    val kept = filter(FilterApi.userDefined(FilterApi.intColumn("low"), new InSet(values)))
+    assert(kept === blocksWith(i => values.contains(low(i))))
+  }
+
+  test("only the conjuncts on dictionary encoded columns are checked") {
+    val lowIs30 = FilterApi.eq(FilterApi.intColumn("low"), Integer.valueOf(30))
+    // `wide` is not fully dictionary encoded, the row groups are only dropped by `low`
+    val missingWide = FilterApi.eq(FilterApi.intColumn("wide"), Integer.valueOf(-1))
+    assert(filter(FilterApi.and(lowIs30, missingWide)) === blocksWith(low(_) == 30))
+    assert(filter(missingWide) === blocks)
+    // Disjunctions and comparisons are left to the statistics
+    assert(filter(FilterApi.or(lowIs30, missingWide)) === blocks)
+    assert(filter(FilterApi.lt(FilterApi.intColumn("low"), Integer.valueOf(-1))) === blocks)
+  }
+
+  test("nulls are not in the dictionaries") {
+    // Matching null is not checked against the dictionaries
+    assert(filter(FilterApi.eq(FilterApi.intColumn("opt"), null: Integer)) === blocks)
+    val kept = filter(FilterApi.eq(FilterApi.intColumn("opt"), Integer.valueOf(5)))
+    assert(kept.nonEmpty)
+    // Chunks of nulls only have no dictionary, they are left to the statistics
+    val nullsOnly = blocks.zip(rowRanges).filter(_._2.forall(opt(_).isEmpty)).map(_._1)
+    assert(nullsOnly.nonEmpty)
+    assert(kept.toSet === (blocksWith(opt(_) == Some(5)) ++ nullsOnly).toSet)
+  }
+
+  test("dictionary filter can be disabled") {
+    val conf = new Configuration()
+    conf.setBoolean(DictionaryRowGroupFilter.DICTIONARY_FILTER_ENABLED, false)
+    assert(filter(FilterApi.eq(FilterApi.intColumn("low"), Integer.valueOf(25)), conf) === blocks)
+  }
+}
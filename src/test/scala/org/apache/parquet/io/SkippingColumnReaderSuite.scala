@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.parquet.io
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+
+import org.apache.parquet.bytes.BytesInput
+import org.apache.parquet.column.{ColumnDescriptor, Encoding, ParquetProperties}
+import org.apache.parquet.column.ParquetProperties.WriterVersion
+import org.apache.parquet.column.page._
+import org.apache.parquet.column.statistics.Statistics
+import org.apache.parquet.io.api.{Binary, PrimitiveConverter}
+import org.apache.parquet.schema.{MessageType, PrimitiveType}
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName
+import org.apache.parquet.schema.Type.Repetition
+
+import org.apache.spark.SparkFunSuite
+
+class SkippingColumnReaderSuite extends SparkFunSuite {
+
+  /** Pages of a column kept in memory, the writers reuse their buffers so the bytes are copied */
+  private class ColumnPages extends PageWriteStore with PageWriter {
+    val pages = new ArrayBuffer[DataPage]()
+    var dictionaryPage: DictionaryPage = _
+
+    override def getPageWriter(path: ColumnDescriptor): PageWriter = this
+
+    override def writePage(
+        bytes: BytesInput,
+        valueCount: Int,
+        statistics: Statistics[_],
+        rlEncoding: Encoding,
+        dlEncoding: Encoding,
+        valuesEncoding: Encoding): Unit = {
+      pages += new DataPageV1(BytesInput.copy(bytes), valueCount, bytes.size.toInt, statistics,
+        rlEncoding, dlEncoding, valuesEncoding)
+    }
+
+    override def writePageV2(
+        rowCount: Int,
+        nullCount: Int,
+        valueCount: Int,
+        repetitionLevels: BytesInput,
+        definitionLevels: BytesInput,
+        dataEncoding: Encoding,
+        data: BytesInput,
+        statistics: Statistics[_]): Unit = {
+      pages += DataPageV2.uncompressed(rowCount, nullCount, valueCount,
+        BytesInput.copy(repetitionLevels), BytesInput.copy(definitionLevels), dataEncoding,
+        BytesInput.copy(data), statistics)
+    }
+
+    override def writeDictionaryPage(page: DictionaryPage): Unit = {
+      dictionaryPage = page.copy()
+    }
+
+    override def getMemSize: Long = 0L
+
+    override def allocatedSize: Long = 0L
+
+    override def memUsageString(prefix: String): String = prefix
+
+    def encodings: Seq[Encoding] = pages.map {
+      case page: DataPageV1 => page.getValueEncoding
+      case page: DataPageV2 => page.getDataEncoding
+    }
+
+    def reader(): PageReader = new PageReader {
+      private val iterator = pages.iterator
+
+      override def readDictionaryPage(): DictionaryPage = dictionaryPage
+
+      override def getTotalValueCount: Long = pages.map(_.getValueCount.toLong).sum
+
+      override def readPage(): DataPage = if (iterator.hasNext) iterator.next() else null
+    }
+  }
+
+  private def column(name: String, typeName: PrimitiveTypeName, repetition: Repetition) =
+    new MessageType("m", new PrimitiveType(repetition, typeName, name)).getColumns.get(0)
+
+  private val optionalInt = column("i", PrimitiveTypeName.INT32, Repetition.OPTIONAL)
+  private val requiredInt = column("i", PrimitiveTypeName.INT32, Repetition.REQUIRED)
+  private val optionalString = column("s", PrimitiveTypeName.BINARY, Repetition.OPTIONAL)
+
+  private def writeColumn(
+      path: ColumnDescriptor,
+      values: Seq[Any],
+      version: WriterVersion,
+      dictionary: Boolean,
+      dictionaryPageSize: Int = 1024 * 1024): ColumnPages = {
+    val properties = ParquetProperties.builder()
+      .withPageSize(512)
+      .withDictionaryPageSize(dictionaryPageSize)
+      .withDictionaryEncoding(dictionary)
+      .withWriterVersion(version)
+      // Check the page size every 100 rows even after runs of levels that take no room
+      .estimateRowCountForPageSizeCheck(false)
+      .withMinRowCountForPageSizeCheck(100)
+      .build()
+    val columnPages = new ColumnPages
+    val schema = new MessageType("m", new PrimitiveType(
+      if (path.getMaxDefinitionLevel == 0) Repetition.REQUIRED else Repetition.OPTIONAL,
+      path.getType, path.getPath.head))
+    val store = properties.newColumnWriteStore(schema, columnPages)
+    val writer = store.getColumnWriter(path)
+    values.foreach { value =>
+      value match {
+        case null => writer.writeNull(0, 0)
+        case v: Int => writer.write(v, 0, path.getMaxDefinitionLevel)
+        case v: String => writer.write(Binary.fromString(v), 0, path.getMaxDefinitionLevel)
+      }
+      store.endRecord()
+    }
+    store.flush()
+    assert(columnPages.pages.length > 1)
+    columnPages
+  }
+
+  // Runs of nulls and of repeated values between mixed values, so that the definition levels
+  // and the dictionary ids are written as both RLE runs and bit-packed groups
+  private def valueRuns(count: Int, distinct: Int, nullable: Boolean = true): IndexedSeq[Any] = {
+    val random = new Random(42)
+    val values = new ArrayBuffer[Any]()
+    while (values.length < count) {
+      val length = 1 + random.nextInt(if (random.nextInt(10) == 0) 600 else 40)
+      random.nextInt(4) match {
+        case 0 if nullable => values ++= Seq.fill(length)(null)
+        case 1 => values ++= Seq.fill(length)(random.nextInt(distinct))
+        case _ => values ++= Seq.fill(length) {
+          if (nullable && random.nextInt(5) == 0) null else random.nextInt(distinct)
+        }
+      }
+    }
+    values.take(count).toIndexedSeq
+  }
+
+  // Gaps of a few values, within a page and across several pages
+  private def randomGaps(count: Int, seed: Int): Seq[Int] = {
+    val random = new Random(seed)
+    val gaps = new ArrayBuffer[Int]()
+    var position = 0
+    var done = false
+    while (!done) {
+      val gap = random.nextInt(4) match {
+        case 0 => random.nextInt(3)
+        case 1 => 1 + random.nextInt(20)
+        case 2 => 1 + random.nextInt(200)
+        case _ => 1 + random.nextInt(1500)
+      }
+      if (position + gap < count) {
+        gaps += gap
+        position += gap
+      } else {
+        done = true
+      }
+    }
+    gaps
+  }
+
+  /**
+   * Skip `gaps` values one gap after another and check the value the reader stops at, reading
+   * the current value before skipping when `readBeforeSkip`.
+   */
+  private def checkSkip(
+      path: ColumnDescriptor,
+      pages: ColumnPages,
+      values: IndexedSeq[Any],
+      gaps: Seq[Int],
+      readBeforeSkip: Boolean): Unit = {
+    val reader = new SkippingColumnReader(path, pages.reader(), new PrimitiveConverter {}, null)
+    def checkValue(position: Int): Unit = values(position) match {
+      case null =>
+        assert(reader.getCurrentDefinitionLevel < path.getMaxDefinitionLevel, s"at $position")
+      case value =>
+        assert(reader.getCurrentDefinitionLevel === path.getMaxDefinitionLevel, s"at $position")
+        val read = path.getType match {
+          case PrimitiveTypeName.INT32 => reader.getInteger
+          case _ => reader.getBinary.toStringUsingUTF8
+        }
+        assert(read === value, s"at $position")
+    }
+    var position = 0
+    gaps.foreach { gap =>
+      if (readBeforeSkip) {
+        checkValue(position)
+      }
+      reader.skipValues(gap)
+      position += gap
+      checkValue(position)
+    }
+  }
+
+  private def checkRandomSkips(
+      path: ColumnDescriptor, pages: ColumnPages, values: IndexedSeq[Any]): Unit = {
+    Seq(1, 2, 3).foreach { seed =>
+      checkSkip(path, pages, values, randomGaps(values.length, seed), readBeforeSkip = false)
+      checkSkip(path, pages, values, randomGaps(values.length, seed), readBeforeSkip = true)
+    }
+  }
+
+  for (version <- WriterVersion.values(); dictionary <- Seq(true, false)) {
+    val pageType = if (dictionary) "dictionary encoded" else "plain"
+
+    test(s"skip values across the boundaries of $pageType pages of $version") {
+      val values = valueRuns(20000, 50)
+      val pages = writeColumn(optionalInt, values, version, dictionary)
+      assert(pages.encodings.forall(_.usesDictionary() == dictionary))
+      checkRandomSkips(optionalInt, pages, values)
+    }
+
+    test(s"skip to the first and the last values of $pageType pages of $version") {
+      val values = valueRuns(20000, 50)
+      val pages = writeColumn(optionalInt, values, version, dictionary)
+      // Positions of the first values of the pages
+      val firstValues = pages.pages.map(_.getValueCount).scanLeft(0)(_ + _)
+        .filter(_ < values.length).distinct
+      val pageSizes = firstValues.sliding(2).map { case Seq(from, to) => to - from }.toSeq
+      // From the first value of a page to the first value of the next one
+      checkSkip(optionalInt, pages, values, pageSizes, readBeforeSkip = true)
+      // From the first value of a page to its last value, then to the first of the next page
+      val toLastValues = pageSizes.flatMap(size => Seq(size - 1, 1))
+      checkSkip(optionalInt, pages, values, toLastValues, readBeforeSkip = false)
+      // Over several pages at once
+      val pairs = pageSizes.grouped(2).map(_.sum).toSeq
+      checkSkip(optionalInt, pages, values, pairs, readBeforeSkip = true)
+    }
+
+    test(s"skip values one by one in $pageType pages of $version") {
+      val values = valueRuns(5000, 50)
+      val pages = writeColumn(optionalInt, values, version, dictionary)
+      checkSkip(optionalInt, pages, values, Seq.fill(values.length - 1)(1), readBeforeSkip = false)
+      checkSkip(optionalInt, pages, values, Seq.fill(values.length - 1)(1), readBeforeSkip = true)
+    }
+
+    test(s"skip null and repeated values of a string column in $pageType pages of $version") {
+      val values = valueRuns(20000, 30).map(v => if (v == null) null else s"value-$v")
+      val pages = writeColumn(optionalString, values, version, dictionary)
+      checkRandomSkips(optionalString, pages, values)
+    }
+
+    test(s"skip values of a required column in $pageType pages of $version") {
+      val values = valueRuns(20000, 50, nullable = false)
+      val pages = writeColumn(requiredInt, values, version, dictionary)
+      checkRandomSkips(requiredInt, pages, values)
+    }
+
+    test(s"skip pages of nulls only in $pageType pages of $version") {
+      val values = (0 until 20000).map(i => if (i / 3000 % 2 == 0) null else i % 1000)
+      val pages = writeColumn(optionalInt, values, version, dictionary)
+      checkRandomSkips(optionalInt, pages, values)
+    }
+  }
+
+  for (version <- WriterVersion.values()) {
+    test(s"skip values of dictionary pages and of the plain pages after them of $version") {
+      // The dictionary outgrows its page after the first values and the writer falls back
+      val values = valueRuns(20000, 50).zipWithIndex.map {
+        case (null, _) => null
+        case (v: Int, i) => if (i < 8000) v else i
+      }
+      val pages = writeColumn(optionalInt, values, version, dictionary = true,
+        dictionaryPageSize = 1024)
+      assert(pages.dictionaryPage != null)
+      assert(pages.encodings.exists(_.usesDictionary()))
+      assert(pages.encodings.exists(!_.usesDictionary()))
+      checkRandomSkips(optionalInt, pages, values)
+    }
+  }
+}